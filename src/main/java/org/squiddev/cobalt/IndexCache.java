@@ -0,0 +1,35 @@
+package org.squiddev.cobalt;
+
+/**
+ * An inline cache for looking up a constant string key in a table, such as {@code obj.field} or {@code obj:method()}.
+ * <p>
+ * Rather than hashing the key and walking the collision chain, this remembers which hash slots the key was previously
+ * found in, along with the exact key object stored in that slot. If a table's slot still holds that key object, then
+ * the lookup can return its value directly. As tables built the same way (such as instances of the same "class")
+ * tend to have the same layout, a single cache will often hit for many different tables.
+ * <p>
+ * There is no need to explicitly invalidate the cache. When a table is rehashed or a key is moved, the slot will no
+ * longer contain the cached key, and we fall back to a normal lookup. Metamethods are not cached, only the raw lookup
+ * in each table of an {@code __index} chain.
+ * <p>
+ * Every lookup using a cache must use the same key. As all entries are then equal to that key, concurrent updates to
+ * the cache cannot produce incorrect results, only additional misses.
+ *
+ * @see LuaTable#rawget(LuaValue, IndexCache)
+ * @see Prototype#indexCaches
+ */
+public final class IndexCache {
+	static final int SIZE = 4;
+
+	final int[] slots = new int[SIZE];
+	final Object[] keys = new Object[SIZE];
+	private int next;
+
+	void add(int slot, Object key) {
+		int index = next;
+		next = (index + 1) & (SIZE - 1);
+
+		slots[index] = slot;
+		keys[index] = key;
+	}
+}
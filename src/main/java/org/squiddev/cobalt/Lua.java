@@ -257,6 +257,15 @@ public class Lua {
 
 	public static final int NUM_OPCODES = OP_VARARG + 1;
 
+	/* internal opcodes, produced when quickening a function and only executed by the interpreter. See Prototype.quickenedCode */
+	public static final int OP_GETTABLE_KS = 38; /*	A B C	R(A) := R(B)[Kst(C)], Kst(C) is a string	*/
+	public static final int OP_SELF_KS = 39; /*	A B C	R(A+1) := R(B); R(A) := R(B)[Kst(C)], Kst(C) is a string	*/
+	public static final int OP_SETTABLE_KS = 40; /*	A B C	R(A)[Kst(B)] := RK(C), Kst(B) is a string	*/
+	public static final int OP_ADD_RN = 41; /*	A B C	R(A) := R(B) + Kst(C), Kst(C) is a number	*/
+	public static final int OP_SUB_RN = 42; /*	A B C	R(A) := R(B) - Kst(C), Kst(C) is a number	*/
+	public static final int OP_EQ_K = 43; /*	A B C	if ((R(B) == Kst(C)) ~= A) then pc++, Kst(C) is nil, a boolean or a string */
+	public static final int OP_GETGLOBAL_CALL = 44; /*	A Bx	R(A) := Gbl[Kst(Bx)], then the following OP_CALL on R(A)	*/
+
 	/* pseudo-opcodes used in parsing only.  */
 	public static final int OP_GT = 63; // >
 	public static final int OP_GE = 62; // >=
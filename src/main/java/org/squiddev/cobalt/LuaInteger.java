@@ -43,16 +43,26 @@ package org.squiddev.cobalt;
  */
 public final class LuaInteger extends LuaNumber {
 
-	private static final LuaInteger[] intValues = new LuaInteger[512];
+	/**
+	 * The range of cached integers.
+	 * <p>
+	 * This covers the indices of most numeric {@code for} loops and array-like tables, so that stepping through them
+	 * does not allocate a new integer on every iteration. The upper bound may be changed with the
+	 * {@code cobalt.integerCacheHigh} system property.
+	 */
+	private static final int CACHE_MIN = -256;
+	private static final int CACHE_MAX = Math.max(255, Integer.getInteger("cobalt.integerCacheHigh", 0xFFFF));
+
+	private static final LuaInteger[] intValues = new LuaInteger[CACHE_MAX - CACHE_MIN + 1];
 
 	static {
-		for (int i = 0; i < 512; i++) {
-			intValues[i] = new LuaInteger(i - 256);
+		for (int i = 0; i < intValues.length; i++) {
+			intValues[i] = new LuaInteger(i + CACHE_MIN);
 		}
 	}
 
 	public static LuaInteger valueOf(int i) {
-		return i <= 255 && i >= -256 ? intValues[i + 256] : new LuaInteger(i);
+		return i <= CACHE_MAX && i >= CACHE_MIN ? intValues[i - CACHE_MIN] : new LuaInteger(i);
 	}
 
 	// TODO consider moving this to LuaValue
@@ -67,9 +77,7 @@ public final class LuaInteger extends LuaNumber {
 	 */
 	public static LuaNumber valueOf(long l) {
 		int i = (int) l;
-		return l == i ? (i <= 255 && i >= -256 ? intValues[i + 256] :
-			new LuaInteger(i)) :
-			LuaDouble.valueOf(l);
+		return l == i ? valueOf(i) : LuaDouble.valueOf(l);
 	}
 
 	/**
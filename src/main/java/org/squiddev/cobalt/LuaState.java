@@ -24,6 +24,8 @@
  */
 package org.squiddev.cobalt;
 
+import org.squiddev.cobalt.compiler.BytecodeOptimiser;
+import org.squiddev.cobalt.compiler.CompileCache;
 import org.squiddev.cobalt.compiler.LoadState;
 import org.squiddev.cobalt.compiler.LuaC;
 import org.squiddev.cobalt.debug.DebugFrame;
@@ -72,6 +74,28 @@ public final class LuaState {
 	 */
 	public final LoadState.FunctionFactory compiler;
 
+	/**
+	 * The number of calls and loop iterations after which a Lua function is compiled to JVM bytecode, or {@code -1} if
+	 * compilation is disabled.
+	 *
+	 * @see Builder#compileThreshold(int)
+	 */
+	public final int compileThreshold;
+
+	/**
+	 * The cache of compiled chunks, or {@code null} if chunks should always be compiled from source.
+	 *
+	 * @see Builder#compileCache(CompileCache)
+	 */
+	public final CompileCache compileCache;
+
+	/**
+	 * Whether compiled chunks are run through the {@link BytecodeOptimiser}.
+	 *
+	 * @see Builder#optimiseBytecode(boolean)
+	 */
+	public final boolean optimiseBytecode;
+
 	private volatile boolean interrupted;
 	private final InterruptHandler interruptHandler;
 
@@ -98,6 +122,9 @@ public final class LuaState {
 
 	private LuaState(Builder builder) {
 		compiler = builder.compiler;
+		compileThreshold = builder.compileThreshold;
+		compileCache = builder.compileCache;
+		optimiseBytecode = builder.optimiseBytecode;
 		interruptHandler = builder.interruptHandler;
 		reportError = builder.reportError;
 
@@ -219,6 +246,9 @@ public final class LuaState {
 	 */
 	public static class Builder {
 		private LoadState.FunctionFactory compiler = LoadState::interpretedFunction;
+		private int compileThreshold = -1;
+		private CompileCache compileCache = null;
+		private boolean optimiseBytecode = false;
 		private InterruptHandler interruptHandler = null;
 		private ErrorReporter reportError;
 
@@ -243,6 +273,50 @@ public final class LuaState {
 			return this;
 		}
 
+		/**
+		 * Compile frequently executed Lua functions to JVM bytecode. This is disabled by default.
+		 * <p>
+		 * Functions are compiled once they have been called (or have looped) {@code threshold} times. Compiled code
+		 * falls back to the interpreter whenever a debug hook is installed.
+		 *
+		 * @param threshold The number of calls and loop iterations before a function is compiled, or {@code -1} to
+		 *                  disable compilation.
+		 * @return This builder
+		 */
+		public Builder compileThreshold(int threshold) {
+			if (threshold < -1) throw new IllegalArgumentException("threshold must be >= -1");
+			compileThreshold = threshold;
+			return this;
+		}
+
+		/**
+		 * Cache compiled chunks on disk, so that loading the same code again (either in another Lua state, or after a
+		 * restart) does not need to compile it from source. This is disabled by default.
+		 *
+		 * @param cache The cache to use.
+		 * @return This builder
+		 */
+		public Builder compileCache(CompileCache cache) {
+			Objects.requireNonNull(cache, "cache cannot be null");
+			compileCache = cache;
+			return this;
+		}
+
+		/**
+		 * Run the {@link BytecodeOptimiser} over chunks when they are compiled. This is disabled by default.
+		 * <p>
+		 * Optimised chunks are stored in the {@linkplain #compileCache(CompileCache) compile cache}, so the optimiser
+		 * only runs once per chunk. Optimised functions behave identically to the original, except that line hooks may
+		 * see fewer lines. See {@link BytecodeOptimiser} for more details.
+		 *
+		 * @param optimise Whether to optimise compiled chunks.
+		 * @return This builder
+		 */
+		public Builder optimiseBytecode(boolean optimise) {
+			optimiseBytecode = optimise;
+			return this;
+		}
+
 		/**
 		 * Set the interrupt handler for this Lua state.
 		 *
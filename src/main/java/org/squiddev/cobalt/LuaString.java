@@ -25,14 +25,22 @@
 package org.squiddev.cobalt;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.framework.qual.DefaultQualifier;
 import org.squiddev.cobalt.lib.StringLib;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.squiddev.cobalt.Constants.NIL;
 
@@ -61,7 +69,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * Size of cache of recent short strings. This is the maximum number of LuaStrings that
 	 * will be retained in the cache of recent short strings. Must be a power of 2.
 	 */
-	public static final int RECENT_STRINGS_CACHE_SIZE = 128;
+	public static final int RECENT_STRINGS_CACHE_SIZE = 4096;
 
 	/**
 	 * Maximum length of a string to be considered for recent short strings caching.
@@ -71,13 +79,46 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	public static final int RECENT_STRINGS_MAX_LENGTH = 32;
 
 	/**
-	 * The contents of this string. Either a {@code byte[]} or a {@code LuaString[]}.
+	 * The maximum depth of a rope. If concatenating strings would create a deeper rope (such as when building a string
+	 * with {@code s = s .. x} in a loop), then the rope is {@linkplain #rebalance(LuaString[], int) rebalanced}
+	 * instead.
+	 */
+	private static final int MAX_ROPE_DEPTH = 32;
+
+	/**
+	 * The maximum number of children of each node in a rebalanced rope.
+	 */
+	private static final int ROPE_FANOUT = 8;
+
+	/**
+	 * The size of the chunks that short leaves of a rope are merged into when rebalancing.
+	 */
+	private static final int ROPE_CHUNK_SIZE = 1024;
+
+	/**
+	 * The size of the chunks that buffer-backed strings are copied in when {@linkplain #write(ByteSink) writing} them.
+	 */
+	private static final int BUFFER_CHUNK_SIZE = 8192;
+
+	/**
+	 * The contents of this string. Either a {@code byte[]}, a {@code LuaString[]}, or a little-endian
+	 * {@link ByteBuffer} (see {@link #valueOf(ByteBuffer)}).
+	 * <p>
+	 * Buffers are only ever accessed with absolute indices, so may be shared between threads. They are never
+	 * flattened into a byte array, so operations which need one copy the string each time instead. The common string
+	 * operations (indexing, searching, substrings, comparison and hashing) work on the buffer directly.
 	 *
 	 * @see #bytes()
 	 * @see #flatten()
 	 */
 	private Object contents;
 
+	/**
+	 * The depth of this rope, or 0 if this string was created from a byte array. This is not updated when the rope is
+	 * flattened, so may over-estimate the actual depth.
+	 */
+	private final int depth;
+
 	/**
 	 * The offset into the byte array, 0 means start at the first byte
 	 */
@@ -90,27 +131,124 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 
 	private int hashCode;
 
-	private static class Cache {
+	/**
+	 * The seed for {@linkplain #hash(byte[], int, int) string hashes}.
+	 * <p>
+	 * This is chosen randomly when Cobalt starts, so that scripts cannot construct a set of strings which all hash to
+	 * the same value, and so make table operations take linear time. It is shared by all {@link LuaState}s, as strings
+	 * (and their cached hashes) may be shared between them.
+	 * <p>
+	 * The seed may be fixed with the {@code cobalt.hashSeed} system property, which is useful for reproducing bugs
+	 * which depend on the order of table keys.
+	 */
+	private static final long HASH_SEED = Long.getLong("cobalt.hashSeed", new SecureRandom().nextLong());
+
+	private static final long HASH_P0 = 0xa0761d6478bd642fL;
+	private static final long HASH_P1 = 0xe7037ed1a0b428dbL;
+	private static final long HASH_P2 = 0x8ebc6af09c88c6e3L;
+
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final long SWAR_ONES = 0x0101010101010101L;
+	private static final long SWAR_LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+	/**
+	 * The minimum needle and haystack lengths for which {@link #indexOf(LuaString, int)} uses Boyer-Moore-Horspool.
+	 * Below this, building the skip table costs more than it saves.
+	 */
+	private static final int HORSPOOL_MIN_NEEDLE = 8;
+	private static final int HORSPOOL_MIN_HAYSTACK = 512;
+
+	/**
+	 * The largest set of bytes for which {@link #indexOfAny(LuaString)} checks a word at a time. Each byte in the set
+	 * costs a few operations per word, so for larger sets a lookup table is faster.
+	 */
+	private static final int SWAR_MAX_ACCEPT = 4;
+
+	/**
+	 * A table of recently created short strings, shared by all {@link LuaState}s. This means the same string created in
+	 * different places (such as by the lexer, {@code string.sub} or concatenation) will usually be the same object, and
+	 * so can be compared (and looked up in tables) by identity.
+	 * <p>
+	 * This is a set-associative cache: each string is assigned a set of {@link #WAYS} entries based on its hash. Strings
+	 * are moved towards the front of their set when found, and on a miss the last entry of the set is evicted. This
+	 * bounds the memory used by the table, while keeping commonly used strings.
+	 * <p>
+	 * The table is accessed without locking. Concurrent updates may lose an entry or briefly store it twice, which only
+	 * results in a cache miss.
+	 */
+	private static final class Cache {
+		private static final int WAYS = 4;
+		private static final int SETS = RECENT_STRINGS_CACHE_SIZE / WAYS;
+
+		private static final AtomicReferenceArray<LuaString> entries = new AtomicReferenceArray<>(RECENT_STRINGS_CACHE_SIZE);
+		private static final LongAdder hits = new LongAdder();
+		private static final LongAdder misses = new LongAdder();
+
 		/**
-		 * Simple cache of recently created strings that are short.
-		 * This is simply a list of strings, indexed by their hash codes modulo the cache size
-		 * that have been recently constructed.  If a string is being constructed frequently
-		 * from different contexts, it will generally may show up as a cache hit and resolve
-		 * to the same value.
+		 * Find or create a short string.
+		 *
+		 * @param bytes  The byte array containing the string.
+		 * @param offset The offset into the array.
+		 * @param length The length of the string.
+		 * @param copy   Whether the bytes must be copied when creating a new string. If {@code false}, the array will
+		 *               be used as the string's backing if it is short.
+		 * @return The interned string.
 		 */
-		public final LuaString[] recentShortStrings = new LuaString[RECENT_STRINGS_CACHE_SIZE];
+		static LuaString get(byte[] bytes, int offset, int length, boolean copy) {
+			int hash = hash(bytes, offset, length);
+			int base = (hash & (SETS - 1)) * WAYS;
+
+			for (int i = 0; i < WAYS; i++) {
+				LuaString cached = entries.getAcquire(base + i);
+				if (cached == null) break;
+				if (cached.hashCode == hash && cached.length == length && LuaString.equals(cached.bytes(), cached.offset, bytes, offset, length)) {
+					if (i > 0) {
+						entries.setRelease(base + i, entries.getAcquire(base + i - 1));
+						entries.setRelease(base + i - 1, cached);
+					}
+
+					hits.increment();
+					return cached;
+				}
+			}
+
+			misses.increment();
 
-		public LuaString get(LuaString s) {
-			final int index = s.hashCode() & (RECENT_STRINGS_CACHE_SIZE - 1);
-			final LuaString cached = recentShortStrings[index];
-			if (cached != null && s.equals(cached)) {
-				return cached;
+			LuaString string;
+			if (copy || bytes.length >= RECENT_STRINGS_MAX_LENGTH) {
+				byte[] slice = new byte[length];
+				System.arraycopy(bytes, offset, slice, 0, length);
+				string = new LuaString(slice, 0, length);
+			} else {
+				string = new LuaString(bytes, offset, length);
 			}
-			recentShortStrings[index] = s;
-			return s;
+			string.hashCode = hash;
+
+			for (int i = WAYS - 1; i > 0; i--) entries.setRelease(base + i, entries.getAcquire(base + i - 1));
+			entries.setRelease(base, string);
+			return string;
 		}
+	}
+
+	/**
+	 * Get the number of times a short string was found in the table of recent strings.
+	 *
+	 * @return The number of cache hits.
+	 * @see #RECENT_STRINGS_CACHE_SIZE
+	 */
+	public static long getRecentStringHits() {
+		return Cache.hits.sum();
+	}
 
-		public static final Cache instance = new Cache();
+	/**
+	 * Get the number of times a short string was created without being found in the table of recent strings.
+	 *
+	 * @return The number of cache misses.
+	 * @see #RECENT_STRINGS_CACHE_SIZE
+	 */
+	public static long getRecentStringMisses() {
+		return Cache.misses.sum();
 	}
 
 	/**
@@ -137,9 +275,9 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	public static LuaString valueOf(byte[] bytes, int off, int len) {
-		if (bytes.length < RECENT_STRINGS_MAX_LENGTH) {
-			// Short string.  Reuse the backing and check the cache of recent strings before returning.
-			return Cache.instance.get(new LuaString(bytes, off, len));
+		if (len < RECENT_STRINGS_MAX_LENGTH) {
+			// Short string. Check the cache of recent strings, only creating a new string if not present.
+			return Cache.get(bytes, off, len, false);
 		} else if (len >= bytes.length / 2) {
 			// Reuse backing only when more than half the bytes are part of the result.
 			return new LuaString(bytes, off, len);
@@ -147,11 +285,28 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 			// Short result relative to the source.  Copy only the bytes that are actually to be used.
 			final byte[] b = new byte[len];
 			System.arraycopy(bytes, off, b, 0, len);
-			LuaString string = new LuaString(b, 0, len);
-			return len < RECENT_STRINGS_MAX_LENGTH ? Cache.instance.get(string) : string;
+			return new LuaString(b, 0, len);
 		}
 	}
 
+	/**
+	 * Construct a {@link LuaString} from a region of a byte array, copying the contents if needed.
+	 * <p>
+	 * Unlike {@link #valueOf(byte[], int, int)}, the array may be modified after this is called.
+	 *
+	 * @param bytes byte buffer
+	 * @param off   offset into the byte buffer
+	 * @param len   length of the byte buffer
+	 * @return {@link LuaString} containing a copy of the byte buffer
+	 */
+	public static LuaString valueOfCopy(byte[] bytes, int off, int len) {
+		if (len < RECENT_STRINGS_MAX_LENGTH) return Cache.get(bytes, off, len, true);
+
+		byte[] b = new byte[len];
+		System.arraycopy(bytes, off, b, 0, len);
+		return new LuaString(b, 0, len);
+	}
+
 	/**
 	 * Construct a {@link LuaString} around a byte array without copying the contents.
 	 * <p>
@@ -164,6 +319,28 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		return valueOf(bytes, 0, bytes.length);
 	}
 
+	/**
+	 * Construct a {@link LuaString} around the remaining contents of a {@link ByteBuffer} without copying them.
+	 * <p>
+	 * This is intended for large, read-only data such as {@linkplain java.nio.MappedByteBuffer memory-mapped files},
+	 * which should not be copied onto the heap. The buffer's contents are used directly after this is called, so
+	 * clients must not change them. The buffer's position and limit may be changed.
+	 *
+	 * @param buffer The buffer to wrap.
+	 * @return {@link LuaString} wrapping the buffer.
+	 */
+	public static LuaString valueOf(ByteBuffer buffer) {
+		int length = buffer.remaining();
+		if (buffer.hasArray()) return valueOf(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		if (length < RECENT_STRINGS_MAX_LENGTH) {
+			byte[] bytes = new byte[length];
+			buffer.get(buffer.position(), bytes, 0, length);
+			return valueOf(bytes, 0, length);
+		}
+
+		return new LuaString(buffer.slice().order(ByteOrder.LITTLE_ENDIAN), 0, length);
+	}
+
 	/**
 	 * Create a string from a concatenation of other strings. This may be more efficient than building a string
 	 * with {@link Buffer} or {@link OperationHelper#concat(LuaString, LuaString)}, as it defers allocating the
@@ -183,7 +360,10 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		if (strLength > RECENT_STRINGS_MAX_LENGTH) {
 			LuaString[] slice = new LuaString[length];
 			System.arraycopy(contents, offset, slice, 0, length);
-			return new LuaString(slice, strLength);
+
+			int depth = 0;
+			for (LuaString string : slice) depth = Math.max(depth, string.depth());
+			return depth < MAX_ROPE_DEPTH ? new LuaString(slice, strLength, depth + 1) : rebalance(slice, strLength);
 		}
 
 		byte[] out = new byte[strLength];
@@ -206,17 +386,33 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		this.contents = contents;
 		this.offset = offset;
 		this.length = length;
+		depth = 0;
+	}
+
+	private LuaString(ByteBuffer contents, int offset, int length) {
+		super(Constants.TSTRING);
+		this.contents = contents;
+		this.offset = offset;
+		this.length = length;
+		depth = 0;
 	}
 
-	private LuaString(LuaValue[] contents, int length) {
+	private LuaString(LuaString[] contents, int length, int depth) {
 		super(Constants.TSTRING);
 		this.contents = contents;
 		offset = 0;
 		this.length = length;
+		this.depth = depth;
 	}
 
 	@Override
 	public String toString() {
+		if (contents instanceof ByteBuffer buffer) {
+			// The string needs its own copy anyway, so avoid creating an intermediate LuaString.
+			byte[] out = new byte[length];
+			buffer.get(offset, out);
+			return decode(out, 0, length);
+		}
 		return decode(bytes(), offset, length);
 	}
 
@@ -237,66 +433,197 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 
 	/**
 	 * Flatten a nested list of {@link LuaString}s into a single {@link byte[]}.
+	 * <p>
+	 * This must not be called on buffer-backed strings, see {@link #onHeap()} instead.
 	 *
 	 * @return The flattened array.
 	 */
 	private byte[] flatten() {
+		if (contents instanceof ByteBuffer) throw new IllegalStateException("Cannot flatten a buffer-backed string");
+
 		byte[] out = new byte[length];
-		int position = 0;
+		copyRange(0, out, 0, length);
+		contents = out;
+		return out;
+	}
 
-		// We maintain a stack of values to avoid blowing the actual stack. Previous versions used to maintain this
-		// stack by maintaining a linked list on the rope (avoiding allocations), but it's not clear if that's worth it
-		// in practice.
-		Deque<LuaString> queue;
-		LuaString string;
-
-		// Try to handle the easy case of having a list of byte[]s. In this case, we don't have to recurse, so can avoid
-		// allocating the stack.
-		rope:
-		{
-			LuaString[] strings = (LuaString[]) contents;
-			for (int i = 0; i < strings.length; i++) {
-				string = strings[i];
-				Object contents = string.contents;
-				if (contents instanceof byte[] bytes) {
-					System.arraycopy(bytes, string.offset, out, position, string.length);
-					position += string.length;
-				} else {
-					// We've got a more complex value, so add the remaining values to the queue and then begin to work.
-					queue = new ArrayDeque<>(Math.max(4, strings.length - i));
-					i++;
-					for (; i < strings.length; i++) queue.addLast(strings[i]);
-					break rope;
-				}
+	/**
+	 * Get a version of this string backed by a byte array (or a rope). Buffer-backed strings are copied, and so this
+	 * should only be used by less common operations.
+	 *
+	 * @return A string with the same contents, which is safe to call {@link #bytes()} on.
+	 */
+	private LuaString onHeap() {
+		if (!(contents instanceof ByteBuffer)) return this;
+
+		byte[] out = new byte[length];
+		copyRange(0, out, 0, length);
+		return new LuaString(out, 0, length);
+	}
+
+	/**
+	 * Get a view of this string's contents.
+	 *
+	 * @return A buffer containing this string's contents, from position 0 to {@link #length}.
+	 */
+	private ByteBuffer view() {
+		return contents instanceof ByteBuffer buffer
+			? buffer.slice(offset, length)
+			: ByteBuffer.wrap(bytes(), offset, length).slice();
+	}
+
+	/**
+	 * Flatten this string if it is a rope. This should be called before sharing a string with other threads, as
+	 * flattening a rope is not thread-safe.
+	 *
+	 * @see Prototype#share()
+	 */
+	void flattenRope() {
+		if (contents instanceof LuaString[]) flatten();
+	}
+
+	private int depth() {
+		return contents instanceof LuaString[] ? depth : 0;
+	}
+
+	//region Ropes
+
+	/**
+	 * Copy a region of this string into a byte array. Unlike {@link #bytes()}, this does not flatten ropes.
+	 *
+	 * @param start      The offset into this string.
+	 * @param dest       The array to copy to.
+	 * @param destOffset The offset into the destination array.
+	 * @param length     The number of bytes to copy.
+	 */
+	private void copyRange(int start, byte[] dest, int destOffset, int length) {
+		Object contents = this.contents;
+		if (contents instanceof byte[] bytes) {
+			System.arraycopy(bytes, offset + start, dest, destOffset, length);
+			return;
+		} else if (contents instanceof ByteBuffer buffer) {
+			buffer.get(offset + start, dest, destOffset, length);
+			return;
+		}
+
+		for (LuaString child : (LuaString[]) contents) {
+			if (length == 0) break;
+			if (start >= child.length) {
+				start -= child.length;
+				continue;
 			}
 
-			contents = out;
-			return out;
+			int childLength = Math.min(length, child.length - start);
+			child.copyRange(start, dest, destOffset, childLength);
+			destOffset += childLength;
+			length -= childLength;
+			start = 0;
 		}
+	}
 
-		// If we were unable to unpack the string in the initial pass, loop through expanding the rope.
-		while (true) {
-			Object contents = string.contents;
-			if (contents instanceof byte[] bytes) {
-				System.arraycopy(bytes, string.offset, out, position, string.length);
-				position += string.length;
+	private void write(ByteSink output) throws IOException {
+		Object contents = this.contents;
+		if (contents instanceof byte[] bytes) {
+			output.write(bytes, offset, length);
+		} else if (contents instanceof ByteBuffer buffer) {
+			byte[] chunk = new byte[Math.min(length, BUFFER_CHUNK_SIZE)];
+			for (int i = 0; i < length; i += chunk.length) {
+				int n = Math.min(chunk.length, length - i);
+				buffer.get(offset + i, chunk, 0, n);
+				output.write(chunk, 0, n);
+			}
+		} else {
+			for (LuaString child : (LuaString[]) contents) child.write(output);
+		}
+	}
+
+	@FunctionalInterface
+	private interface ByteSink {
+		void write(byte[] bytes, int offset, int length) throws IOException;
+	}
 
-				string = queue.pollFirst();
-				if (string == null) break;
+	/**
+	 * Create a balanced rope from a list of strings.
+	 * <p>
+	 * This collects the leaves of all strings, merging adjacent short leaves together, and then builds a new tree of
+	 * depth {@code log(leaves)} from them. This is linear in the number of leaves, and only happens once every
+	 * {@code MAX_ROPE_DEPTH - log(leaves)} concatenations, so repeatedly appending to a string stays cheap.
+	 *
+	 * @param strings The strings to concatenate.
+	 * @param length  The total length of the strings.
+	 * @return The rebalanced rope.
+	 */
+	private static LuaString rebalance(LuaString[] strings, int length) {
+		RopeBuilder builder = new RopeBuilder();
+		for (LuaString string : strings) builder.add(string);
+		builder.flushChunk();
+
+		return builder.build(0, builder.leaves.size(), length);
+	}
+
+	private static final class RopeBuilder {
+		final List<LuaString> leaves = new ArrayList<>();
+		private byte @Nullable [] chunk;
+		private int chunkLength;
+
+		void add(LuaString string) {
+			if (string.contents instanceof LuaString[] children) {
+				for (LuaString child : children) add(child);
+			} else if (string.length >= ROPE_CHUNK_SIZE / 2) {
+				// Long strings are kept as they are. This ensures bytes are not copied again on every rebalance.
+				flushChunk();
+				leaves.add(string);
 			} else {
-				LuaString[] newStrings = (LuaString[]) contents;
-				for (int i = newStrings.length - 1; i > 0; i--) queue.addFirst(newStrings[i]);
-				string = newStrings[0];
+				if (chunk == null || chunkLength + string.length > ROPE_CHUNK_SIZE) {
+					flushChunk();
+					chunk = new byte[ROPE_CHUNK_SIZE];
+				}
+
+				string.copyRange(0, chunk, chunkLength, string.length);
+				chunkLength += string.length;
 			}
 		}
 
-		contents = out;
-		return out;
+		void flushChunk() {
+			if (chunk != null && chunkLength > 0) leaves.add(new LuaString(chunk, 0, chunkLength));
+			chunk = null;
+			chunkLength = 0;
+		}
+
+		LuaString build(int start, int end, int length) {
+			int count = end - start;
+			if (count == 1) return leaves.get(start);
+
+			int groups = Math.min(count, ROPE_FANOUT);
+			LuaString[] children = new LuaString[groups];
+			int depth = 0;
+			for (int i = 0; i < groups; i++) {
+				int childStart = start + count * i / groups, childEnd = start + count * (i + 1) / groups;
+				int childLength = 0;
+				for (int j = childStart; j < childEnd; j++) childLength += leaves.get(j).length;
+
+				LuaString child = children[i] = build(childStart, childEnd, childLength);
+				depth = Math.max(depth, child.depth());
+			}
+
+			return new LuaString(children, length, depth + 1);
+		}
 	}
+	// endregion
 
 	//region Equality and comparison
 	@Override
 	public int compareTo(LuaString rhs) {
+		if (contents instanceof ByteBuffer || rhs.contents instanceof ByteBuffer) {
+			ByteBuffer buffer = view(), rhsBuffer = rhs.view();
+			int mismatch = buffer.mismatch(rhsBuffer);
+			if (mismatch < 0) return 0;
+			if (mismatch < length && mismatch < rhs.length) {
+				return Byte.compareUnsigned(buffer.get(mismatch), rhsBuffer.get(mismatch));
+			}
+			return length - rhs.length;
+		}
+
 		byte[] bytes = bytes(), rhsBytes = rhs.bytes();
 		// Find the first mismatched character in 0..n
 		int len = Math.min(length, rhs.length);
@@ -318,10 +645,14 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		if (contents == s.contents && s.offset == offset) return true;
 		if (s.hashCode() != hashCode()) return false;
 
+		if (contents instanceof ByteBuffer || s.contents instanceof ByteBuffer) return view().equals(s.view());
 		return equals(bytes(), offset, s.bytes(), s.offset, length);
 	}
 
 	public static boolean equals(LuaString a, int aOffset, LuaString b, int bOffset, int length) {
+		if (a.contents instanceof ByteBuffer || b.contents instanceof ByteBuffer) {
+			return a.view().slice(aOffset, length).equals(b.view().slice(bOffset, length));
+		}
 		return equals(a.bytes(), a.offset + aOffset, b.bytes(), b.offset + bOffset, length);
 	}
 
@@ -334,38 +665,149 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 		int h = hashCode;
 		if (h != 0) return h;
 
-		byte[] bytes = bytes();
+		Object contents = this.contents;
+		if (contents instanceof byte[] bytes) return hashCode = hash(bytes, offset, length);
+		if (contents instanceof ByteBuffer buffer) return hashCode = hash(buffer, offset, length);
 
-		h = length;  /* seed */
-		int step = (length >> 5) + 1;  /* if string is too long, don't hash all its chars */
-		for (int l1 = length; l1 >= step; l1 -= step)  /* compute hash */ {
-			h = h ^ ((h << 5) + (h >> 2) + (((int) bytes[offset + l1 - 1]) & 0x0FF));
+		// Hash each leaf of the rope in turn, rather than flattening it.
+		RopeHasher hasher = new RopeHasher();
+		try {
+			write(hasher);
+		} catch (IOException e) {
+			throw new IllegalStateException("Hashing cannot fail", e);
+		}
+		return hashCode = hasher.finish(length);
+	}
+
+	/**
+	 * Compute the hash of a string.
+	 * <p>
+	 * This hashes the whole string eight bytes at a time, mixing each word into the hash with a 64x64 to 128-bit
+	 * multiply (as in wyhash), and is seeded with {@link #HASH_SEED}.
+	 *
+	 * @param bytes  The array containing the string.
+	 * @param offset The offset into the array.
+	 * @param length The length of the string.
+	 * @return The string's hash.
+	 */
+	private static int hash(byte[] bytes, int offset, int length) {
+		long h = HASH_SEED ^ HASH_P0;
+
+		int i = 0;
+		for (; i + 8 <= length; i += 8) h = mix(h ^ (long) LONG_VIEW.get(bytes, offset + i), HASH_P1);
+
+		long tail = 0;
+		for (int shift = 0; i < length; i++, shift += 8) tail |= (bytes[offset + i] & 0xFFL) << shift;
+
+		h = mix(h ^ tail, HASH_P2 ^ length);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Compute the hash of a buffer-backed string. This must be the same as {@link #hash(byte[], int, int)}.
+	 *
+	 * @param buffer The little-endian buffer containing the string.
+	 * @param offset The offset into the buffer.
+	 * @param length The length of the string.
+	 * @return The string's hash.
+	 */
+	private static int hash(ByteBuffer buffer, int offset, int length) {
+		long h = HASH_SEED ^ HASH_P0;
+
+		int i = 0;
+		for (; i + 8 <= length; i += 8) h = mix(h ^ buffer.getLong(offset + i), HASH_P1);
+
+		long tail = 0;
+		for (int shift = 0; i < length; i++, shift += 8) tail |= (buffer.get(offset + i) & 0xFFL) << shift;
+
+		h = mix(h ^ tail, HASH_P2 ^ length);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static long mix(long a, long b) {
+		return (a * b) ^ Math.multiplyHigh(a, b);
+	}
+
+	/**
+	 * Computes {@link #hash(byte[], int, int)} incrementally, one leaf of a rope at a time. Words may span several
+	 * leaves, so any trailing bytes of a leaf are kept until the next one completes the word.
+	 */
+	private static final class RopeHasher implements ByteSink {
+		private long hash = HASH_SEED ^ HASH_P0;
+		private long word;
+		private int wordLength;
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			int i = 0;
+			// Complete any partial word from the previous leaf.
+			for (; wordLength != 0 && i < length; i++) add(bytes[offset + i]);
+			for (; i + 8 <= length; i += 8) hash = mix(hash ^ (long) LONG_VIEW.get(bytes, offset + i), HASH_P1);
+			for (; i < length; i++) add(bytes[offset + i]);
+		}
+
+		private void add(byte b) {
+			word |= (b & 0xFFL) << (wordLength << 3);
+			if (++wordLength == 8) {
+				hash = mix(hash ^ word, HASH_P1);
+				word = 0;
+				wordLength = 0;
+			}
+		}
+
+		int finish(int length) {
+			long h = mix(hash ^ word, HASH_P2 ^ length);
+			return (int) (h ^ (h >>> 32));
 		}
-		return hashCode = h;
 	}
 	// endregion
 
 	// region String operations
 	public LuaString substringOfLen(int beginIndex, int length) {
-		return valueOf(bytes(), offset + beginIndex, length);
+		// Find the smallest part of the rope which contains this substring, and only copy from that.
+		LuaString string = this;
+		descend:
+		while (string.contents instanceof LuaString[] children) {
+			int childStart = beginIndex;
+			for (LuaString child : children) {
+				if (childStart < child.length) {
+					if (childStart + length > child.length) break descend;
+					string = child;
+					beginIndex = childStart;
+					continue descend;
+				}
+				childStart -= child.length;
+			}
+			break;
+		}
+
+		Object contents = string.contents;
+		if (contents instanceof byte[] bytes) return valueOf(bytes, string.offset + beginIndex, length);
+		if (contents instanceof ByteBuffer buffer && length >= RECENT_STRINGS_MAX_LENGTH) {
+			return new LuaString(buffer, string.offset + beginIndex, length);
+		}
+
+		byte[] out = new byte[length];
+		string.copyRange(beginIndex, out, 0, length);
+		return valueOf(out);
 	}
 
 	public LuaString substringOfEnd(int beginIndex, int endIndex) {
-		return valueOf(bytes(), offset + beginIndex, endIndex - beginIndex);
+		return substringOfLen(beginIndex, endIndex - beginIndex);
 	}
 
 	public LuaString substring(int beginIndex) {
-		return valueOf(bytes(), offset + beginIndex, length - 1);
+		return substringOfLen(beginIndex, length - 1);
 	}
 
 	public byte byteAt(int index) {
 		if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
-		return bytes()[offset + index];
+		return contents instanceof ByteBuffer buffer ? buffer.get(offset + index) : bytes()[offset + index];
 	}
 
 	public int charAt(int index) {
 		if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
-		return Byte.toUnsignedInt(bytes()[offset + index]);
+		return Byte.toUnsignedInt(contents instanceof ByteBuffer buffer ? buffer.get(offset + index) : bytes()[offset + index]);
 	}
 
 	public boolean startsWith(byte character) {
@@ -379,13 +821,36 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return index of first match in the {@code accept} string, or -1 if not found.
 	 */
 	public int indexOfAny(LuaString accept) {
-		byte[] bytes = bytes(), acceptBytes = accept.bytes();
-		final int limit = offset + length;
-		final int searchLimit = accept.offset + accept.length;
-		for (int i = offset; i < limit; ++i) {
-			for (int j = accept.offset; j < searchLimit; ++j) {
-				if (bytes[i] == acceptBytes[j]) return i - offset;
+		if (accept.length == 1) return indexOf(accept.byteAt(0));
+
+		if (accept.length <= SWAR_MAX_ACCEPT) {
+			long[] patterns = new long[accept.length];
+			for (int j = 0; j < accept.length; j++) patterns[j] = (accept.charAt(j) & 0xFFL) * SWAR_ONES;
+
+			int index = contents instanceof ByteBuffer buffer
+				? indexOfAny(buffer, offset, offset + length, patterns)
+				: indexOfAny(bytes(), offset, offset + length, patterns);
+			return index < 0 ? -1 : index - offset;
+		}
+
+		long[] set = new long[4];
+		for (int j = 0; j < accept.length; j++) {
+			int c = accept.charAt(j);
+			set[c >>> 6] |= 1L << c;
+		}
+
+		if (contents instanceof ByteBuffer buffer) {
+			for (int i = offset, limit = offset + length; i < limit; i++) {
+				int c = buffer.get(i) & 0xFF;
+				if ((set[c >>> 6] & (1L << c)) != 0) return i - offset;
 			}
+			return -1;
+		}
+
+		byte[] bytes = bytes();
+		for (int i = offset, limit = offset + length; i < limit; i++) {
+			int c = bytes[i] & 0xFF;
+			if ((set[c >>> 6] & (1L << c)) != 0) return i - offset;
 		}
 		return -1;
 	}
@@ -397,32 +862,62 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return index of first match found, or -1 if not found.
 	 */
 	public int indexOf(byte b) {
-		byte[] bytes = bytes();
-		for (int i = 0, j = offset; i < length; ++i) {
-			if (bytes[j++] == b) {
-				return i;
-			}
-		}
-		return -1;
+		int index = contents instanceof ByteBuffer buffer
+			? indexOf(buffer, offset, offset + length, b)
+			: indexOf(bytes(), offset, offset + length, b);
+		return index < 0 ? -1 : index - offset;
 	}
 
 	/**
 	 * Find the index of a string starting at a point in this string
+	 * <p>
+	 * Short needles are found by scanning for their first byte, and then checking the rest of the string. Longer
+	 * needles in longer strings use Boyer-Moore-Horspool instead.
 	 *
 	 * @param search the string to search for
 	 * @param start  the first index in the string
 	 * @return index of first match found, or -1 if not found.
 	 */
 	public int indexOf(LuaString search, int start) {
-		byte[] bytes = bytes(), searchBytes = search.bytes();
 		final int searchLen = search.length();
+		if (searchLen == 0) return start <= length ? start : -1;
+
+		final LuaString needle = search.onHeap();
+		final byte[] searchBytes = needle.bytes();
+		final int searchOffset = needle.offset;
 		final int limit = offset + length - searchLen;
-		for (int i = offset + start; i <= limit; ++i) {
-			if (equals(bytes, i, searchBytes, search.offset, searchLen)) {
-				return i - offset;
+		int from = offset + start;
+		if (from > limit) return -1;
+
+		if (contents instanceof ByteBuffer buffer) {
+			if (searchLen >= HORSPOOL_MIN_NEEDLE && limit - from >= HORSPOOL_MIN_HAYSTACK) {
+				int index = horspool(buffer, from, limit, searchBytes, searchOffset, searchLen);
+				return index < 0 ? -1 : index - offset;
+			}
+
+			final byte first = searchBytes[searchOffset];
+			while (true) {
+				int index = indexOf(buffer, from, limit + 1, first);
+				if (index < 0) return -1;
+				if (equals(buffer, index + 1, searchBytes, searchOffset + 1, searchLen - 1)) return index - offset;
+				from = index + 1;
 			}
 		}
-		return -1;
+
+		byte[] bytes = bytes();
+
+		if (searchLen >= HORSPOOL_MIN_NEEDLE && limit - from >= HORSPOOL_MIN_HAYSTACK) {
+			int index = horspool(bytes, from, limit, searchBytes, searchOffset, searchLen);
+			return index < 0 ? -1 : index - offset;
+		}
+
+		final byte first = searchBytes[searchOffset];
+		while (true) {
+			int index = indexOf(bytes, from, limit + 1, first);
+			if (index < 0) return -1;
+			if (equals(bytes, index + 1, searchBytes, searchOffset + 1, searchLen - 1)) return index - offset;
+			from = index + 1;
+		}
 	}
 
 	/**
@@ -432,9 +927,197 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return index of last match found, or -1 if not found.
 	 */
 	public int lastIndexOf(byte c) {
-		byte[] bytes = bytes();
-		for (int i = offset + length - 1; i >= offset; i--) {
-			if (bytes[i] == c) return i;
+		int index = contents instanceof ByteBuffer buffer
+			? lastIndexOf(buffer, offset, offset + length, c)
+			: lastIndexOf(bytes(), offset, offset + length, c);
+		return index < 0 ? -1 : index - offset;
+	}
+
+	/**
+	 * Find the zero bytes in a word.
+	 *
+	 * @param word The word to check.
+	 * @return A word with the top bit of each byte set if that byte in {@code word} was zero.
+	 */
+	private static long swarZeroBytes(long word) {
+		return ~(((word & SWAR_LOW_BITS) + SWAR_LOW_BITS) | word | SWAR_LOW_BITS);
+	}
+
+	/**
+	 * Find a byte in an array, checking eight bytes at a time.
+	 *
+	 * @param bytes The array to search.
+	 * @param from  The first index to check.
+	 * @param to    The index to stop checking at (exclusive).
+	 * @param b     The byte to find.
+	 * @return The index of the byte, or {@code -1} if not found.
+	 */
+	public static int indexOf(byte[] bytes, int from, int to, byte b) {
+		long pattern = (b & 0xFFL) * SWAR_ONES;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long found = swarZeroBytes((long) LONG_VIEW.get(bytes, i) ^ pattern);
+			if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+		}
+		for (; i < to; i++) {
+			if (bytes[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a byte in a little-endian buffer, checking eight bytes at a time.
+	 *
+	 * @param buffer The buffer to search.
+	 * @param from   The first index to check.
+	 * @param to     The index to stop checking at (exclusive).
+	 * @param b      The byte to find.
+	 * @return The index of the byte, or {@code -1} if not found.
+	 * @see #indexOf(byte[], int, int, byte)
+	 */
+	private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+		long pattern = (b & 0xFFL) * SWAR_ONES;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long found = swarZeroBytes(buffer.getLong(i) ^ pattern);
+			if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+		}
+		for (; i < to; i++) {
+			if (buffer.get(i) == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the last occurrence of a byte in an array, checking eight bytes at a time.
+	 *
+	 * @param bytes The array to search.
+	 * @param from  The first index to check.
+	 * @param to    The index to stop checking at (exclusive).
+	 * @param b     The byte to find.
+	 * @return The index of the byte, or {@code -1} if not found.
+	 */
+	private static int lastIndexOf(byte[] bytes, int from, int to, byte b) {
+		long pattern = (b & 0xFFL) * SWAR_ONES;
+		int i = to;
+		for (; i - 8 >= from; i -= 8) {
+			long found = swarZeroBytes((long) LONG_VIEW.get(bytes, i - 8) ^ pattern);
+			if (found != 0) return i - 8 + ((63 - Long.numberOfLeadingZeros(found)) >>> 3);
+		}
+		for (i--; i >= from; i--) {
+			if (bytes[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the last occurrence of a byte in a little-endian buffer, checking eight bytes at a time.
+	 *
+	 * @param buffer The buffer to search.
+	 * @param from   The first index to check.
+	 * @param to     The index to stop checking at (exclusive).
+	 * @param b      The byte to find.
+	 * @return The index of the byte, or {@code -1} if not found.
+	 * @see #lastIndexOf(byte[], int, int, byte)
+	 */
+	private static int lastIndexOf(ByteBuffer buffer, int from, int to, byte b) {
+		long pattern = (b & 0xFFL) * SWAR_ONES;
+		int i = to;
+		for (; i - 8 >= from; i -= 8) {
+			long found = swarZeroBytes(buffer.getLong(i - 8) ^ pattern);
+			if (found != 0) return i - 8 + ((63 - Long.numberOfLeadingZeros(found)) >>> 3);
+		}
+		for (i--; i >= from; i--) {
+			if (buffer.get(i) == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find any of a small set of bytes in an array, checking eight bytes at a time.
+	 *
+	 * @param bytes    The array to search.
+	 * @param from     The first index to check.
+	 * @param to       The index to stop checking at (exclusive).
+	 * @param patterns The bytes to find, each repeated across a word.
+	 * @return The index of the first matching byte, or {@code -1} if not found.
+	 */
+	private static int indexOfAny(byte[] bytes, int from, int to, long[] patterns) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = (long) LONG_VIEW.get(bytes, i), found = 0;
+			for (long pattern : patterns) found |= swarZeroBytes(word ^ pattern);
+			if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+		}
+		for (; i < to; i++) {
+			for (long pattern : patterns) {
+				if (bytes[i] == (byte) pattern) return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find any of a small set of bytes in a little-endian buffer, checking eight bytes at a time.
+	 *
+	 * @param buffer   The buffer to search.
+	 * @param from     The first index to check.
+	 * @param to       The index to stop checking at (exclusive).
+	 * @param patterns The bytes to find, each repeated across a word.
+	 * @return The index of the first matching byte, or {@code -1} if not found.
+	 * @see #indexOfAny(byte[], int, int, long[])
+	 */
+	private static int indexOfAny(ByteBuffer buffer, int from, int to, long[] patterns) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = buffer.getLong(i), found = 0;
+			for (long pattern : patterns) found |= swarZeroBytes(word ^ pattern);
+			if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+		}
+		for (; i < to; i++) {
+			for (long pattern : patterns) {
+				if (buffer.get(i) == (byte) pattern) return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equals(ByteBuffer a, int aOffset, byte[] b, int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a.get(aOffset + i) != b[bOffset + i]) return false;
+		}
+		return true;
+	}
+
+	private static int horspool(byte[] bytes, int from, int limit, byte[] search, int searchOffset, int searchLen) {
+		int[] shift = new int[256];
+		Arrays.fill(shift, searchLen);
+		for (int j = 0; j < searchLen - 1; j++) shift[search[searchOffset + j] & 0xFF] = searchLen - 1 - j;
+
+		final byte last = search[searchOffset + searchLen - 1];
+		for (int i = from; i <= limit; ) {
+			byte c = bytes[i + searchLen - 1];
+			if (c == last && equals(bytes, i, search, searchOffset, searchLen - 1)) return i;
+			i += shift[c & 0xFF];
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a string in a buffer using Boyer-Moore-Horspool.
+	 *
+	 * @see #horspool(byte[], int, int, byte[], int, int)
+	 */
+	private static int horspool(ByteBuffer buffer, int from, int limit, byte[] search, int searchOffset, int searchLen) {
+		int[] shift = new int[256];
+		Arrays.fill(shift, searchLen);
+		for (int j = 0; j < searchLen - 1; j++) shift[search[searchOffset + j] & 0xFF] = searchLen - 1 - j;
+
+		final byte last = search[searchOffset + searchLen - 1];
+		for (int i = from; i <= limit; ) {
+			byte c = buffer.get(i + searchLen - 1);
+			if (c == last && equals(buffer, i, search, searchOffset, searchLen - 1)) return i;
+			i += shift[c & 0xFF];
 		}
 		return -1;
 	}
@@ -449,7 +1132,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @throws IOException If the underlying writer fails.
 	 */
 	public void write(DataOutput output) throws IOException {
-		output.write(bytes(), offset, length);
+		write(output::write);
 	}
 
 	/**
@@ -459,7 +1142,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @throws IOException If the underlying writer fails.
 	 */
 	public void write(OutputStream output) throws IOException {
-		output.write(bytes(), offset, length);
+		write(output::write);
 	}
 
 	/**
@@ -468,7 +1151,8 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return {@link InputStream} whose data matches the bytes in this {@link LuaString}
 	 */
 	public InputStream toInputStream() {
-		return new ByteArrayInputStream(bytes(), offset, length);
+		LuaString string = onHeap();
+		return new ByteArrayInputStream(string.bytes(), string.offset, length);
 	}
 
 	/**
@@ -477,7 +1161,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return A view over the underlying string.
 	 */
 	public ByteBuffer toBuffer() {
-		return ByteBuffer.wrap(bytes(), offset, length).asReadOnlyBuffer();
+		return view().asReadOnlyBuffer();
 	}
 
 	/**
@@ -491,7 +1175,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 */
 	public int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len) {
 		if (strOffset < 0 || len > length - strOffset) throw new IndexOutOfBoundsException();
-		System.arraycopy(bytes(), offset + strOffset, bytes, arrayOffset, len);
+		copyRange(strOffset, bytes, arrayOffset, len);
 		return arrayOffset + len;
 	}
 
@@ -503,8 +1187,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @return The next byte free
 	 */
 	public int copyTo(byte[] dest, int destOffset) {
-		// We could avoid unpacking the bytes here, but it's not clear it's worth it.
-		System.arraycopy(bytes(), offset, dest, destOffset, length);
+		copyRange(0, dest, destOffset, length);
 		return destOffset + length;
 	}
 	// endregion
@@ -519,11 +1202,7 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	 * @see #encode(String, byte[], int)
 	 */
 	private static String decode(byte[] bytes, int offset, int length) {
-		char[] chars = new char[length];
-		for (int i = 0; i < length; i++) {
-			chars[i] = ((char) (bytes[offset + i] & 0xFF));
-		}
-		return String.valueOf(chars);
+		return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -631,9 +1310,29 @@ public final class LuaString extends LuaValue implements Comparable<LuaString> {
 	private double scanNumber(int base) {
 		if (base < 2 || base > 36) return Double.NaN;
 
-		byte[] bytes = bytes();
+		if (contents instanceof ByteBuffer buffer) {
+			// Mapped strings may be very large, so check the string could be a number before copying it onto the heap.
+			// Numbers only contain letters, digits, signs and '.', so most other strings are rejected almost immediately.
+			int i = offset, j = offset + length;
+			while (i < j && StringLib.isWhitespace(buffer.get(i))) i++;
+			while (i < j && StringLib.isWhitespace(buffer.get(j - 1))) j--;
+			for (int k = i; k < j; k++) {
+				if (!isNumberChar(buffer.get(k))) return Double.NaN;
+			}
+
+			byte[] bytes = new byte[j - i];
+			buffer.get(i, bytes);
+			return scanNumber(base, bytes, 0, bytes.length);
+		}
+
+		return scanNumber(base, bytes(), offset, offset + length);
+	}
+
+	private static boolean isNumberChar(byte c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '.' || c == '+' || c == '-';
+	}
 
-		int i = offset, j = offset + length;
+	private static double scanNumber(int base, byte[] bytes, int i, int j) {
 		while (i < j && StringLib.isWhitespace(bytes[i])) i++;
 		while (i < j && StringLib.isWhitespace(bytes[j - 1])) j--;
 
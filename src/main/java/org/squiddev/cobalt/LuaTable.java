@@ -27,6 +27,7 @@ package org.squiddev.cobalt;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Map;
 
 import static org.squiddev.cobalt.Constants.*;
@@ -76,13 +77,35 @@ import static org.squiddev.cobalt.ValueFactory.*;
  */
 public final class LuaTable extends LuaValue {
 	private static final Object[] EMPTY_ARRAY = new Object[0];
-	private static final Node[] EMPTY_NODES = new Node[0];
+	private static final int[] EMPTY_NEXT = new int[0];
 	private static final LuaString N = valueOf("n");
 
 	private Object[] array = EMPTY_ARRAY;
-	private Node[] nodes = EMPTY_NODES;
+
+	/*
+	 * The array part of the table, when it only contains numbers. In this case array is empty, and nil is stored as
+	 * NaN. Storing any other value (including an actual NaN) converts the table back to using array.
+	 */
+	private double[] numbers;
+
+	/*
+	 * The hash part of the table is stored as three parallel arrays, rather than one node object per entry. Each
+	 * slot has a key and value (both NIL if the slot is free), and the index of the next slot in its collision chain
+	 * (or -1 if it is the end of the chain).
+	 */
+	private Object[] hashKeys = EMPTY_ARRAY;
+	private Object[] hashValues = EMPTY_ARRAY;
+	private int[] hashNext = EMPTY_NEXT;
 	private int lastFree = 0;
 
+	/*
+	 * Used to compute the table's length without searching. Every key in 1..border has a non-nil value, and
+	 * integerKeys counts the positive integer keys with a non-nil value. When the two are equal, border is the only
+	 * border of the table, and so is the table's length.
+	 */
+	private int border = 0;
+	private int integerKeys = 0;
+
 	private boolean weakKeys;
 	private boolean weakValues;
 
@@ -163,8 +186,8 @@ public final class LuaTable extends LuaValue {
 	 * @param nArray the number of array slots to preallocate in the table.
 	 */
 	public void presize(int nArray) {
-		if (nArray > array.length) {
-			resize(nodes.length, 1 << log2(nArray), false);
+		if (nArray > arrayLength()) {
+			resize(nArray, hashKeys.length, false);
 		}
 	}
 
@@ -192,6 +215,16 @@ public final class LuaTable extends LuaValue {
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
 			rehash(null, true);
+
+			// Values may have been collected while the table was weak, so recompute the length information.
+			int integerKeys = 0;
+			for (int i = 0, n = arrayLength(); i < n; i++) if (arrayHas(i)) integerKeys++;
+			for (int i = 0; i < hashKeys.length; i++) {
+				if (hashKeys[i] instanceof LuaInteger key && key.v > 0 && !hashValue(i).isNil()) integerKeys++;
+			}
+
+			this.border = 0;
+			this.integerKeys = integerKeys;
 		}
 	}
 
@@ -223,34 +256,59 @@ public final class LuaTable extends LuaValue {
 	 * @param count The number of values to move.
 	 */
 	public void move(int from, int to, int count) {
-		// TODO: Use System.arraycopy here where possible.
 		if (to >= from + count || to <= from) {
-			for (int i = 0; i < count; i++) rawset(to + i, rawget(from + i));
+			// Copy forwards. Any values at the start which lie within the array part are copied directly.
+			int direct = arrayMoveCount(from, to, count);
+			if (direct > 0) arrayMove(from - 1, to - 1, direct);
+			for (int i = direct; i < count; i++) rawset(to + i, rawget(from + i));
 		} else {
-			for (int i = count - 1; i >= 0; i--) rawset(to + i, rawget(from + i));
+			// Copy backwards. Values which lie outside the array part are copied first (which may grow the array), and
+			// then the remainder is copied directly.
+			int i = count - 1;
+			for (; i >= 0 && to + i > arrayLength(); i--) rawset(to + i, rawget(from + i));
+			if (i >= 0 && from >= 1) {
+				arrayMove(from - 1, to - 1, i + 1);
+			} else {
+				for (; i >= 0; i--) rawset(to + i, rawget(from + i));
+			}
 		}
 	}
 
 	public int length() {
-		int a = array.length;
+		// Values in weak tables may be removed at any time, so we cannot track the border.
+		if (!weakValues) {
+			// Extend the border if values have been set after it. We limit how far we go, so that repeatedly
+			// removing and re-adding a value near the start of a list doesn't scan the whole list each time.
+			int border = this.border;
+			for (int i = 0; i < 8 && border < integerKeys && has(border + 1); i++) border++;
+			this.border = border;
+
+			if (border == integerKeys) return border;
+		}
+
+		return findBorder();
+	}
+
+	private int findBorder() {
+		int a = arrayLength();
 		/*
 		 * Array cannot contain nil value, except if that array is statically allocated
 		 * So if the last element is nil it means we need to binary search the array to find
 		 * the first element non nil followed with a nil value
 		 */
-		if (a > 0 && rawget(a).isNil()) {
+		if (a > 0 && !has(a)) {
 			int n = a + 1, m = 0;
 			while (n - m > 1) {
 				int k = (m + n) / 2;
 
-				if (rawget(k).isNil()) {
+				if (!has(k)) {
 					n = k;
 				} else {
 					m = k;
 				}
 			}
 			return m;
-		} else if (nodes.length == 0) {
+		} else if (hashKeys.length == 0) {
 			// When no nodes are present and the last item is not nil,
 			// the size of the table is the exact same size its capacity,
 			// so we can directly return the array.length
@@ -258,13 +316,13 @@ public final class LuaTable extends LuaValue {
 		} else {
 			long i = a;
 			long j = i + 1;
-			while (!rawget((int) j).isNil()) {
+			while (has((int) j)) {
 				i = j;
 				j *= 2;
 				// Fallback to linear search, something is wrong
 				if (j > ((long) Integer.MAX_VALUE * 2) - 2) {
 					i = 1;
-					while (!rawget((int) i).isNil()) i++;
+					while (has((int) i)) i++;
 					return (int) i - 1;
 				}
 			}
@@ -272,7 +330,7 @@ public final class LuaTable extends LuaValue {
 			// Binary search
 			while (j - i > 1) {
 				int k = ((int) i + (int) j) / 2;
-				if (!rawget(k).isNil()) {
+				if (has(k)) {
 					i = k;
 				} else {
 					j = k;
@@ -291,9 +349,9 @@ public final class LuaTable extends LuaValue {
 	 */
 	public int size() {
 		int i = 0;
-		for (var k : array) if (!strengthen(k).isNil()) i++;
-		for (var e : nodes) {
-			if (!e.key().isNil() && !e.value().isNil()) i++;
+		for (int j = 0, n = arrayLength(); j < n; j++) if (arrayHas(j)) i++;
+		for (int slot = 0; slot < hashKeys.length; slot++) {
+			if (!hashKey(slot).isNil() && !hashValue(slot).isNil()) i++;
 		}
 		return i;
 	}
@@ -328,16 +386,17 @@ public final class LuaTable extends LuaValue {
 		int i = findIndex(key);
 		if (i < 0) throw new LuaError("invalid key to 'next'");
 
-		for (; i < array.length; i++) {
-			LuaValue value = strengthen(array[i]);
+		int arrayLength = arrayLength();
+		for (; i < arrayLength; i++) {
+			LuaValue value = arrayGet(i);
 			if (!value.isNil()) return varargsOf(valueOf(i + 1), value);
 		}
 
-		i -= array.length;
-		for (; i < nodes.length; i++) {
-			Node node = nodes[i];
-			LuaValue value = node.value();
-			if (!node.key().isNil() && !value.isNil()) return varargsOf(node.key(), value);
+		i -= arrayLength;
+		for (; i < hashKeys.length; i++) {
+			LuaValue value = hashValue(i);
+			LuaValue nextKey = hashKey(i);
+			if (!nextKey.isNil() && !value.isNil()) return varargsOf(nextKey, value);
 		}
 
 		return NIL;
@@ -355,24 +414,10 @@ public final class LuaTable extends LuaValue {
 
 		// Its in the array part so just return that
 		int arrayIndex = arraySlot(key);
-		if (arrayIndex > 0 && arrayIndex <= array.length) return arrayIndex;
-		if (nodes.length == 0) return -1;
-
-		// Must be in the main part so try to find it in the chain.
-		int idx = hashSlot(key);
-		Node node = nodes[idx];
-		while (true) {
-			if (node.key().equals(key)) {
-				return idx + array.length + 1;
-			}
+		if (arrayIndex > 0 && arrayIndex <= arrayLength()) return arrayIndex;
 
-			if (node.next >= 0) {
-				idx = node.next;
-				node = nodes[node.next];
-			} else {
-				return -1;
-			}
-		}
+		int slot = findSlot(key);
+		return slot < 0 ? -1 : slot + arrayLength() + 1;
 	}
 
 	private static int hashpow2(int hashCode, int mask) {
@@ -420,7 +465,7 @@ public final class LuaTable extends LuaValue {
 	 * @return slot to use
 	 */
 	private int hashSlot(LuaValue key) {
-		return hashSlot(key, nodes.length - 1);
+		return hashSlot(key, hashKeys.length - 1);
 	}
 
 	private void dropWeakArrayValues() {
@@ -482,14 +527,13 @@ public final class LuaTable extends LuaValue {
 		for (lg = 0, ttlg = 1; lg <= 31; lg++, ttlg *= 2) {
 			int lc = 0;
 			int lim = ttlg;
-			if (lim > array.length) {
-				lim = array.length; // Adjust upper limit
+			if (lim > arrayLength()) {
+				lim = arrayLength(); // Adjust upper limit
 				if (i > lim) break;
 			}
 
 			for (; i <= lim; i++) {
-				LuaValue value = strengthen(array[i - 1]);
-				if (!value.isNil()) lc++;
+				if (arrayHas(i - 1)) lc++;
 			}
 			nums[lg] += lc;
 			ause += lc;
@@ -500,13 +544,19 @@ public final class LuaTable extends LuaValue {
 
 	private void setNodeVector(int size) {
 		if (size == 0) {
-			nodes = EMPTY_NODES;
+			hashKeys = hashValues = EMPTY_ARRAY;
+			hashNext = EMPTY_NEXT;
 			lastFree = 0;
 		} else {
 			int lsize = log2(size);
 			size = 1 << lsize;
-			Node[] nodes = this.nodes = new Node[size];
-			for (int i = 0; i < size; i++) nodes[i] = new Node(weakKeys, weakValues);
+
+			Object[] keys = hashKeys = new Object[size];
+			Object[] values = hashValues = new Object[size];
+			int[] next = hashNext = new int[size];
+			Arrays.fill(keys, NIL);
+			Arrays.fill(values, NIL);
+			Arrays.fill(next, -1);
 
 			// All positions are free
 			lastFree = size - 1;
@@ -514,32 +564,34 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private void resize(int newArraySize, int newHashSize, boolean modeChange) {
-		int oldArraySize = array.length;
-		int oldHashSize = nodes.length;
+		int oldArraySize = arrayLength();
+		int oldHashSize = hashKeys.length;
 
-		if (newArraySize != 0 && newHashSize != 0 && newArraySize == oldArraySize && newHashSize == oldHashSize && !modeChange) {
-			throw new IllegalStateException("Attempting to resize with no change");
-		}
+		// Moving values between the array and hash part doesn't change the table's contents.
+		int border = this.border, integerKeys = this.integerKeys;
+
+		// Note that the new sizes may be the same as the old ones. This still frees up space in the hash part, as dead
+		// keys are not copied across.
 
 		// Array part must grow
-		if (newArraySize > oldArraySize) {
-			array = setArrayVector(array, newArraySize, modeChange, weakValues);
-		}
+		if (newArraySize > oldArraySize) setArraySize(newArraySize, modeChange);
 
-		Node[] oldNode = nodes;
+		Object[] oldKeys = hashKeys;
+		Object[] oldValues = hashValues;
 		setNodeVector(newHashSize);
 
 		if (newArraySize < oldArraySize) {
 			Object[] oldArray = array;
-			array = setArrayVector(oldArray, newArraySize, modeChange, weakValues);
+			double[] oldNumbers = numbers;
+			setArraySize(newArraySize, modeChange);
 
 			// Copy values out of array part into the hash
 			for (int i = newArraySize; i < oldArraySize; i++) {
-				LuaValue value = strengthen(oldArray[i]);
+				LuaValue value = oldNumbers == null ? strengthen(oldArray[i]) : numberValue(oldNumbers[i]);
 				if (!value.isNil()) rawset(i + 1, value);
 			}
 
-		} else if (newArraySize == oldArraySize && modeChange) {
+		} else if (newArraySize == oldArraySize && modeChange && numbers == null) {
 			Object[] values = array;
 			for (int i = 0; i < oldArraySize; i++) {
 				LuaValue value = strengthen(values[i]);
@@ -549,11 +601,15 @@ public final class LuaTable extends LuaValue {
 
 		// Re-insert elements from hash part
 		for (int i = oldHashSize - 1; i >= 0; i--) {
-			Node old = oldNode[i];
-			LuaValue key = old.key();
-			LuaValue value = old.value();
+			LuaValue key = strengthen(oldKeys[i]);
+			LuaValue value = strengthen(oldValues[i]);
 			if (!key.isNil() && !value.isNil()) rawset(key, value);
 		}
+
+		if (newArraySize != oldArraySize && numbers == null) specialise();
+
+		this.border = border;
+		this.integerKeys = integerKeys;
 	}
 
 	private void rehash(LuaValue extraKey, boolean mode) {
@@ -564,14 +620,14 @@ public final class LuaTable extends LuaValue {
 		int arrayCount = numUseArray(nums); // Number of keys in the array part
 		int totalCount = arrayCount; // Number of values in total
 
-		// Count the number of hash values that can be moved to the array, as well as the total count.
+		// Count the number of hash values that can be moved to the array, as well as the total count. Dead keys (those
+		// with a nil value) are skipped, as they will not be copied into the new table.
 		// See numusehash in ltable.c
 		{
-			int i = nodes.length;
+			int i = hashKeys.length;
 			while (--i >= 0) {
-				Node node = nodes[i];
-				LuaValue key = node.key();
-				if (!key.isNil()) {
+				LuaValue key = hashKey(i);
+				if (!key.isNil() && !hashValue(i).isNil()) {
 					arrayCount += countInt(key, nums);
 					totalCount++;
 				}
@@ -611,20 +667,183 @@ public final class LuaTable extends LuaValue {
 	}
 	//endregion
 
+	//region Array part
+
+	private int arrayLength() {
+		double[] numbers = this.numbers;
+		return numbers == null ? array.length : numbers.length;
+	}
+
+	private boolean arrayHas(int index) {
+		double[] numbers = this.numbers;
+		if (numbers == null) return !strengthen(array[index]).isNil();
+
+		double value = numbers[index];
+		return value == value;
+	}
+
+	private LuaValue arrayGet(int index) {
+		double[] numbers = this.numbers;
+		return numbers == null ? strengthen(array[index]) : numberValue(numbers[index]);
+	}
+
+	private void arraySet(int index, LuaValue value) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			if (value instanceof LuaInteger integer) {
+				numbers[index] = integer.v;
+				return;
+			} else if (value instanceof LuaDouble number && !Double.isNaN(number.v)) {
+				numbers[index] = number.v;
+				return;
+			} else if (value == NIL) {
+				numbers[index] = Double.NaN;
+				return;
+			}
+
+			despecialise();
+		}
+
+		array[index] = weakValues ? weaken(value) : value;
+	}
+
+	/**
+	 * Determine how many values at the start of a {@link #move(int, int, int)} can be copied within the array part.
+	 *
+	 * @param from  The start position.
+	 * @param to    The destination position.
+	 * @param count The number of values to move.
+	 * @return The number of values which can be moved with {@link #arrayMove(int, int, int)}.
+	 */
+	private int arrayMoveCount(int from, int to, int count) {
+		if (from < 1 || to < 1) return 0;
+		return Math.max(0, Math.min(count, arrayLength() - Math.max(from, to) + 1));
+	}
+
+	/**
+	 * Move values within the array part, updating the {@link #border} and {@link #integerKeys}.
+	 *
+	 * @param from  The start index (0-based).
+	 * @param to    The destination index (0-based).
+	 * @param count The number of values to move. Both ranges must lie within the array part.
+	 */
+	private void arrayMove(int from, int to, int count) {
+		int removed = 0, added = 0;
+		for (int i = 0; i < count; i++) {
+			if (arrayHas(to + i)) removed++;
+			if (arrayHas(from + i)) added++;
+		}
+
+		double[] numbers = this.numbers;
+		if (numbers == null) {
+			System.arraycopy(array, from, array, to, count);
+		} else {
+			System.arraycopy(numbers, from, numbers, to, count);
+		}
+
+		integerKeys += added - removed;
+		// If we've copied a nil before the border, then move it back to be safe. The next call to length() will find
+		// the new border.
+		if (added < count && to < border) border = to;
+	}
+
+	private void setArraySize(int size, boolean modeChange) {
+		double[] numbers = this.numbers;
+		if (numbers == null) {
+			array = setArrayVector(array, size, modeChange, weakValues);
+		} else {
+			int oldSize = numbers.length;
+			numbers = this.numbers = Arrays.copyOf(numbers, size);
+			if (size > oldSize) Arrays.fill(numbers, oldSize, size, Double.NaN);
+		}
+	}
+
+	private static LuaValue numberValue(double value) {
+		return value == value ? valueOf(value) : NIL;
+	}
+
+	private static boolean isArrayNumber(LuaValue value) {
+		return value instanceof LuaInteger || (value instanceof LuaDouble number && !Double.isNaN(number.v));
+	}
+
+	/**
+	 * Switch the array part to a {@code double[]} if it only contains numbers.
+	 */
+	private void specialise() {
+		Object[] array = this.array;
+		boolean any = false;
+		for (Object value : array) {
+			if (value == NIL) continue;
+			if (!(value instanceof LuaValue luaValue) || !isArrayNumber(luaValue)) return;
+			any = true;
+		}
+		if (!any) return;
+
+		double[] numbers = new double[array.length];
+		for (int i = 0; i < array.length; i++) {
+			Object value = array[i];
+			numbers[i] = value == NIL ? Double.NaN : ((LuaValue) value).toDouble();
+		}
+
+		this.numbers = numbers;
+		this.array = EMPTY_ARRAY;
+	}
+
+	/**
+	 * Switch the array part back to an {@code Object[]}, so that it can store non-numeric values.
+	 */
+	private void despecialise() {
+		double[] numbers = this.numbers;
+		Object[] array = new Object[numbers.length];
+		for (int i = 0; i < numbers.length; i++) array[i] = numberValue(numbers[i]);
+
+		this.array = array;
+		this.numbers = null;
+	}
+	//endregion
+
 	//region Getting/setting
 
+	/**
+	 * Get the key in a hash slot, converting it to a strong reference if required. If the key has been garbage
+	 * collected, then this clears the slot's value (marking it as "dead").
+	 *
+	 * @param slot The hash slot.
+	 * @return The slot's key, or {@link Constants#NIL} if the slot is empty.
+	 */
+	private LuaValue hashKey(int slot) {
+		Object key = hashKeys[slot];
+		if (key instanceof LuaValue) return (LuaValue) key;
+
+		LuaValue strengthened = strengthen(key);
+		if (strengthened.isNil()) hashValues[slot] = NIL; // We preserve the key so we can check it is nil
+		return strengthened;
+	}
+
+	/**
+	 * Get the value in a hash slot, converting it to a strong reference if required.
+	 *
+	 * @param slot The hash slot.
+	 * @return The slot's value.
+	 */
+	private LuaValue hashValue(int slot) {
+		Object value = hashValues[slot];
+		if (value instanceof LuaValue) return (LuaValue) value;
+
+		LuaValue strengthened = strengthen(value);
+		if (strengthened.isNil()) hashValues[slot] = NIL;
+		return strengthened;
+	}
+
 	/**
 	 * Get the first free slot in the map
 	 *
 	 * @return The first slot in the map
 	 */
 	private int getFreePos() {
-		if (nodes.length == 0) return -1;
+		if (hashKeys.length == 0) return -1;
 		while (lastFree >= 0) {
-			Node last = nodes[lastFree--];
-			if (last.key == NIL) {
-				return lastFree + 1;
-			}
+			if (hashKeys[lastFree--] == NIL) return lastFree + 1;
 		}
 
 		return -1;
@@ -638,134 +857,230 @@ public final class LuaTable extends LuaValue {
 	 * colliding node is in its main position and the new key goes to an empty position.
 	 *
 	 * @param key The key to set
+	 * @return The slot the key was inserted into, or {@code -1} if the table was rehashed instead.
 	 * @throws IllegalArgumentException If this key cannot be used.
 	 */
-	private Node newKey(LuaValue key) {
+	private int newKey(LuaValue key) {
 		if (key.isNil()) throw new IllegalArgumentException("table index is nil");
 
 		// Rehash and let the rawgetter handle it
-		if (nodes.length == 0) {
+		if (hashKeys.length == 0) {
 			rehash(key, false);
-			return null;
+			return -1;
 		}
 
-		Node mainNode = nodes[hashSlot(key)];
-		LuaValue mainKey = mainNode.key();
-		if (!mainKey.isNil() && !mainNode.value().isNil()) {
+		Object[] keys = hashKeys;
+		Object[] values = hashValues;
+		int[] next = hashNext;
+
+		int mainPos = hashSlot(key);
+		LuaValue mainKey = hashKey(mainPos);
+		if (!mainKey.isNil() && !hashValue(mainPos).isNil()) {
 			// If we've got a collision then
 			final int freePos = getFreePos();
 
 			if (freePos < 0) {
 				rehash(key, false);
-				return null;
+				return -1;
 			}
 
-			final Node freeNode = nodes[freePos];
-
 			int otherPos = hashSlot(mainKey);
-			Node otherNode = nodes[otherPos];
-
-			if (otherNode != mainNode) {
+			if (otherPos != mainPos) {
 				// If the colliding position isn't at its main position then we move it to a free position
 
 				// Walk the chain to find the node just before the desired one
-				while (nodes[otherNode.next] != mainNode) {
-					otherNode = nodes[otherNode.next];
-				}
+				while (next[otherPos] != mainPos) otherPos = next[otherPos];
 
 				// Rechain other to point to the free position
-				otherNode.next = freePos;
+				next[otherPos] = freePos;
 
 				// Copy colliding node into free position
-				freeNode.key = mainNode.key;
-				freeNode.value = mainNode.value;
-				freeNode.next = mainNode.next;
+				keys[freePos] = keys[mainPos];
+				values[freePos] = values[mainPos];
+				next[freePos] = next[mainPos];
 
 				// Clear main node
-				mainNode.next = -1;
-				mainNode.key = NIL;
-				mainNode.value = NIL;
+				next[mainPos] = -1;
+				keys[mainPos] = NIL;
+				values[mainPos] = NIL;
 			} else {
 				// Colliding node is in the main position so we will assign to a free position.
 
-				if (mainNode.next != -1) {
+				if (next[mainPos] != -1) {
 					// We're inserting "after" the first node in the linked list so change the
 					// next node.
-					freeNode.next = mainNode.next;
+					next[freePos] = next[mainPos];
 				} else {
-					assert freeNode.next == -1;
+					assert next[freePos] == -1;
 				}
 
 				// Insert after the main node
-				mainNode.next = freePos;
+				next[mainPos] = freePos;
 
-				mainNode = freeNode;
+				mainPos = freePos;
 			}
 		}
 
-		mainNode.key = weakKeys ? weaken(key) : key;
+		keys[mainPos] = weakKeys ? weaken(key) : key;
 
-		return mainNode;
+		return mainPos;
 	}
 
-	private Node getNode(int search) {
-		if (nodes.length == 0) return null;
+	/**
+	 * Grow the array part of the table when appending a value just past its end.
+	 * <p>
+	 * Adding the key to the hash part would eventually force a {@linkplain #rehash(LuaValue, boolean) rehash}, which
+	 * must count every key in the table. Instead, when the array part is full, we double its size, which makes
+	 * building a list with {@code t[#t + 1] = x} amortised O(1).
+	 *
+	 * @param value The value being appended.
+	 * @return Whether the array part was grown.
+	 */
+	private boolean growArray(LuaValue value) {
+		int oldSize = arrayLength();
+		if (oldSize >= 1 << 30 || (oldSize > 0 && !arrayHas(oldSize - 1))) return false;
+
+		// If this is the first value in the array part, and it is a number, then store the array as doubles.
+		if (oldSize == 0 && isArrayNumber(value)) {
+			array = EMPTY_ARRAY;
+			numbers = new double[0];
+		}
 
-		Node node = nodes[hashmod(search, nodes.length - 1)];
-		while (true) {
-			LuaValue key = node.key();
-			if (key instanceof LuaInteger keyI && keyI.v == search) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
+		int newSize = oldSize == 0 ? 1 : oldSize * 2;
+		setArraySize(newSize, false);
+
+		// Move any keys in the new range out of the hash part. The old slots are left as dead keys, which will be
+		// removed on the next rehash.
+		if (hashKeys.length > 0) {
+			for (int i = oldSize + 1; i <= newSize; i++) {
+				int slot = findSlot(i);
+				if (slot >= 0) {
+					arraySet(i - 1, hashValue(slot));
+					hashValues[slot] = NIL;
+				}
 			}
 		}
+
+		return true;
 	}
 
-	private Node getNode(LuaValue search) {
-		if (nodes.length == 0 || search == NIL) return null;
+	private int findSlot(int search) {
+		Object[] keys = hashKeys;
+		if (keys.length == 0) return -1;
+
+		int slot = hashmod(search, keys.length - 1);
+		do {
+			if (keys[slot] instanceof LuaInteger key && key.v == search) return slot;
+			slot = hashNext[slot];
+		} while (slot != -1);
+
+		return -1;
+	}
+
+	private int findSlot(LuaValue search) {
+		if (hashKeys.length == 0 || search == NIL) return -1;
 
 		int slot = hashSlot(search);
-		Node node = nodes[slot];
-		while (true) {
-			LuaValue key = node.key();
-			if (key.equals(search)) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
+		do {
+			if (hashKey(slot).equals(search)) return slot;
+			slot = hashNext[slot];
+		} while (slot != -1);
+
+		return -1;
+	}
+
+	/**
+	 * Determine whether an integer key has a non-nil value, without boxing the value.
+	 *
+	 * @param key The key to check.
+	 * @return Whether this key is present in the table.
+	 */
+	private boolean has(int key) {
+		if (key > 0 && key <= arrayLength()) return arrayHas(key - 1);
+
+		int slot = findSlot(key);
+		return slot >= 0 && !hashValue(slot).isNil();
+	}
+
+	/**
+	 * Update the {@link #border} and {@link #integerKeys} after setting an integer key.
+	 *
+	 * @param key        The key which was set.
+	 * @param wasPresent Whether the key had a non-nil value before.
+	 * @param value      The new value.
+	 */
+	private void updateBorder(int key, boolean wasPresent, LuaValue value) {
+		if (key <= 0) return;
+
+		if (value.isNil()) {
+			if (wasPresent) integerKeys--;
+			if (key <= border) border = key - 1;
+		} else {
+			if (!wasPresent) integerKeys++;
+			if (key == border + 1) border = key;
 		}
 	}
 
 	public LuaValue rawget(int search) {
-		if (search > 0 && search <= array.length) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			if (search > 0 && search <= numbers.length) return numberValue(numbers[search - 1]);
+		} else if (search > 0 && search <= array.length) {
 			return strengthen(array[search - 1]);
-		} else if (nodes.length == 0) {
-			return NIL;
-		} else {
-			Node node = getNode(search);
-			return node == null ? NIL : node.value();
 		}
+
+		int slot = findSlot(search);
+		return slot < 0 ? NIL : hashValue(slot);
 	}
 
 	public LuaValue rawget(LuaValue search) {
 		if (search instanceof LuaInteger) return rawget(((LuaInteger) search).v);
 
-		Node node = getNode(search);
-		return node == null ? NIL : node.value();
+		int slot = findSlot(search);
+		return slot < 0 ? NIL : hashValue(slot);
+	}
+
+	/**
+	 * Get a value in a table without metatag processing, using an inline cache to avoid hashing the key.
+	 *
+	 * @param search The key to look up. This must be the same for every call with this cache.
+	 * @param cache  The cache for this lookup.
+	 * @return {@link LuaValue} for that key, or {@link Constants#NIL} if not found
+	 * @see IndexCache
+	 */
+	public LuaValue rawget(LuaValue search, IndexCache cache) {
+		if (search instanceof LuaInteger) return rawget(((LuaInteger) search).v);
+
+		Object[] keys = hashKeys;
+		if (keys.length == 0) return NIL;
+
+		int[] slots = cache.slots;
+		Object[] cachedKeys = cache.keys;
+		for (int i = 0; i < IndexCache.SIZE; i++) {
+			int slot = slots[i];
+			if (slot < keys.length && keys[slot] == cachedKeys[i]) return hashValue(slot);
+		}
+
+		int slot = hashSlot(search);
+		do {
+			if (hashKey(slot).equals(search)) {
+				cache.add(slot, keys[slot]);
+				return hashValue(slot);
+			}
+
+			slot = hashNext[slot];
+		} while (slot != -1);
+
+		return NIL;
 	}
 
 	public LuaValue rawget(CachedMetamethod search) {
 		int flag = 1 << search.ordinal();
 		if ((metatableFlags & flag) != 0) return NIL;
 
-		Node node = getNode(search.getKey());
-		if (node != null) {
-			LuaValue value = node.value();
+		int slot = findSlot(search.getKey());
+		if (slot >= 0) {
+			LuaValue value = hashValue(slot);
 			if (!value.isNil()) return value;
 		}
 
@@ -791,19 +1106,23 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private boolean trySet(int key, LuaValue value, LuaValue keyValue) {
-		if (key > 0 && key <= array.length) {
+		if (key > 0 && key <= arrayLength()) {
 			// If value is absent and we've got a __newindex method, don't insert.
-			if (strengthen(array[key - 1]) == NIL && hasNewIndex()) return false;
-			array[key - 1] = weakValues ? weaken(value) : value;
+			boolean wasPresent = arrayHas(key - 1);
+			if (!wasPresent && hasNewIndex()) return false;
+			arraySet(key - 1, value);
+			updateBorder(key, wasPresent, value);
 			return true;
 		}
 
-		Node node = getNode(key);
-		if (node == null) {
+		int slot = findSlot(key);
+		if (slot < 0) {
 			if (hasNewIndex()) return false;
 		} else {
-			if (node.value() == NIL && hasNewIndex()) return false;
-			node.value = weakValues ? weaken(value) : value;
+			boolean wasPresent = hashValue(slot) != NIL;
+			if (!wasPresent && hasNewIndex()) return false;
+			hashValues[slot] = weakValues ? weaken(value) : value;
+			updateBorder(key, wasPresent, value);
 			return true;
 		}
 
@@ -823,12 +1142,12 @@ public final class LuaTable extends LuaValue {
 	boolean trySet(LuaValue key, LuaValue value) throws LuaError {
 		if (key instanceof LuaInteger keyI) return trySet(keyI.v, value, key);
 
-		Node node = getNode(key);
-		if (node == null) {
+		int slot = findSlot(key);
+		if (slot < 0) {
 			if (hasNewIndex()) return false;
 		} else {
-			if (node.value() == NIL && hasNewIndex()) return false;
-			node.value = weakValues ? weaken(value) : value;
+			if (hashValue(slot) == NIL && hasNewIndex()) return false;
+			hashValues[slot] = weakValues ? weaken(value) : value;
 			return true;
 		}
 
@@ -844,20 +1163,26 @@ public final class LuaTable extends LuaValue {
 
 	private void rawset(int key, LuaValue value, LuaValue valueOf) {
 		do {
-			if (key > 0 && key <= array.length) {
-				array[key - 1] = weakValues ? weaken(value) : value;
+			if (key > 0 && key <= arrayLength()) {
+				boolean wasPresent = arrayHas(key - 1);
+				arraySet(key - 1, value);
+				updateBorder(key, wasPresent, value);
 				return;
 			}
 
-			Node node = getNode(key);
-			if (node == null) {
+			int slot = findSlot(key);
+			boolean wasPresent = slot >= 0 && !hashValue(slot).isNil();
+			if (slot < 0) {
+				if (key == arrayLength() + 1 && !value.isNil() && growArray(value)) continue;
+
 				if (valueOf == null) valueOf = valueOf(key);
-				node = newKey(valueOf);
+				slot = newKey(valueOf);
 			}
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				hashValues[slot] = weakValues ? weaken(value) : value;
+				updateBorder(key, wasPresent, value);
 				return;
 			}
 		} while (true);
@@ -872,13 +1197,12 @@ public final class LuaTable extends LuaValue {
 		// TODO: Check valid key here instead of at the call site!
 
 		do {
-			Node node = getNode(key);
-			if (node == null) node = newKey(key);
+			int slot = findSlot(key);
+			if (slot < 0) slot = newKey(key);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				hashValues[slot] = weakValues ? weaken(value) : value;
 				metatableFlags = 0;
 				return;
 			}
@@ -950,58 +1274,4 @@ public final class LuaTable extends LuaValue {
 		}
 	}
 	//endregion
-
-	/**
-	 * Represents a node in the hash element of the table.
-	 */
-	private static final class Node {
-		private final boolean weakKey;
-		private final boolean weakValue;
-		Object value = NIL;
-		Object key = NIL;
-		int next = -1;
-
-		Node(boolean weakKey, boolean weakValue) {
-			this.weakKey = weakKey;
-			this.weakValue = weakValue;
-		}
-
-		@Override
-		public String toString() {
-			String main = key + "=" + value;
-			if (next >= 0) main += "->" + next;
-			return main;
-		}
-
-		/**
-		 * Get the current key, converting it to a strong reference if
-		 * required. If it is nil then it clears the key and value (marking it
-		 * as "dead").
-		 *
-		 * @return The entry's key.
-		 */
-		LuaValue key() {
-			Object key = this.key;
-			if (key == NIL || !weakKey) return (LuaValue) key;
-
-			LuaValue strengthened = strengthen(key);
-			if (strengthened.isNil()) this.value = NIL; // We preserve the key so we can check it is nil
-
-			return strengthened;
-		}
-
-		/**
-		 * Get the current value, converting it to a strong reference if required.
-		 *
-		 * @return The entry's value.
-		 */
-		LuaValue value() {
-			Object value = this.value;
-			if (value == NIL || !weakValue) return (LuaValue) value;
-
-			LuaValue strengthened = strengthen(value);
-			if (strengthened.isNil()) this.value = NIL;
-			return strengthened;
-		}
-	}
 }
@@ -298,6 +298,28 @@ public final class LuaThread extends LuaValue {
 		throw UnwindThrowable.resume(thread, args);
 	}
 
+	/**
+	 * Suspend the whole Lua state, returning control to whoever is {@linkplain #run(LuaThread, Varargs) running} it.
+	 * <p>
+	 * Unlike {@link #yield(LuaState, Varargs)}, this suspends all coroutines, and so may also be used on the main
+	 * thread. The state may be continued by calling {@link #run(LuaThread, Varargs)} on the
+	 * {@linkplain LuaState#getCurrentThread() current thread}, with the arguments being passed to the suspended
+	 * function's {@link Resumable#resume} method.
+	 *
+	 * @param state The current lua state
+	 * @return Will never return.
+	 * @throws LuaError        If the current thread is not running.
+	 * @throws UnwindThrowable To suspend the state.
+	 */
+	public static <T> T suspend(LuaState state) throws LuaError, UnwindThrowable {
+		LuaThread thread = state.currentThread;
+		if (thread.status != Status.RUNNING) {
+			throw new LuaError("cannot suspend a " + thread.status.getDisplayName() + " thread");
+		}
+
+		throw UnwindThrowable.suspend();
+	}
+
 	public static Varargs runMain(LuaState state, LuaFunction function) throws LuaError {
 		return run(state, state.getMainThread(), function, Constants.NONE);
 	}
@@ -539,6 +539,41 @@ public final class OperationHelper {
 		throw new LuaError("loop in gettable");
 	}
 
+	/**
+	 * Perform field lookup including metatag processing, using an inline cache for each table lookup.
+	 *
+	 * @param state The current lua state
+	 * @param t     {@link LuaValue} on which field is being referenced, typically a table or something with the metatag {@link Constants#INDEX} defined
+	 * @param key   The string naming the field to reference. This must be the same for every call with this cache.
+	 * @param cache The cache for this lookup.
+	 * @param stack The stack slot of {@code t}, used for error messages.
+	 * @return {@link LuaValue} for the {@code key} if it exists, or {@link Constants#NIL}
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __get} metamethod yielded.
+	 * @see IndexCache
+	 */
+	public static LuaValue getTable(LuaState state, LuaValue t, LuaValue key, IndexCache cache, int stack) throws LuaError, UnwindThrowable {
+		LuaValue tm;
+		int loop = 0;
+		do {
+			if (t instanceof LuaTable table) {
+				LuaValue res = table.rawget(key, cache);
+				if (!res.isNil() || (tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+					return res;
+				}
+			} else if ((tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+				throw ErrorFactory.operandError(state, t, "index", stack);
+			}
+			if (tm.isFunction()) {
+				return ((LuaFunction) tm).call(state, t, key);
+			}
+			t = tm;
+			stack = -1;
+		}
+		while (++loop < Constants.MAXTAGLOOP);
+		throw new LuaError("loop in gettable");
+	}
+
 	/**
 	 * Perform field assignment including metatag processing.
 	 *
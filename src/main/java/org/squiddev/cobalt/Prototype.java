@@ -25,6 +25,7 @@
 package org.squiddev.cobalt;
 
 import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.CompiledPrototype;
 import org.squiddev.cobalt.function.LocalVariable;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
 
@@ -50,6 +51,25 @@ public final class Prototype {
 
 	public final int[] code;
 
+	/**
+	 * A copy of {@link #code} with common instructions replaced with specialised versions, which is what the
+	 * interpreter actually executes. Instructions are at the same position as in {@link #code}, so any program counter
+	 * is valid for both.
+	 * <p>
+	 * Everything other than the interpreter (debug information, dumping or compiling bytecode) should use {@link #code}.
+	 *
+	 * @see Lua#OP_GETTABLE_KS
+	 */
+	public final int[] quickenedCode;
+
+	/**
+	 * The inline cache for each instruction in {@link #quickenedCode} which looks up a constant string key, or
+	 * {@code null} if this function has no such instructions.
+	 *
+	 * @see IndexCache
+	 */
+	public final IndexCache[] indexCaches;
+
 	/**
 	 * Functions defined inside the function
 	 */
@@ -76,6 +96,26 @@ public final class Prototype {
 
 	public final LuaString[] upvalueNames;
 
+	/**
+	 * The number of times this function has been called or looped. This is used to determine when to compile it.
+	 * <p>
+	 * If this prototype is {@linkplain #share() shared}, this may be updated by several threads at once. Lost updates
+	 * only delay compilation, so this is not synchronised.
+	 *
+	 * @see LuaState.Builder#compileThreshold(int)
+	 */
+	public int hotness;
+
+	/**
+	 * The JVM-bytecode version of this function, or {@code null} if it has not been compiled.
+	 * <p>
+	 * Compiled prototypes hold no state, so this may be safely read and written by several threads at once. At worst,
+	 * a function is compiled more than once.
+	 *
+	 * @see LuaState.Builder#compileThreshold(int)
+	 */
+	public CompiledPrototype compiled;
+
 	public Prototype(
 		LuaString source,
 		LuaValue[] constants, int[] code, Prototype[] children, int parameters, int isVarArg, int maxStackSize, int upvalues,
@@ -86,6 +126,8 @@ public final class Prototype {
 		this.constants = constants;
 		this.code = code;
 		this.children = children;
+		this.quickenedCode = Quickener.quicken(constants, code, children);
+		this.indexCaches = Quickener.indexCaches(quickenedCode, children);
 		this.parameters = parameters;
 		this.isVarArg = isVarArg;
 		this.maxStackSize = maxStackSize;
@@ -108,6 +150,34 @@ public final class Prototype {
 		return source + ":" + lineDefined + "-" + lastLineDefined;
 	}
 
+	/**
+	 * Prepare this prototype to be shared between multiple {@link LuaState}s, possibly running on different threads.
+	 * <p>
+	 * This checks that this function and its children only have constants which are not bound to any particular
+	 * state (strings, numbers, booleans and {@code nil}), and eagerly computes any lazily-initialised values.
+	 * <p>
+	 * The prototype must then be published to other threads safely, such as via a concurrent collection. Each state
+	 * should create its own closures from the prototype, with {@link LuaState#compiler}.
+	 *
+	 * @return This prototype.
+	 * @throws IllegalArgumentException If any function has a constant which cannot be shared.
+	 * @see org.squiddev.cobalt.compiler.PrototypeRegistry
+	 */
+	public Prototype share() {
+		for (LuaValue constant : constants) {
+			if (constant instanceof LuaString string) {
+				string.flattenRope();
+			} else if (!(constant instanceof LuaNumber || constant instanceof LuaBoolean || constant == Constants.NIL)) {
+				throw new IllegalArgumentException("Cannot share " + this + ", as it has a " + constant.typeName() + " constant");
+			}
+		}
+
+		source.flattenRope();
+		sourceShort();
+		for (Prototype child : children) child.share();
+		return this;
+	}
+
 	/**
 	 * Get the name of a local variable.
 	 *
@@ -133,6 +203,6 @@ public final class Prototype {
 	 * @return The line, or {@code -1} if not set.
 	 */
 	public int getLine(int pc) {
-		return lineInfo != null && pc >= 0 && pc <= lineInfo.length ? lineInfo[pc] : -1;
+		return lineInfo != null && pc >= 0 && pc < lineInfo.length ? lineInfo[pc] : -1;
 	}
 }
@@ -0,0 +1,132 @@
+package org.squiddev.cobalt;
+
+import static org.squiddev.cobalt.Constants.*;
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * Rewrites a function's bytecode into a form which is cheaper to interpret.
+ * <p>
+ * This replaces common instructions with specialised versions (such as indexing a table with a constant string), and
+ * fuses common pairs of instructions (such as loading a global and then calling it) into a single superinstruction.
+ * <p>
+ * The rewritten code has the same length as the original, and every instruction stays at the same position, so the
+ * program counter can be shared between both versions. Superinstructions only replace the first instruction of the
+ * pair, which means jumping to (or executing) the second instruction on its own still behaves correctly.
+ *
+ * @see Prototype#quickenedCode
+ */
+final class Quickener {
+	private Quickener() {
+	}
+
+	static int[] quicken(LuaValue[] constants, int[] code, Prototype[] children) {
+		int[] quickened = code.clone();
+
+		for (int pc = 0; pc < code.length; pc = nextInstruction(code, pc, children)) {
+			int i = code[pc];
+			int a = GETARG_A(i);
+			int b = GETARG_B(i);
+			int c = GETARG_C(i);
+
+			switch (GET_OPCODE(i)) {
+				case OP_GETGLOBAL -> {
+					if (pc + 1 < code.length && GET_OPCODE(code[pc + 1]) == OP_CALL && GETARG_A(code[pc + 1]) == a) {
+						quickened[pc] = setOpcode(i, OP_GETGLOBAL_CALL);
+					}
+				}
+				case OP_GETTABLE -> {
+					if (isRkConstant(constants, c, TSTRING)) quickened[pc] = setOpcode(i, OP_GETTABLE_KS);
+				}
+				case OP_SELF -> {
+					if (isRkConstant(constants, c, TSTRING)) quickened[pc] = setOpcode(i, OP_SELF_KS);
+				}
+				case OP_SETTABLE -> {
+					if (isRkConstant(constants, b, TSTRING)) quickened[pc] = setOpcode(i, OP_SETTABLE_KS);
+				}
+				case OP_ADD -> {
+					if (!ISK(b) && isRkConstant(constants, c, TNUMBER)) quickened[pc] = setOpcode(i, OP_ADD_RN);
+				}
+				case OP_SUB -> {
+					if (!ISK(b) && isRkConstant(constants, c, TNUMBER)) quickened[pc] = setOpcode(i, OP_SUB_RN);
+				}
+				case OP_EQ -> {
+					// Equality with these types never invokes a metamethod, so is symmetric and we can swap the operands.
+					if (!ISK(b) && isSimpleConstant(constants, c)) {
+						quickened[pc] = setOpcode(i, OP_EQ_K);
+					} else if (ISK(b) && !ISK(c) && isSimpleConstant(constants, b)) {
+						quickened[pc] = (OP_EQ_K << POS_OP) | (a << POS_A) | (c << POS_B) | (b << POS_C);
+					}
+				}
+				default -> {
+				}
+			}
+		}
+
+		return quickened;
+	}
+
+	/**
+	 * Create the {@linkplain IndexCache inline caches} for each instruction which looks up a constant string.
+	 *
+	 * @param code     The quickened code.
+	 * @param children The function's children.
+	 * @return The cache for each instruction, or {@code null} if it has no cache.
+	 */
+	static IndexCache[] indexCaches(int[] code, Prototype[] children) {
+		IndexCache[] caches = null;
+		for (int pc = 0; pc < code.length; pc = nextInstruction(code, pc, children)) {
+			switch (GET_OPCODE(code[pc])) {
+				case OP_GETGLOBAL, OP_GETGLOBAL_CALL, OP_GETTABLE_KS, OP_SELF_KS -> {
+					if (caches == null) caches = new IndexCache[code.length];
+					caches[pc] = new IndexCache();
+				}
+				default -> {
+				}
+			}
+		}
+
+		return caches;
+	}
+
+	/**
+	 * Find the next instruction, skipping over any trailing words which are not instructions.
+	 *
+	 * @param code     The function's code.
+	 * @param pc       The current instruction.
+	 * @param children The function's children.
+	 * @return The position of the next instruction.
+	 */
+	private static int nextInstruction(int[] code, int pc, Prototype[] children) {
+		int i = code[pc];
+		switch (GET_OPCODE(i)) {
+			case OP_SETLIST -> {
+				if (GETARG_C(i) == 0) pc++;
+			}
+			case OP_CLOSURE -> {
+				int child = GETARG_Bx(i);
+				if (child < children.length) pc += children[child].upvalues;
+			}
+			default -> {
+			}
+		}
+		return pc + 1;
+	}
+
+	private static int setOpcode(int i, int op) {
+		return (i & MASK_NOT_OP) | (op << POS_OP);
+	}
+
+	private static boolean isConstant(LuaValue[] constants, int index, int type) {
+		return index < constants.length && constants[index].type() == type;
+	}
+
+	private static boolean isRkConstant(LuaValue[] constants, int rk, int type) {
+		return ISK(rk) && isConstant(constants, INDEXK(rk), type);
+	}
+
+	private static boolean isSimpleConstant(LuaValue[] constants, int rk) {
+		if (!ISK(rk) || INDEXK(rk) >= constants.length) return false;
+		int type = constants[INDEXK(rk)].type();
+		return type == TNIL || type == TBOOLEAN || type == TSTRING;
+	}
+}
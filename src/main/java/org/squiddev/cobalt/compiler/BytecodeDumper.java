@@ -82,6 +82,7 @@ public class BytecodeDumper {
 
 	final DataOutputStream writer;
 	final boolean strip;
+	private boolean columnInfo;
 
 	public BytecodeDumper(OutputStream w, boolean strip) {
 		this.writer = new DataOutputStream(w);
@@ -204,6 +205,13 @@ public class BytecodeDumper {
 		for (i = 0; i < n; i++) {
 			dumpString(f.upvalueNames[i]);
 		}
+		if (columnInfo) {
+			n = f.columnInfo == null ? 0 : f.columnInfo.length;
+			dumpInt(n);
+			for (i = 0; i < n; i++) {
+				dumpInt(f.columnInfo[i]);
+			}
+		}
 	}
 
 	void dumpFunction(final Prototype f, final LuaString string) throws IOException {
@@ -244,6 +252,22 @@ public class BytecodeDumper {
 		D.dumpFunction(f, null);
 	}
 
+	/**
+	 * Dump a Lua function, along with its {@linkplain Prototype#columnInfo column information}. This is not a
+	 * standard Lua chunk, and can only be read by Cobalt.
+	 *
+	 * @param f the function to dump
+	 * @param w the output stream to dump to
+	 * @throws IOException On stream write errors
+	 * @see CompileCache
+	 */
+	static void dumpWithColumns(Prototype f, OutputStream w) throws IOException {
+		BytecodeDumper D = new BytecodeDumper(w, false);
+		D.columnInfo = true;
+		D.dumpHeader();
+		D.dumpFunction(f, null);
+	}
+
 	/**
 	 * @param f            the function to dump
 	 * @param w            the output stream to dump to
@@ -77,13 +77,27 @@ final class BytecodeLoader {
 	 */
 	public final InputReader is;
 
+	private final boolean columnInfo;
+
 	/**
 	 * Private constructor for create a load state
 	 *
 	 * @param stream The stream to read from
 	 */
 	BytecodeLoader(InputReader stream) {
+		this(stream, false);
+	}
+
+	/**
+	 * Create a load state, optionally reading column information.
+	 *
+	 * @param stream      The stream to read from
+	 * @param columnInfo  Whether each function is followed by its {@link Prototype#columnInfo}.
+	 * @see BytecodeDumper#dumpWithColumns(Prototype, java.io.OutputStream)
+	 */
+	BytecodeLoader(InputReader stream, boolean columnInfo) {
 		is = stream;
+		this.columnInfo = columnInfo;
 	}
 
 	private static final LuaValue[] NOVALUES = {};
@@ -303,11 +317,12 @@ final class BytecodeLoader {
 		int[] lineInfo = loadIntArray();
 		LocalVariable[] locals = loadLocals();
 		LuaString[] upvalueNames = loadUpvalueNames();
+		int[] columnInfo = this.columnInfo ? loadIntArray() : null;
 
 		return new Prototype(
 			source,
 			constants, code, children, numparams, is_vararg, maxstacksize, nups,
-			lineDefined, lastLineDefined, lineInfo, null, locals, upvalueNames
+			lineDefined, lastLineDefined, lineInfo, columnInfo, locals, upvalueNames
 		);
 	}
 
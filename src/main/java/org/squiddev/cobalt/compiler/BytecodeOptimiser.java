@@ -0,0 +1,487 @@
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.LuaValue;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.LocalVariable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.squiddev.cobalt.Lua.*;
+import static org.squiddev.cobalt.compiler.LuaC.CREATE_ABx;
+import static org.squiddev.cobalt.compiler.LuaC.SETARG_sBx;
+
+/**
+ * An optional pass over compiled functions, which makes their code smaller and cheaper to execute.
+ * <p>
+ * This performs the following optimisations:
+ * <ul>
+ *   <li>Jumps to another jump are redirected to the final destination ("jump threading").</li>
+ *   <li>Concatenations of string constants ({@code "a" .. "b"}) are folded into a single constant.</li>
+ *   <li>Unreachable instructions and jumps to the next instruction are removed.</li>
+ *   <li>{@link Prototype#maxStackSize} is reduced to the registers which are actually used.</li>
+ * </ul>
+ * <p>
+ * The parser already folds arithmetic on numeric constants, and folds {@code not} into the polarity of conditional
+ * jumps, so these are not repeated here.
+ * <p>
+ * The optimiser assumes code has the same structure as that produced by the Lua compiler. Functions which do not
+ * (such as hand-written binary chunks) are left unchanged.
+ * <p>
+ * Optimised functions behave identically to the original, with the exception of line hooks set with
+ * {@code debug.sethook}. Removed jumps and unreachable code no longer fire line events, and threaded jumps skip the
+ * line of the intermediate jump, so line hooks (and {@code debug.getinfo(f, "L").activelines}) may see fewer lines
+ * than with unoptimised code. The optimiser should not be used where line events must match PUC Lua exactly, such
+ * as in a step-through debugger.
+ *
+ * @see org.squiddev.cobalt.LuaState.Builder#optimiseBytecode(boolean)
+ */
+public final class BytecodeOptimiser {
+	/**
+	 * The maximum number of times to run each pass. Removing code may expose further jumps to remove, but in
+	 * practice this converges after one or two passes.
+	 */
+	private static final int MAX_PASSES = 4;
+
+	private final Prototype prototype;
+	private final Prototype[] children;
+
+	private int[] code;
+	private int length;
+	private int[] lineInfo;
+	private int[] columnInfo;
+	private LocalVariable[] locals;
+	private List<LuaValue> constants;
+
+	/**
+	 * Whether each instruction is an argument to the previous instruction ({@link org.squiddev.cobalt.Lua#OP_CLOSURE} or {@link org.squiddev.cobalt.Lua#OP_SETLIST})
+	 * rather than an actual instruction.
+	 */
+	private boolean[] data;
+	private boolean[] reachable;
+	private boolean[] target;
+	private boolean[] removed;
+
+	private BytecodeOptimiser(Prototype prototype, Prototype[] children) {
+		this.prototype = prototype;
+		this.children = children;
+
+		code = prototype.code.clone();
+		length = code.length;
+		lineInfo = prototype.lineInfo != null && prototype.lineInfo.length == length ? prototype.lineInfo.clone() : prototype.lineInfo;
+		columnInfo = prototype.columnInfo != null && prototype.columnInfo.length == length ? prototype.columnInfo.clone() : prototype.columnInfo;
+		locals = prototype.locals;
+	}
+
+	/**
+	 * Optimise a function and all its children.
+	 *
+	 * @param prototype The function to optimise.
+	 * @return The optimised function, or {@code prototype} if it could not be optimised any further.
+	 */
+	public static Prototype optimise(Prototype prototype) {
+		Prototype[] children = prototype.children;
+		for (int i = 0; i < children.length; i++) {
+			Prototype child = optimise(children[i]);
+			if (child == children[i]) continue;
+			if (children == prototype.children) children = children.clone();
+			children[i] = child;
+		}
+
+		BytecodeOptimiser optimiser = new BytecodeOptimiser(prototype, children);
+		boolean changed = optimiser.run();
+		int maxStackSize = Math.min(prototype.maxStackSize, optimiser.requiredStack());
+		if (!changed && maxStackSize == prototype.maxStackSize && children == prototype.children) return prototype;
+
+		return new Prototype(
+			prototype.source,
+			optimiser.constants == null ? prototype.constants : optimiser.constants.toArray(new LuaValue[0]),
+			optimiser.code, children,
+			prototype.parameters, prototype.isVarArg, maxStackSize, prototype.upvalues,
+			prototype.lineDefined, prototype.lastLineDefined, optimiser.lineInfo, optimiser.columnInfo,
+			optimiser.locals, prototype.upvalueNames
+		);
+	}
+
+	private boolean run() {
+		boolean changed = false;
+		for (int pass = 0; pass < MAX_PASSES; pass++) {
+			if (!analyse()) break;
+
+			boolean modified = threadJumps();
+			modified |= foldConcat();
+			if (removeDeadCode()) {
+				compact();
+				modified = true;
+			}
+
+			if (!modified) break;
+			changed = true;
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Find which instructions are reachable, and which are the target of a jump.
+	 *
+	 * @return Whether the code is well-formed, and so can be optimised.
+	 */
+	private boolean analyse() {
+		int length = this.length;
+		if (length == 0) return false;
+
+		data = new boolean[length];
+		reachable = new boolean[length];
+		target = new boolean[length + 1];
+		removed = new boolean[length];
+
+		for (int pc = 0; pc < length; pc++) {
+			int i = code[pc];
+			int op = GET_OPCODE(i);
+			if (op >= NUM_OPCODES) return false;
+
+			int extra = extraArguments(pc);
+			if (extra < 0 || pc + extra >= length) return false;
+			for (int j = 1; j <= extra; j++) data[pc + j] = true;
+			pc += extra;
+		}
+
+		int[] pending = new int[length];
+		int top = 0;
+		reachable[0] = true;
+		pending[top++] = 0;
+		while (top > 0) {
+			int pc = pending[--top];
+			int i = code[pc];
+			int op = GET_OPCODE(i);
+
+			int extra = extraArguments(pc);
+			for (int j = 1; j <= extra; j++) reachable[pc + j] = true;
+
+			int next = pc + 1 + extra, jump = -1, skip = -1;
+			switch (op) {
+				case OP_JMP, OP_FORPREP -> {
+					next = -1;
+					jump = pc + 1 + GETARG_sBx(i);
+				}
+				case OP_FORLOOP -> jump = pc + 1 + GETARG_sBx(i);
+				case OP_RETURN -> next = -1;
+				case OP_LOADBOOL -> {
+					if (GETARG_C(i) != 0) {
+						next = -1;
+						skip = pc + 2;
+					}
+				}
+				default -> {
+					if (testTMode(op)) skip = pc + 2;
+				}
+			}
+
+			if (jump != -1) {
+				if (!isInstruction(jump)) return false;
+				target[jump] = true;
+				if (!reachable[jump]) {
+					reachable[jump] = true;
+					pending[top++] = jump;
+				}
+			}
+
+			if (skip != -1) {
+				if (!isInstruction(skip)) return false;
+				target[skip] = true;
+				if (!reachable[skip]) {
+					reachable[skip] = true;
+					pending[top++] = skip;
+				}
+			}
+
+			if (next != -1) {
+				if (!isInstruction(next)) return false;
+				if (!reachable[next]) {
+					reachable[next] = true;
+					pending[top++] = next;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the number of arguments stored after this instruction.
+	 *
+	 * @param pc The instruction's position.
+	 * @return The number of extra arguments, or {@code -1} if this instruction is malformed.
+	 */
+	private int extraArguments(int pc) {
+		int i = code[pc];
+		switch (GET_OPCODE(i)) {
+			case OP_CLOSURE -> {
+				int child = GETARG_Bx(i);
+				return child < children.length ? children[child].upvalues : -1;
+			}
+			case OP_SETLIST -> {
+				return GETARG_C(i) == 0 ? 1 : 0;
+			}
+			default -> {
+				return 0;
+			}
+		}
+	}
+
+	private boolean isInstruction(int pc) {
+		return pc >= 0 && pc < length && !data[pc];
+	}
+
+	/**
+	 * Whether this instruction may conditionally skip the next one. The next instruction cannot be removed, as this
+	 * would change which instruction is skipped.
+	 *
+	 * @param pc The instruction's position.
+	 * @return Whether this instruction may skip the next one.
+	 */
+	private boolean isSkip(int pc) {
+		if (pc < 0 || data[pc] || removed[pc]) return false;
+
+		int i = code[pc];
+		int op = GET_OPCODE(i);
+		return testTMode(op) || (op == OP_LOADBOOL && GETARG_C(i) != 0);
+	}
+
+	/**
+	 * Redirect jumps whose destination is another jump.
+	 *
+	 * @return Whether any jumps were changed.
+	 */
+	private boolean threadJumps() {
+		boolean changed = false;
+		for (int pc = 0; pc < length; pc++) {
+			int i = code[pc];
+			if (data[pc] || !reachable[pc] || GET_OPCODE(i) != OP_JMP) continue;
+
+			int original = pc + 1 + GETARG_sBx(i);
+			int dest = original;
+			// Limit the number of steps, in case of a loop of jumps (while true do end).
+			for (int steps = 0; steps < length && GET_OPCODE(code[dest]) == OP_JMP; steps++) {
+				dest = dest + 1 + GETARG_sBx(code[dest]);
+			}
+
+			if (dest != original) {
+				code[pc] = SETARG_sBx(i, dest - (pc + 1));
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Fold concatenation of constant strings, replacing the {@code LOADK}s and {@code CONCAT} with a single
+	 * {@code LOADK}.
+	 *
+	 * @return Whether any concatenations were folded.
+	 */
+	private boolean foldConcat() {
+		boolean changed = false;
+		for (int pc = 0; pc < length; pc++) {
+			int i = code[pc];
+			if (data[pc] || !reachable[pc] || GET_OPCODE(i) != OP_CONCAT || target[pc]) continue;
+
+			int b = GETARG_B(i), c = GETARG_C(i);
+			int count = c - b + 1, start = pc - count;
+			if (count < 2 || start < 0 || isSkip(start - 1)) continue;
+
+			LuaString[] parts = new LuaString[count];
+			int partsLength = 0;
+			for (int j = 0; j < count; j++) {
+				int load = start + j;
+				int loadI = code[load];
+				if (data[load] || removed[load] || (j > 0 && target[load])
+					|| GET_OPCODE(loadI) != OP_LOADK || GETARG_A(loadI) != b + j
+					|| !(constant(GETARG_Bx(loadI)) instanceof LuaString part)) {
+					parts = null;
+					break;
+				}
+
+				parts[j] = part;
+				partsLength += part.length();
+			}
+			if (parts == null) continue;
+
+			byte[] contents = new byte[partsLength];
+			int offset = 0;
+			for (LuaString part : parts) offset = part.copyTo(contents, offset);
+
+			int constant = addConstant(LuaString.valueOf(contents));
+			if (constant > MAXARG_Bx) continue;
+
+			code[pc] = CREATE_ABx(OP_LOADK, GETARG_A(i), constant);
+			for (int j = start; j < pc; j++) removed[j] = true;
+			changed = true;
+		}
+
+		return changed;
+	}
+
+	private LuaValue constant(int index) {
+		if (constants != null) return index < constants.size() ? constants.get(index) : null;
+		return index < prototype.constants.length ? prototype.constants[index] : null;
+	}
+
+	private int addConstant(LuaValue value) {
+		if (constants == null) constants = new ArrayList<>(Arrays.asList(prototype.constants));
+
+		int index = constants.indexOf(value);
+		if (index >= 0) return index;
+
+		constants.add(value);
+		return constants.size() - 1;
+	}
+
+	/**
+	 * Mark unreachable instructions, and jumps to the next instruction, as removed.
+	 *
+	 * @return Whether any instructions were removed.
+	 */
+	private boolean removeDeadCode() {
+		boolean changed = false;
+		// The final return is never removed, as the debug library expects functions to end with one.
+		for (int pc = 0; pc < length - 1; pc++) {
+			if (removed[pc]) {
+				changed = true;
+				continue;
+			}
+
+			// Arguments are only removed along with their instruction.
+			if (data[pc]) continue;
+
+			int i = code[pc];
+			boolean dead = !reachable[pc] || (GET_OPCODE(i) == OP_JMP && GETARG_sBx(i) == 0);
+			if (!dead || isSkip(pc - 1)) continue;
+
+			int extra = extraArguments(pc);
+			if (pc + extra >= length - 1) continue;
+			for (int j = 0; j <= extra; j++) removed[pc + j] = true;
+			pc += extra;
+			changed = true;
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Delete all removed instructions, updating jump offsets and debug information.
+	 */
+	private void compact() {
+		int length = this.length;
+		int[] positions = new int[length + 1];
+		int newLength = 0;
+		for (int pc = 0; pc < length; pc++) {
+			positions[pc] = newLength;
+			if (!removed[pc]) newLength++;
+		}
+		positions[length] = newLength;
+
+		int[] newCode = new int[newLength];
+		boolean hasLines = lineInfo != null && lineInfo.length == length;
+		boolean hasColumns = columnInfo != null && columnInfo.length == length;
+		int[] newLines = hasLines ? new int[newLength] : lineInfo;
+		int[] newColumns = hasColumns ? new int[newLength] : columnInfo;
+
+		for (int pc = 0; pc < length; pc++) {
+			if (removed[pc]) continue;
+
+			int i = code[pc];
+			int newPc = positions[pc];
+			if (!data[pc]) {
+				int op = GET_OPCODE(i);
+				if (op == OP_JMP || op == OP_FORLOOP || op == OP_FORPREP) {
+					int dest = pc + 1 + GETARG_sBx(i);
+					if (dest >= 0 && dest <= length) i = SETARG_sBx(i, positions[dest] - (newPc + 1));
+				}
+			}
+
+			newCode[newPc] = i;
+			if (hasLines) newLines[newPc] = lineInfo[pc];
+			if (hasColumns) newColumns[newPc] = columnInfo[pc];
+		}
+
+		LocalVariable[] newLocals = new LocalVariable[locals.length];
+		for (int j = 0; j < locals.length; j++) {
+			LocalVariable local = locals[j];
+			newLocals[j] = new LocalVariable(local.name, remap(positions, local.startpc), remap(positions, local.endpc));
+		}
+
+		code = newCode;
+		this.length = newLength;
+		lineInfo = newLines;
+		columnInfo = newColumns;
+		locals = newLocals;
+	}
+
+	private static int remap(int[] positions, int pc) {
+		return pc >= 0 && pc < positions.length ? positions[pc] : pc;
+	}
+
+	/**
+	 * Compute the number of registers this function needs. This is the highest register used by any instruction or
+	 * local variable, and so matches the checks performed by the debug library.
+	 *
+	 * @return The required stack size.
+	 */
+	private int requiredStack() {
+		int[] code = this.code;
+		int length = this.length;
+
+		int max = Math.max(2, prototype.parameters + (prototype.isVarArg & VARARG_HASARG));
+
+		// Count the maximum number of local variables active at once.
+		int[] active = new int[length + 1];
+		for (LocalVariable local : locals) {
+			if (local.startpc < 0 || local.endpc > length || local.startpc >= local.endpc) continue;
+			active[local.startpc]++;
+			active[local.endpc]--;
+		}
+		int count = 0;
+		for (int delta : active) max = Math.max(max, count += delta);
+
+		for (int pc = 0; pc < length; pc++) {
+			int i = code[pc];
+			int op = GET_OPCODE(i);
+			if (op >= NUM_OPCODES) return Integer.MAX_VALUE;
+
+			int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+			int reg = a;
+			if (getOpMode(op) == iABC) {
+				reg = Math.max(reg, register(b, getBMode(op)));
+				reg = Math.max(reg, register(c, getCMode(op)));
+			}
+
+			switch (op) {
+				case OP_SELF -> reg = Math.max(reg, a + 1);
+				case OP_CALL, OP_TAILCALL -> reg = Math.max(reg, Math.max(a + b - 1, a + c - 2));
+				case OP_RETURN, OP_VARARG -> reg = Math.max(reg, a + b - 2);
+				case OP_FORLOOP, OP_FORPREP -> reg = Math.max(reg, a + 3);
+				case OP_TFORLOOP -> reg = Math.max(reg, a + 2 + c);
+				case OP_SETLIST -> reg = Math.max(reg, a + b);
+				default -> {
+				}
+			}
+
+			max = Math.max(max, reg + 1);
+
+			// Skip SETLIST's extra argument. CLOSURE's arguments are MOVE or GETUPVAL instructions, and so can be
+			// treated like any other instruction.
+			if (op == OP_SETLIST && c == 0) pc++;
+		}
+
+		return max;
+	}
+
+	private static int register(int value, int mode) {
+		return mode == OpArgR || (mode == OpArgK && !ISK(value)) ? value : 0;
+	}
+}
@@ -0,0 +1,241 @@
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.Lua;
+import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.Prototype;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static org.squiddev.cobalt.compiler.LoadState.checkMode;
+
+/**
+ * A cache of compiled chunks, stored on disk.
+ * <p>
+ * Chunks are keyed on a hash of their source code and name, and stored as a (non-standard) bytecode dump which also
+ * includes column information. The key also includes a version string, so entries written by a different version of
+ * Cobalt are ignored rather than being loaded.
+ * <p>
+ * The cache is best-effort: if an entry cannot be read or written, or is malformed, the chunk is compiled from source
+ * as normal. Chunks which fail to compile are not cached.
+ *
+ * @see org.squiddev.cobalt.LuaState.Builder#compileCache(CompileCache)
+ */
+public final class CompileCache {
+	/**
+	 * The version of the on-disk format. This should be bumped whenever the compiler's output or the dump format
+	 * changes.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	private static final byte[] MAGIC = {'C', 'b', 'l', 'C'};
+	private static final int KEY_LENGTH = 32;
+	private static final int HEADER_LENGTH = MAGIC.length + KEY_LENGTH;
+
+	private final Path directory;
+	private final byte[] version;
+
+	/**
+	 * Create a new cache, using the version of Cobalt currently running.
+	 *
+	 * @param directory The directory to store compiled chunks in. This will be created if it does not exist.
+	 */
+	public CompileCache(Path directory) {
+		this(directory, defaultVersion());
+	}
+
+	/**
+	 * Create a new cache with an explicit version. Entries written with a different version are ignored.
+	 *
+	 * @param directory The directory to store compiled chunks in. This will be created if it does not exist.
+	 * @param version   The version of the compiler.
+	 */
+	public CompileCache(Path directory, String version) {
+		this.directory = Objects.requireNonNull(directory, "directory cannot be null");
+		this.version = (FORMAT_VERSION + "/" + Objects.requireNonNull(version, "version cannot be null")).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String defaultVersion() {
+		String version = CompileCache.class.getPackage().getImplementationVersion();
+		return version == null ? DevVersion.VERSION : version;
+	}
+
+	/**
+	 * The version used when Cobalt is not running from a released jar (for instance, when running from an IDE or
+	 * Gradle's class directories). There's no version number to use in this case, so instead we use a hash of the
+	 * compiler's class files, meaning the cache is invalidated whenever the compiler is rebuilt with changes.
+	 */
+	private static final class DevVersion {
+		static final String VERSION = "dev-" + toHex(hashClasses(
+			LuaC.class, Lex.class, Parser.class, FuncState.class, BytecodeOptimiser.class,
+			BytecodeDumper.class, BytecodeLoader.class, LoadState.class, Prototype.class, Lua.class
+		));
+
+		private static byte[] hashClasses(Class<?>... classes) {
+			MessageDigest digest = sha256();
+			for (Class<?> klass : classes) hashClass(digest, klass);
+			return digest.digest();
+		}
+
+		private static void hashClass(MessageDigest digest, Class<?> klass) {
+			String name = klass.getName();
+			digest.update(name.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+
+			try (InputStream stream = klass.getResourceAsStream("/" + name.replace('.', '/') + ".class")) {
+				if (stream != null) digest.update(stream.readAllBytes());
+			} catch (IOException ignored) {
+				// Just skip this class. At worst, we'll share cache entries with a slightly different compiler.
+			}
+
+			for (Class<?> child : klass.getDeclaredClasses()) hashClass(digest, child);
+		}
+	}
+
+	Prototype compile(byte[] contents, LuaString name, LuaString mode) throws CompileException {
+		return compile(contents, name, mode, false);
+	}
+
+	/**
+	 * Compile a chunk, using a cached copy if available.
+	 * <p>
+	 * Optimised and unoptimised code are cached separately, so the optimiser only runs when the chunk is first
+	 * compiled.
+	 *
+	 * @param contents The contents of the chunk.
+	 * @param name     The name of the chunk.
+	 * @param mode     The mode to load the chunk in.
+	 * @param optimise Whether to run the {@link BytecodeOptimiser} over the compiled code.
+	 * @return The compiled prototype.
+	 * @throws CompileException If the chunk could not be compiled.
+	 */
+	Prototype compile(byte[] contents, LuaString name, LuaString mode, boolean optimise) throws CompileException {
+		// Binary chunks are cheap to load already, so there's nothing to gain from caching them.
+		if (contents.length > 0 && contents[0] == LoadState.LUA_SIGNATURE[0]) {
+			return LuaC.compile(contents, name, mode, optimise);
+		}
+
+		checkMode(mode, "text");
+
+		byte[] key = key(contents, name, optimise);
+		Path path = directory.resolve(toHex(key) + ".luac");
+
+		Prototype cached = read(path, key, name);
+		if (cached != null) return cached;
+
+		Prototype prototype = LuaC.compile(contents, name, mode, optimise);
+		write(path, key, prototype);
+		return prototype;
+	}
+
+	private Prototype read(Path path, byte[] key, LuaString name) {
+		byte[] entry;
+		try {
+			entry = Files.readAllBytes(path);
+		} catch (IOException e) {
+			return null;
+		}
+
+		if (entry.length < HEADER_LENGTH + LoadState.LUA_SIGNATURE.length
+			|| !Arrays.equals(entry, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+			|| !Arrays.equals(entry, MAGIC.length, HEADER_LENGTH, key, 0, KEY_LENGTH)
+			|| !Arrays.equals(entry, HEADER_LENGTH, HEADER_LENGTH + LoadState.LUA_SIGNATURE.length, LoadState.LUA_SIGNATURE, 0, LoadState.LUA_SIGNATURE.length)) {
+			return null;
+		}
+
+		try {
+			return LuaC.loadWithColumns(entry, HEADER_LENGTH + LoadState.LUA_SIGNATURE.length, name);
+		} catch (CompileException | RuntimeException e) {
+			// A truncated or otherwise corrupt entry. Just recompile it, and we'll overwrite it in the process.
+			return null;
+		}
+	}
+
+	private void write(Path path, byte[] key, Prototype prototype) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		output.writeBytes(MAGIC);
+		output.writeBytes(key);
+		try {
+			BytecodeDumper.dumpWithColumns(prototype, output);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Unreachable, ByteArrayOutputStream never throws.
+		}
+
+		Path temp = null;
+		try {
+			Files.createDirectories(directory);
+			temp = Files.createTempFile(directory, "chunk", ".tmp");
+			Files.write(temp, output.toByteArray());
+			try {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} catch (IOException e) {
+			// Failing to write to the cache isn't fatal, we'll just compile from source next time.
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private byte[] key(byte[] contents, LuaString name, boolean optimise) {
+		MessageDigest digest = sha256();
+		digest.update(version);
+		digest.update((byte) 0);
+		digest.update((byte) (optimise ? 1 : 0));
+		return hash(digest, contents, name);
+	}
+
+	/**
+	 * Compute the SHA-256 hash of a chunk's name and contents.
+	 *
+	 * @param contents The contents of the chunk.
+	 * @param name     The name of the chunk.
+	 * @return The hash of this chunk.
+	 */
+	static byte[] hash(byte[] contents, LuaString name) {
+		return hash(sha256(), contents, name);
+	}
+
+	private static byte[] hash(MessageDigest digest, byte[] contents, LuaString name) {
+		int nameLength = name.length();
+		digest.update(new byte[]{(byte) (nameLength >>> 24), (byte) (nameLength >>> 16), (byte) (nameLength >>> 8), (byte) nameLength});
+		byte[] nameBytes = new byte[nameLength];
+		name.copyTo(nameBytes, 0);
+		digest.update(nameBytes);
+
+		digest.update(contents);
+		return digest.digest();
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] out = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			out[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			out[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(out);
+	}
+}
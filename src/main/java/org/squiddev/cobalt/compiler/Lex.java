@@ -1,5 +1,6 @@
 package org.squiddev.cobalt.compiler;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.lib.Utf8Lib;
 import org.squiddev.cobalt.unwind.AutoUnwind;
@@ -101,9 +102,17 @@ final class Lex {
 	final LuaString source;
 
 	/**
-	 * The buffer we're reading from
+	 * The buffer we're reading from. This is {@code null} when reading directly from {@link #input}.
 	 */
-	private final InputReader z;
+	private final @Nullable InputReader z;
+
+	/**
+	 * The array we're reading from, if the whole chunk is already in memory. This is read directly, rather than
+	 * going through {@link #z}, and names and strings are created as slices of it.
+	 */
+	private final byte @Nullable [] input;
+	private int inputPosition;
+	private final int inputLimit;
 
 	/**
 	 * Input line counter
@@ -129,21 +138,58 @@ final class Lex {
 		this.source = source;
 		this.z = z;
 		this.current = current;
+		input = null;
+		inputLimit = 0;
+
+		token.token = 0;
+		lookahead.token = TK_EOS;
+	}
+
+	Lex(LuaString source, byte[] input, int offset, int limit, int current) {
+		this.source = source;
+		z = null;
+		this.current = current;
+		this.input = input;
+		inputPosition = offset;
+		inputLimit = limit;
 
 		token.token = 0;
 		lookahead.token = TK_EOS;
 	}
 
 	private void next() throws CompileException, UnwindThrowable {
-		current = z.read();
+		byte[] input = this.input;
+		if (input != null) {
+			current = inputPosition < inputLimit ? Byte.toUnsignedInt(input[inputPosition++]) : EOZ;
+		} else {
+			current = z.read();
+		}
 		columnNumber++;
 	}
 
+	/**
+	 * Skip the next {@code count} characters of {@link #input}, so that the character after them becomes the current
+	 * one.
+	 *
+	 * @param count The number of characters to skip. The current character counts as the first of these.
+	 */
+	private void skipInput(int count) throws CompileException, UnwindThrowable {
+		inputPosition += count - 1;
+		columnNumber += count - 1;
+		next();
+	}
+
 	private void save(int toSave) {
 		if (buff == null || bufferSize + 1 > buff.length) buff = LuaC.realloc(buff, bufferSize * 2 + 1);
 		buff[bufferSize++] = (byte) toSave;
 	}
 
+	private void save(byte[] bytes, int offset, int length) {
+		if (bufferSize + length > buff.length) buff = LuaC.realloc(buff, Math.max(bufferSize * 2 + 1, bufferSize + length));
+		System.arraycopy(bytes, offset, buff, bufferSize, length);
+		bufferSize += length;
+	}
+
 	private boolean currIsNewline() {
 		return current == '\n' || current == '\r';
 	}
@@ -168,7 +214,7 @@ final class Lex {
 
 	private String txtToken(int token) {
 		return switch (token) {
-			case TK_NAME, TK_STRING, TK_NUMBER -> "'" + LuaString.valueOf(buff, 0, bufferSize) + "'";
+			case TK_NAME, TK_STRING, TK_NUMBER -> "'" + LuaString.valueOfCopy(buff, 0, bufferSize) + "'";
 			default -> token2str(token);
 		};
 	}
@@ -197,16 +243,20 @@ final class Lex {
 	 * @return The created or interned string.
 	 */
 	LuaString newString(byte[] bytes, int offset, int len) {
-		LuaString string = LuaString.valueOf(bytes, offset, len);
-		LuaString interned = strings.get(string);
-		if (interned == null) {
-			// must copy bytes, since bytes could be from reusable buffer
-			byte[] slice = new byte[len];
-			System.arraycopy(bytes, offset, slice, 0, len);
-			interned = LuaString.valueOf(slice);
-			strings.put(interned, interned);
-		}
-		return interned;
+		// must copy bytes, since bytes could be from reusable buffer
+		return strings.computeIfAbsent(LuaString.valueOfCopy(bytes, offset, len), Function.identity());
+	}
+
+	/**
+	 * Create and intern a slice of {@link #input}. Unlike {@link #newString(byte[], int, int)}, this does not need to
+	 * copy the bytes, as the input array is never modified.
+	 *
+	 * @param offset The offset into the input.
+	 * @param len    The length of the string.
+	 * @return The created or interned string.
+	 */
+	private LuaString newInputString(int offset, int len) {
+		return strings.computeIfAbsent(LuaString.valueOf(input, offset, len), Function.identity());
 	}
 
 	LuaString newString(String value) {
@@ -405,6 +455,23 @@ final class Lex {
 	}
 
 	private LuaString readString(int del) throws CompileException, UnwindThrowable {
+		byte[] input = this.input;
+		if (input != null) {
+			// If this string has no escapes, then we can take it directly from the input.
+			int start = inputPosition, end = start;
+			while (end < inputLimit) {
+				byte c = input[end];
+				if (c == del || c == '\\' || c == '\n' || c == '\r') break;
+				end++;
+			}
+
+			if (end < inputLimit && input[end] == del) {
+				save(input, start - 1, end - start + 2);
+				skipInput(end - start + 2);
+				return newInputString(start, end - start);
+			}
+		}
+
 		saveAndNext();
 		while (current != del) {
 			switch (current) {
@@ -577,10 +644,22 @@ final class Lex {
 
 					if (isAlpha(current) || current == '_') {
 						/* identifier or reserved word */
-						do {
-							saveAndNext();
-						} while (isAlphaNum(current) || current == '_');
-						LuaString ts = newString(buff, 0, bufferSize);
+						LuaString ts;
+						byte[] input = this.input;
+						if (input != null) {
+							int start = inputPosition - 1, end = inputPosition;
+							while (end < inputLimit && (isAlphaNum(input[end]) || input[end] == '_')) end++;
+
+							save(input, start, end - start);
+							skipInput(end - start);
+							ts = newInputString(start, end - start);
+						} else {
+							do {
+								saveAndNext();
+							} while (isAlphaNum(current) || current == '_');
+							ts = newString(buff, 0, bufferSize);
+						}
+
 						if (RESERVED.containsKey(ts)) {
 							return RESERVED.get(ts);
 						} else {
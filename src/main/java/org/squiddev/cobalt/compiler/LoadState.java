@@ -35,6 +35,9 @@ import org.squiddev.cobalt.lib.CoreLibraries;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
 
@@ -120,7 +123,49 @@ public final class LoadState {
 	}
 
 	public static LuaClosure load(LuaState state, InputStream stream, LuaString name, LuaString mode, LuaTable env) throws CompileException {
-		return state.compiler.load(LuaC.compile(stream, name, mode), env);
+		return state.compiler.load(LuaC.compile(state.compileCache, state.optimiseBytecode, stream, name, mode), env);
+	}
+
+	/**
+	 * Load lua in either binary or text form from a string.
+	 * <p>
+	 * This is more efficient than loading from an {@link InputStream}, as the compiler can read the string directly.
+	 *
+	 * @param state    The current lua state
+	 * @param contents The string to load
+	 * @param name     Name to apply to the loaded chunk
+	 * @param mode     The kinds of chunk which may be loaded, or {@code null} to allow all.
+	 * @param env      Environment to load into
+	 * @return {@link Prototype} that was loaded
+	 * @throws CompileException If the string cannot be loaded.
+	 */
+	public static LuaClosure load(LuaState state, LuaString contents, LuaString name, LuaString mode, LuaTable env) throws CompileException {
+		return state.compiler.load(LuaC.compile(state.compileCache, state.optimiseBytecode, contents, name, mode), env);
+	}
+
+	/**
+	 * Compile several chunks in parallel, and then load them into a Lua state.
+	 * <p>
+	 * Chunks are compiled on the {@linkplain ForkJoinPool#commonPool() common pool}, using the
+	 * state's {@linkplain LuaState#compileCache compile cache}. The functions themselves are created on the calling
+	 * thread.
+	 *
+	 * @param state  The current lua state
+	 * @param chunks A map of chunk names to their contents.
+	 * @param mode   The kinds of chunk which may be loaded, or {@code null} to allow all.
+	 * @param env    Environment to load into
+	 * @return A map of chunk names to the loaded functions, in the same order as {@code chunks}.
+	 * @throws CompileException If any chunk could not be loaded.
+	 * @see LuaC#compileAll(Map, LuaString)
+	 */
+	public static Map<LuaString, LuaClosure> loadAll(LuaState state, Map<LuaString, LuaString> chunks, LuaString mode, LuaTable env) throws CompileException {
+		Map<LuaString, Prototype> prototypes = LuaC.compileAll(state.compileCache, state.optimiseBytecode, chunks, mode, ForkJoinPool.commonPool());
+
+		Map<LuaString, LuaClosure> functions = new LinkedHashMap<>();
+		for (Map.Entry<LuaString, Prototype> prototype : prototypes.entrySet()) {
+			functions.put(prototype.getKey(), state.compiler.load(prototype.getValue(), env));
+		}
+		return functions;
 	}
 
 	/**
@@ -25,6 +25,7 @@
 package org.squiddev.cobalt.compiler;
 
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.compiler.LoadState.FunctionFactory;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
@@ -35,6 +36,15 @@ import org.squiddev.cobalt.unwind.SuspendedTask;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
 import static org.squiddev.cobalt.compiler.LoadState.checkMode;
@@ -172,11 +182,123 @@ public class LuaC {
 	}
 
 	public static Prototype compile(InputStream stream, LuaString name, LuaString mode) throws CompileException {
+		return compile(null, false, stream, name, mode);
+	}
+
+	static Prototype compile(@Nullable CompileCache cache, boolean optimise, InputStream stream, LuaString name, LuaString mode) throws CompileException {
+		byte[] contents;
+		try {
+			contents = stream.readAllBytes();
+		} catch (IOException e) {
+			String message = e.getMessage() == null ? e.toString() : e.getMessage();
+			throw new CompileException("io error: " + message);
+		}
+
+		return cache == null ? compile(contents, name, mode, optimise) : cache.compile(contents, name, mode, optimise);
+	}
+
+	/**
+	 * Compile a prototype or load a binary chunk from a string.
+	 *
+	 * @param contents The string to load.
+	 * @param name     Name of the chunk
+	 * @param mode     The kinds of chunk which may be loaded, or {@code null} to allow all.
+	 * @return The compiled code
+	 * @throws CompileException If there is a syntax error.
+	 */
+	public static Prototype compile(LuaString contents, LuaString name, LuaString mode) throws CompileException {
+		return compile(null, false, contents, name, mode);
+	}
+
+	static Prototype compile(@Nullable CompileCache cache, boolean optimise, LuaString contents, LuaString name, LuaString mode) throws CompileException {
+		byte[] bytes = toBytes(contents);
+		return cache == null ? compile(bytes, name, mode, optimise) : cache.compile(bytes, name, mode, optimise);
+	}
+
+	/**
+	 * Compile several independent chunks in parallel, using the {@linkplain ForkJoinPool#commonPool() common pool}.
+	 *
+	 * @param chunks A map of chunk names to their contents. Each chunk may be text or binary.
+	 * @param mode   The kinds of chunk which may be loaded, or {@code null} to allow all.
+	 * @return A map of chunk names to their compiled prototypes, in the same order as {@code chunks}.
+	 * @throws CompileException If any chunk could not be compiled.
+	 * @see LoadState#loadAll(LuaState, Map, LuaString, LuaTable)
+	 */
+	public static Map<LuaString, Prototype> compileAll(Map<LuaString, LuaString> chunks, LuaString mode) throws CompileException {
+		return compileAll(null, false, chunks, mode, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compile several independent chunks in parallel.
+	 *
+	 * @param chunks   A map of chunk names to their contents. Each chunk may be text or binary.
+	 * @param mode     The kinds of chunk which may be loaded, or {@code null} to allow all.
+	 * @param executor The executor to compile chunks on.
+	 * @return A map of chunk names to their compiled prototypes, in the same order as {@code chunks}.
+	 * @throws CompileException If any chunk could not be compiled.
+	 */
+	public static Map<LuaString, Prototype> compileAll(Map<LuaString, LuaString> chunks, LuaString mode, Executor executor) throws CompileException {
+		return compileAll(null, false, chunks, mode, executor);
+	}
+
+	static Map<LuaString, Prototype> compileAll(@Nullable CompileCache cache, boolean optimise, Map<LuaString, LuaString> chunks, LuaString mode, Executor executor) throws CompileException {
+		List<LuaString> names = new ArrayList<>(chunks.size());
+		List<CompletableFuture<Prototype>> results = new ArrayList<>(chunks.size());
+		for (Map.Entry<LuaString, LuaString> chunk : chunks.entrySet()) {
+			// Copy the name and contents (and check the mode) on this thread, so the compiler never touches the
+			// caller's strings from another thread.
+			LuaString name = LuaString.valueOf(toBytes(chunk.getKey()));
+			byte[] contents = toBytes(chunk.getValue());
+			checkMode(mode, contents.length > 0 && contents[0] == LoadState.LUA_SIGNATURE[0] ? "binary" : "text");
+
+			names.add(chunk.getKey());
+			results.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return cache == null ? compile(contents, name, null, optimise) : cache.compile(contents, name, null, optimise);
+				} catch (CompileException e) {
+					throw new CompletionException(e);
+				}
+			}, executor));
+		}
+
+		Map<LuaString, Prototype> prototypes = new LinkedHashMap<>();
+		for (int i = 0; i < names.size(); i++) {
+			try {
+				prototypes.put(names.get(i), results.get(i).join());
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof CompileException compileError) throw compileError;
+				throw e;
+			}
+		}
+		return prototypes;
+	}
+
+	private static byte[] toBytes(LuaString string) {
+		byte[] bytes = new byte[string.length()];
+		string.copyTo(bytes, 0);
+		return bytes;
+	}
+
+	static Prototype compile(byte[] contents, LuaString name, LuaString mode) throws CompileException {
+		return compile(contents, name, mode, false);
+	}
+
+	/**
+	 * Compile a prototype or load a binary chunk from an array.
+	 *
+	 * @param contents The array to load.
+	 * @param name     Name of the chunk
+	 * @param mode     The kinds of chunk which may be loaded, or {@code null} to allow all.
+	 * @param optimise Whether to run the {@link BytecodeOptimiser} over the compiled code.
+	 * @return The compiled code
+	 * @throws CompileException If there is a syntax error.
+	 */
+	static Prototype compile(byte[] contents, LuaString name, LuaString mode, boolean optimise) throws CompileException {
 		Object result;
 		try {
 			result = SuspendedTask.noYield(() -> {
 				try {
-					return compile(new InputStreamReader(stream), name, mode);
+					return compileDirect(contents, name, mode);
 				} catch (CompileException e) {
 					return e;
 				}
@@ -186,10 +308,44 @@ public class LuaC {
 			throw new AssertionError("Lua compiler should never throw a Lua error", e);
 		}
 
+		if (result instanceof CompileException) throw (CompileException) result;
+		return optimise ? BytecodeOptimiser.optimise((Prototype) result) : (Prototype) result;
+	}
+
+	/**
+	 * Load a chunk written by {@link BytecodeDumper#dumpWithColumns(Prototype, OutputStream)}.
+	 *
+	 * @param contents The array containing the chunk.
+	 * @param offset   The offset of the chunk's header (after its signature) within the array.
+	 * @param name     Name of the chunk
+	 * @return The loaded prototype.
+	 * @throws CompileException If the chunk is malformed.
+	 */
+	static Prototype loadWithColumns(byte[] contents, int offset, LuaString name) throws CompileException {
+		Object result;
+		try {
+			result = SuspendedTask.noYield(() -> {
+				try {
+					return loadWithColumnsDirect(contents, offset, name);
+				} catch (CompileException e) {
+					return e;
+				}
+			});
+		} catch (LuaError e) {
+			throw new AssertionError("Lua compiler should never throw a Lua error", e);
+		}
+
 		if (result instanceof CompileException) throw (CompileException) result;
 		return (Prototype) result;
 	}
 
+	@AutoUnwind
+	private static Prototype loadWithColumnsDirect(byte[] contents, int offset, LuaString name) throws CompileException, UnwindThrowable {
+		BytecodeLoader loader = new BytecodeLoader(new ArrayReader(contents, offset), true);
+		loader.loadHeader();
+		return loader.loadFunction(LoadState.getSourceName(name));
+	}
+
 	@AutoUnwind
 	public static Prototype compile(InputReader stream, LuaString name, LuaString mode) throws CompileException, UnwindThrowable {
 		int firstByte = stream.read();
@@ -198,7 +354,19 @@ public class LuaC {
 			return loadBinaryChunk(firstByte, stream, name);
 		} else {
 			checkMode(mode, "text");
-			return loadTextChunk(firstByte, stream, name);
+			return loadTextChunk(new Parser(stream, firstByte, name));
+		}
+	}
+
+	@AutoUnwind
+	private static Prototype compileDirect(byte[] contents, LuaString name, LuaString mode) throws CompileException, UnwindThrowable {
+		int firstByte = contents.length > 0 ? Byte.toUnsignedInt(contents[0]) : -1;
+		if (firstByte == '\033') {
+			checkMode(mode, "binary");
+			return loadBinaryChunk(firstByte, new ArrayReader(contents, 1), name);
+		} else {
+			checkMode(mode, "text");
+			return loadTextChunk(new Parser(contents, 1, contents.length, firstByte, name));
 		}
 	}
 
@@ -206,8 +374,7 @@ public class LuaC {
 	 * Parse the input
 	 */
 	@AutoUnwind
-	private static Prototype loadTextChunk(int firstByte, InputReader stream, LuaString name) throws CompileException, UnwindThrowable {
-		Parser parser = new Parser(stream, firstByte, name);
+	private static Prototype loadTextChunk(Parser parser) throws CompileException, UnwindThrowable {
 		parser.lexer.skipShebang();
 		FuncState funcstate = parser.openFunc();
 		funcstate.varargFlags = Lua.VARARG_ISVARARG; /* main func. is always vararg */
@@ -221,21 +388,18 @@ public class LuaC {
 		return prototype;
 	}
 
-	private static class InputStreamReader implements InputReader {
-		private final InputStream stream;
+	private static class ArrayReader implements InputReader {
+		private final byte[] contents;
+		private int position;
 
-		public InputStreamReader(InputStream stream) {
-			this.stream = stream;
+		ArrayReader(byte[] contents, int position) {
+			this.contents = contents;
+			this.position = position;
 		}
 
 		@Override
-		public int read() throws CompileException, UnwindThrowable {
-			try {
-				return stream.read();
-			} catch (IOException e) {
-				String message = e.getMessage() == null ? e.toString() : e.getMessage();
-				throw new CompileException("io error: " + message);
-			}
+		public int read() {
+			return position < contents.length ? Byte.toUnsignedInt(contents[position++]) : -1;
 		}
 	}
 }
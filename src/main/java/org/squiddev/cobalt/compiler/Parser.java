@@ -61,6 +61,11 @@ final class Parser {
 		fs = null;
 	}
 
+	Parser(byte[] input, int offset, int limit, int firstByte, LuaString source) {
+		lexer = new Lex(source, input, offset, limit, firstByte);
+		fs = null;
+	}
+
 	// =============================================================
 	// from lparser.c
 	// =============================================================
@@ -0,0 +1,126 @@
+package org.squiddev.cobalt.compiler;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.LuaTable;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.LuaClosure;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe registry of {@linkplain Prototype#share() shared} prototypes.
+ * <p>
+ * Each chunk is only compiled once, no matter how many {@link LuaState}s load it, and all states share the same
+ * prototype. This is useful when running many states which all load the same library code.
+ * <p>
+ * Chunks are keyed on a hash of their name and contents, so loading a chunk with the same name but different contents will
+ * compile it again. {@linkplain LuaState.Builder#optimiseBytecode(boolean) Optimised} and unoptimised chunks are
+ * stored separately. Chunks which fail to compile are not stored.
+ */
+public final class PrototypeRegistry {
+	private final ConcurrentMap<Key, Prototype> prototypes = new ConcurrentHashMap<>();
+	private final @Nullable CompileCache cache;
+
+	/**
+	 * Create a new registry, which compiles chunks from source.
+	 */
+	public PrototypeRegistry() {
+		this.cache = null;
+	}
+
+	/**
+	 * Create a new registry, which compiles chunks using a {@link CompileCache}.
+	 *
+	 * @param cache The cache to compile chunks with.
+	 */
+	public PrototypeRegistry(CompileCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Compile a chunk, or get the existing prototype if it has already been compiled.
+	 *
+	 * @param contents The contents of the chunk. This may be a text or binary chunk.
+	 * @param name     The name of the chunk.
+	 * @return The shared prototype.
+	 * @throws CompileException If the chunk could not be compiled.
+	 */
+	public Prototype compile(LuaString contents, LuaString name) throws CompileException {
+		return compile(contents, name, false);
+	}
+
+	/**
+	 * Compile a chunk, or get the existing prototype if it has already been compiled.
+	 *
+	 * @param contents The contents of the chunk. This may be a text or binary chunk.
+	 * @param name     The name of the chunk.
+	 * @param optimise Whether to run the {@link BytecodeOptimiser} over the compiled code.
+	 * @return The shared prototype.
+	 * @throws CompileException If the chunk could not be compiled.
+	 */
+	public Prototype compile(LuaString contents, LuaString name, boolean optimise) throws CompileException {
+		byte[] bytes = toBytes(contents);
+		Key key = new Key(CompileCache.hash(bytes, name), optimise);
+		Prototype prototype = prototypes.get(key);
+		if (prototype != null) return prototype;
+
+		// We compile outside computeIfAbsent, as compiling may be slow and would block other updates. If two threads
+		// compile the same chunk at once, both use whichever prototype was stored first.
+		prototype = (cache == null ? LuaC.compile(bytes, name, null, optimise) : cache.compile(bytes, name, null, optimise)).share();
+
+		Prototype existing = prototypes.putIfAbsent(key, prototype);
+		return existing == null ? prototype : existing;
+	}
+
+	private static byte[] toBytes(LuaString string) {
+		byte[] bytes = new byte[string.length()];
+		string.copyTo(bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Load a chunk into a Lua state, reusing the existing prototype if it has already been compiled.
+	 * <p>
+	 * The chunk is optimised if the state {@linkplain LuaState#optimiseBytecode optimises bytecode}.
+	 *
+	 * @param state    The state to load the chunk into.
+	 * @param contents The contents of the chunk. This may be a text or binary chunk.
+	 * @param name     The name of the chunk.
+	 * @param env      The environment of the loaded function.
+	 * @return The loaded function.
+	 * @throws CompileException If the chunk could not be compiled.
+	 */
+	public LuaClosure load(LuaState state, LuaString contents, LuaString name, LuaTable env) throws CompileException {
+		return state.compiler.load(compile(contents, name, state.optimiseBytecode), env);
+	}
+
+	/**
+	 * Remove all prototypes from this registry. Functions which have already been loaded are not affected.
+	 */
+	public void clear() {
+		prototypes.clear();
+	}
+
+	/**
+	 * The key of a chunk in the registry. This holds a hash of the chunk, rather than its contents, so that the
+	 * registry does not keep the source code of every chunk alive.
+	 *
+	 * @param hash     The SHA-256 hash of the chunk's name and contents.
+	 * @param optimise Whether the chunk is optimised.
+	 */
+	private record Key(byte[] hash, boolean optimise) {
+		@Override
+		public boolean equals(Object o) {
+			return this == o || (o instanceof Key other && optimise == other.optimise && Arrays.equals(hash, other.hash));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(hash) + Boolean.hashCode(optimise);
+		}
+	}
+}
@@ -52,6 +52,13 @@ public final class DebugState {
 
 	private static final DebugFrame[] EMPTY = new DebugFrame[0];
 
+	/**
+	 * The number of register stacks of each size to keep for reuse.
+	 *
+	 * @see #allocateStack(int)
+	 */
+	private static final int STACK_POOL_DEPTH = 8;
+
 	/**
 	 * The thread's lua state
 	 */
@@ -97,6 +104,16 @@ public final class DebugState {
 	 */
 	public int hookPendingCount;
 
+	/**
+	 * Register stacks which are no longer in use, indexed by their size. This is only allocated once a stack is
+	 * released.
+	 *
+	 * @see #allocateStack(int)
+	 * @see #releaseStack(LuaValue[])
+	 */
+	private LuaValue[][][] stackPool;
+	private int[] stackPoolCount;
+
 	public DebugState(LuaState state) {
 		this.state = state;
 	}
@@ -158,6 +175,62 @@ public final class DebugState {
 		frame.clear();
 	}
 
+	/**
+	 * Get a register stack for a Lua function, with every slot set to {@link Constants#NIL}.
+	 * <p>
+	 * This reuses a stack from a function which has since returned if possible, rather than allocating a new one.
+	 *
+	 * @param size The size of the stack, namely {@link Prototype#maxStackSize}.
+	 * @return The new stack.
+	 */
+	public LuaValue[] allocateStack(int size) {
+		int[] counts = stackPoolCount;
+		if (counts != null && size < counts.length) {
+			int count = counts[size];
+			if (count > 0) {
+				LuaValue[][] pool = stackPool[size];
+				LuaValue[] stack = pool[--count];
+				pool[count] = null;
+				counts[size] = count;
+				return stack;
+			}
+		}
+
+		LuaValue[] stack = new LuaValue[size];
+		System.arraycopy(Constants.NILS, 0, stack, 0, size);
+		return stack;
+	}
+
+	/**
+	 * Return a register stack to the pool, so it can be used by another function.
+	 * <p>
+	 * The stack must no longer be referenced by anything else, including any open {@link Upvalue}s, so this should only
+	 * be called after {@link DebugFrame#cleanup()}.
+	 *
+	 * @param stack The stack to release.
+	 * @see #allocateStack(int)
+	 */
+	public void releaseStack(LuaValue[] stack) {
+		int size = stack.length;
+		if (size > Constants.NILS.length) return;
+
+		int[] counts = stackPoolCount;
+		if (counts == null) {
+			counts = stackPoolCount = new int[Constants.NILS.length + 1];
+			stackPool = new LuaValue[counts.length][][];
+		}
+
+		int count = counts[size];
+		if (count >= STACK_POOL_DEPTH) return;
+
+		LuaValue[][] pool = stackPool[size];
+		if (pool == null) pool = stackPool[size] = new LuaValue[STACK_POOL_DEPTH][];
+
+		System.arraycopy(Constants.NILS, 0, stack, 0, size);
+		pool[count] = stack;
+		counts[size] = count + 1;
+	}
+
 	/**
 	 * Setup the hook
 	 *
@@ -361,6 +434,16 @@ public final class DebugState {
 		frame.oldPc = pc;
 	}
 
+	/**
+	 * Whether any hook is set, or we are currently running inside a hook. When this is false, functions do not need to
+	 * track their program counter on every instruction.
+	 *
+	 * @return Whether any hooks are active.
+	 */
+	public boolean hasActiveHooks() {
+		return hookMask != 0 || inhook;
+	}
+
 	/**
 	 * The hook function to call
 	 */
@@ -0,0 +1,37 @@
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.LuaError;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.UnwindThrowable;
+import org.squiddev.cobalt.debug.DebugFrame;
+
+/**
+ * A {@link Prototype} which has been compiled to JVM bytecode.
+ * <p>
+ * Compiled code is not a replacement for the {@link LuaInterpreter}, but a fast path through it. It runs from the
+ * frame's current {@link DebugFrame#pc} until it reaches an instruction it cannot handle itself (such as calling or
+ * returning from a Lua function), at which point it stores the current program counter and returns. The interpreter
+ * then continues from there.
+ * <p>
+ * As compiled code keeps {@link DebugFrame#pc} up-to-date before any operation which may error or yield, resuming a
+ * function after a yield is handled entirely by the interpreter.
+ *
+ * @see LuaState.Builder#compileThreshold(int)
+ * @see PrototypeCompiler
+ */
+public abstract class CompiledPrototype {
+	CompiledPrototype() {
+	}
+
+	/**
+	 * Execute this function, starting at the current {@link DebugFrame#pc}.
+	 *
+	 * @param state    The current Lua state.
+	 * @param di       The current call frame.
+	 * @param function The function being executed.
+	 * @throws LuaError        If an instruction errored.
+	 * @throws UnwindThrowable If an instruction yielded.
+	 */
+	abstract void execute(LuaState state, DebugFrame di, LuaInterpretedFunction function) throws LuaError, UnwindThrowable;
+}
@@ -43,16 +43,14 @@ import static org.squiddev.cobalt.debug.DebugFrame.*;
 public final class LuaInterpreter {
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		LuaValue[] stack = DebugState.get(state).allocateStack(p.maxStackSize);
 
 		return setupCallFinish(state, function, NONE, stack, flags);
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		LuaValue[] stack = DebugState.get(state).allocateStack(p.maxStackSize);
 
 		switch (p.parameters) {
 			case 0 -> {
@@ -67,8 +65,7 @@ public final class LuaInterpreter {
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		LuaValue[] stack = DebugState.get(state).allocateStack(p.maxStackSize);
 
 		switch (p.parameters) {
 			case 0 -> {
@@ -88,8 +85,7 @@ public final class LuaInterpreter {
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, LuaValue arg3, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		LuaValue[] stack = DebugState.get(state).allocateStack(p.maxStackSize);
 
 		switch (p.parameters) {
 			case 0 -> {
@@ -115,8 +111,7 @@ public final class LuaInterpreter {
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		LuaValue[] stack = DebugState.get(state).allocateStack(p.maxStackSize);
 		for (int i = 0; i < p.parameters; i++) stack[i] = varargs.arg(i + 1);
 
 		return setupCallFinish(state, function, p.isVarArg != 0 ? varargs.subargs(p.parameters + 1) : NONE, stack, flags);
@@ -124,8 +119,7 @@ public final class LuaInterpreter {
 
 	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		LuaValue[] stack = DebugState.get(state).allocateStack(p.maxStackSize);
 
 		System.arraycopy(args, argStart, stack, 0, Math.min(argSize, p.parameters));
 
@@ -138,8 +132,7 @@ public final class LuaInterpreter {
 
 	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, Varargs varargs) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		LuaValue[] stack = DebugState.get(state).allocateStack(p.maxStackSize);
 
 		varargs = ValueFactory.varargsOfCopy(args, argStart, argSize, varargs);
 		for (int i = 0; i < p.parameters; i++) stack[i] = varargs.arg(i + 1);
@@ -168,35 +161,92 @@ public final class LuaInterpreter {
 	 ** (eeeeexxx), where the real value is (1xxx) * 2^(eeeee - 1) if
 	 ** eeeee != 0 and (xxx) otherwise.
 	 */
-	private static int luaO_fb2int(int x) {
+	static int luaO_fb2int(int x) {
 		int e = (x >> 3) & 31;
 		if (e == 0) return x;
 		else return ((x & 7) + 8) << (e - 1);
 	}
 
+	/**
+	 * Get the compiled version of a prototype, compiling it if it has been executed enough times.
+	 *
+	 * @param state The current Lua state.
+	 * @param p     The prototype to compile.
+	 * @return The compiled prototype, or {@code null} if it is not (yet) compiled.
+	 * @see LuaState.Builder#compileThreshold(int)
+	 */
+	private static CompiledPrototype getCompiled(LuaState state, Prototype p) {
+		CompiledPrototype compiled = p.compiled;
+		if (compiled != null || p.hotness++ < state.compileThreshold) return compiled;
+
+		compiled = p.compiled = PrototypeCompiler.compile(state, p);
+		// If the function cannot be compiled, push it back so we don't try again on every call.
+		if (compiled == null) p.hotness = Integer.MIN_VALUE;
+		return compiled;
+	}
+
+	/**
+	 * Handle a backwards jump, checking for interrupts and switching to compiled code if needed.
+	 *
+	 * @param state The current Lua state.
+	 * @param ds    The current debug state.
+	 * @param di    The current call frame.
+	 * @param p     The currently executing prototype.
+	 * @param pc    The program counter we jumped to.
+	 * @return Whether this function has been compiled, and so execution should continue from {@link DebugFrame#pc}.
+	 * @throws LuaError        If the interrupt handler errored.
+	 * @throws UnwindThrowable If the interrupt handler yielded.
+	 */
+	private static boolean backwardsJump(LuaState state, DebugState ds, DebugFrame di, Prototype p, int pc) throws LuaError, UnwindThrowable {
+		if (state.isInterrupted()) {
+			di.pc = pc;
+			state.handleInterrupt();
+		}
+
+		if (state.compileThreshold >= 0 && !ds.hasActiveHooks() && getCompiled(state, p) != null) {
+			di.pc = pc;
+			return true;
+		}
+
+		return false;
+	}
+
+	@SuppressWarnings("fallthrough")
 	static Varargs execute(final LuaState state, DebugFrame di, LuaInterpretedFunction function) throws LuaError, UnwindThrowable {
 		final DebugState ds = DebugState.get(state);
+		final int compileThreshold = state.compileThreshold;
 
 		newFrame:
 		while (true) {
 			// Fetch all info from the function
 			final Prototype p = function.p;
 			final Upvalue[] upvalues = function.upvalues;
-			final int[] code = p.code;
+			final int[] code = p.quickenedCode;
 			final LuaValue[] k = p.constants;
+			final IndexCache[] caches = p.indexCaches;
 
 			// And from the debug info
 			final LuaValue[] stack = di.stack;
 			final Varargs varargs = di.varargs;
 
+			// If this function has been compiled, run that until it hands control back to us (on a Lua call or
+			// return, or when a hook is installed). We then continue interpreting from wherever it left off.
+			CompiledPrototype compiled;
+			if (compileThreshold >= 0 && !ds.hasActiveHooks() && (compiled = getCompiled(state, p)) != null) {
+				compiled.execute(state, di, function);
+			}
+
 			int pc = di.pc;
 
+			// Interrupts are only checked when entering a function and on backwards jumps, rather than before every
+			// instruction. This is enough to guarantee that any long-running code will be interrupted.
+			if (state.isInterrupted()) {
+				di.pc = pc;
+				state.handleInterrupt();
+			}
+
 			// process instructions
 			while (true) {
-				if (state.isInterrupted()) {
-					di.pc = pc;
-					state.handleInterrupt();
-				}
 				ds.onInstruction(di, pc);
 
 				// pull out instruction
@@ -231,7 +281,7 @@ public final class LuaInterpreter {
 						break;
 
 					case OP_GETGLOBAL: // A Bx	R(A):= Gbl[Kst(Bx)]
-						stack[a] = OperationHelper.getTable(state, function.getfenv(), k[(i >>> POS_Bx) & MAXARG_Bx]);
+						stack[a] = OperationHelper.getTable(state, function.getfenv(), k[(i >>> POS_Bx) & MAXARG_Bx], caches[pc - 1], -1);
 						break;
 
 					case OP_GETTABLE: { // A B C: R(A):= R(B)[RK(C)]
@@ -337,18 +387,24 @@ public final class LuaInterpreter {
 						break;
 					}
 
-					case OP_JMP: // sBx: pc+=sBx
-						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+					case OP_JMP: { // sBx: pc+=sBx
+						int offset = ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+						pc += offset;
+						if (offset < 0 && backwardsJump(state, ds, di, p, pc)) continue newFrame;
 						break;
+					}
 
 					case OP_EQ: { // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.eq(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
 							// We assume the next instruction is a jump and read the branch from there.
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0 && backwardsJump(state, ds, di, p, pc)) continue newFrame;
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
@@ -356,9 +412,12 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.lt(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0 && backwardsJump(state, ds, di, p, pc)) continue newFrame;
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
@@ -366,17 +425,23 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.le(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0 && backwardsJump(state, ds, di, p, pc)) continue newFrame;
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
 					case OP_TEST: // A C: if not (R(A) <=> C) then pc++
 						if (stack[a].toBoolean() == (((i >> POS_C) & MAXARG_C) != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0 && backwardsJump(state, ds, di, p, pc)) continue newFrame;
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 
 					case OP_TESTSET: { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
@@ -386,12 +451,25 @@ public final class LuaInterpreter {
 						LuaValue val = stack[b];
 						if (val.toBoolean() == (c != 0)) {
 							stack[a] = val;
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0 && backwardsJump(state, ds, di, p, pc)) continue newFrame;
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
+					case OP_GETGLOBAL_CALL: // A Bx: R(A):= Gbl[Kst(Bx)], followed by OP_CALL A B C
+						stack[a] = OperationHelper.getTable(state, function.getfenv(), k[(i >>> POS_Bx) & MAXARG_Bx], caches[pc - 1], -1);
+
+						// If __index installed a hook, run the call as a separate instruction so the hook sees it.
+						if (ds.hasActiveHooks()) break;
+
+						di.pc = pc;
+						i = code[pc++];
+						// fall through
+
 					case OP_CALL: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = ((i >> POS_C) & MAXARG_C);
@@ -446,6 +524,7 @@ public final class LuaInterpreter {
 							int flags = di.flags;
 							di.cleanup();
 							ds.popInfo();
+							ds.releaseStack(stack);
 
 							// Replace the current frame with a new one.
 							function = (LuaInterpretedFunction) functionVal;
@@ -468,6 +547,19 @@ public final class LuaInterpreter {
 						di.cleanup();
 						ds.onReturn(di);
 
+						if ((flags & FLAG_FRESH) == 0) {
+							di = ds.getStackUnsafe();
+							function = (LuaInterpretedFunction) di.func;
+
+							// Try to copy our results straight into the caller's registers, without building a Varargs.
+							if (b == 0
+								? returnInto(di, function.p, stack, a, top - v.count() - a, v)
+								: returnInto(di, function.p, stack, a, b - 1, NONE)) {
+								ds.releaseStack(stack);
+								continue newFrame;
+							}
+						}
+
 						Varargs ret = switch (b) {
 							case 0 -> ValueFactory.varargsOfCopy(stack, a, top - v.count() - a, v);
 							case 1 -> NONE;
@@ -475,39 +567,29 @@ public final class LuaInterpreter {
 							default -> ValueFactory.varargsOfCopy(stack, a, b - 1);
 						};
 
+						// All values have been copied out of the stack and upvalues closed, so it can now be reused.
+						ds.releaseStack(stack);
+
 						if ((flags & FLAG_FRESH) != 0) {
 							// If we're a fresh invocation then return to the parent.
 							return ret;
 						} else {
-							di = ds.getStackUnsafe();
-							function = (LuaInterpretedFunction) di.func;
 							resume(state, di, function, ret);
 							continue newFrame;
 						}
 					}
 
-					case OP_FORLOOP: { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
-						double limit = stack[a + 1].checkDouble();
-						double step = stack[a + 2].checkDouble();
-						double value = stack[a].checkDouble();
-						double idx = step + value;
-						if (0 < step ? idx <= limit : limit <= idx) {
-							stack[a + 3] = stack[a] = valueOf(idx);
+					case OP_FORLOOP: // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+						if (forLoop(stack, a)) {
 							pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							if (backwardsJump(state, ds, di, p, pc)) continue newFrame;
 						}
-					}
-					break;
+						break;
 
-					case OP_FORPREP: { // A sBx: R(A)-=R(A+2): pc+=sBx
-						LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
-						LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
-						LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
-						stack[a] = valueOf(init.toDouble() - step.toDouble());
-						stack[a + 1] = limit;
-						stack[a + 2] = step;
+					case OP_FORPREP: // A sBx: R(A)-=R(A+2): pc+=sBx
+						forPrep(stack, a);
 						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
-					}
-					break;
+						break;
 
 					case OP_TFORLOOP: {
 						/*
@@ -515,17 +597,15 @@ public final class LuaInterpreter {
 							R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
 							else pc++
 						*/
-						Varargs v = di.extras = OperationHelper.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
-						LuaValue val = v.first();
-						if (val.isNil()) {
-							pc++;
-						} else {
-							stack[a + 2] = stack[a + 3] = val;
-							for (int c = (i >> POS_C) & MAXARG_C; c > 1; --c) {
-								stack[a + 2 + c] = v.arg(c);
-							}
-							di.extras = NONE;
+						LuaValue iterator = stack[a];
+						if (iterator instanceof LuaInterpretedFunction) {
+							// Call Lua iterators directly, so their results can be returned with returnInto.
+							function = (LuaInterpretedFunction) iterator;
+							di = setupCall(state, function, stack[a + 1], stack[a + 2], 0);
+							continue newFrame;
 						}
+
+						if (!tforLoop(state, di, stack, a, (i >> POS_C) & MAXARG_C)) pc++;
 						break;
 					}
 
@@ -534,18 +614,7 @@ public final class LuaInterpreter {
 						int c = (i >> POS_C) & MAXARG_C;
 						if (c == 0) c = code[pc++];
 
-						int offset = (c - 1) * LFIELDS_PER_FLUSH;
-						LuaTable tbl = stack[a].checkTable();
-						if (b == 0) {
-							b = di.top - a - 1;
-							int m = b - di.extras.count();
-							int j = 1;
-							for (; j <= m; j++) tbl.rawset(offset + j, stack[a + j]);
-							for (; j <= b; j++) tbl.rawset(offset + j, di.extras.arg(j - m));
-						} else {
-							tbl.presize(offset + b);
-							for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[a + j]);
-						}
+						setList(di, stack, a, b, c);
 						break;
 					}
 
@@ -568,23 +637,67 @@ public final class LuaInterpreter {
 						break;
 					}
 
-					case OP_VARARG: { // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+					case OP_VARARG: // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+						vararg(di, stack, varargs, a, (i >>> POS_B) & MAXARG_B);
+						break;
+
+					case OP_GETTABLE_KS: { // A B C: R(A):= R(B)[Kst(C)]
+						int b = (i >>> POS_B) & MAXARG_B;
+						stack[a] = OperationHelper.getTable(state, stack[b], k[((i >>> POS_C) & MAXARG_C) & 0x0ff], caches[pc - 1], b);
+						break;
+					}
+
+					case OP_SELF_KS: { // A B C: R(A+1):= R(B): R(A):= R(B)[Kst(C)]
+						int b = (i >>> POS_B) & MAXARG_B;
+						LuaValue o = stack[a + 1] = stack[b];
+						stack[a] = OperationHelper.getTable(state, o, k[((i >>> POS_C) & MAXARG_C) & 0x0ff], caches[pc - 1], b);
+						break;
+					}
+
+					case OP_SETTABLE_KS: { // A B C: R(A)[Kst(B)]:= RK(C)
+						int c = (i >>> POS_C) & MAXARG_C;
+						OperationHelper.setTable(state, stack[a], k[((i >>> POS_B) & MAXARG_B) & 0x0ff], c > 0xff ? k[c & 0x0ff] : stack[c], a);
+						break;
+					}
+
+					case OP_ADD_RN: { // A B C: R(A):= R(B) + Kst(C)
 						int b = (i >>> POS_B) & MAXARG_B;
-						if (b == 0) {
-							di.top = a + varargs.count();
-							di.extras = varargs;
+						int c = (i >>> POS_C) & MAXARG_C;
+						LuaValue left = stack[b], right = k[c & 0x0ff];
+						stack[a] = left.type() == TNUMBER
+							? valueOf(left.toDouble() + right.toDouble())
+							: OperationHelper.add(state, left, right, b, c);
+						break;
+					}
+
+					case OP_SUB_RN: { // A B C: R(A):= R(B) - Kst(C)
+						int b = (i >>> POS_B) & MAXARG_B;
+						int c = (i >>> POS_C) & MAXARG_C;
+						LuaValue left = stack[b], right = k[c & 0x0ff];
+						stack[a] = left.type() == TNUMBER
+							? valueOf(left.toDouble() - right.toDouble())
+							: OperationHelper.sub(state, left, right, b, c);
+						break;
+					}
+
+					case OP_EQ_K: { // A B C: if ((R(B) == Kst(C)) ~= A) then pc++
+						LuaValue left = stack[(i >>> POS_B) & MAXARG_B], right = k[((i >>> POS_C) & MAXARG_C) & 0x0ff];
+						// Nil and booleans are singletons, so only strings need a deeper comparison.
+						if ((left == right || (right instanceof LuaString && right.equals(left))) == (a != 0)) {
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0 && backwardsJump(state, ds, di, p, pc)) continue newFrame;
 						} else {
-							for (int j = 1; j < b; ++j) {
-								stack[a + j - 1] = varargs.arg(j);
-							}
+							pc++;
 						}
+						break;
 					}
 				}
 			}
 		}
 	}
 
-	private static void nativeCall(LuaState state, DebugFrame di, LuaValue[] stack, LuaValue val, int i, int a, int b, int c) throws UnwindThrowable, LuaError {
+	static void nativeCall(LuaState state, DebugFrame di, LuaValue[] stack, LuaValue val, int i, int a, int b, int c) throws UnwindThrowable, LuaError {
 		switch (i & (MASK_B | MASK_C)) {
 			case (1 << POS_B) | (0 << POS_C) -> {
 				Varargs v = di.extras = OperationHelper.invoke(state, val, NONE, a);
@@ -620,7 +733,7 @@ public final class LuaInterpreter {
 		}
 	}
 
-	private static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, UnwindThrowable {
+	static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, UnwindThrowable {
 		try {
 			do {
 				LuaValue left = stack[top - 2];
@@ -670,6 +783,131 @@ public final class LuaInterpreter {
 		}
 	}
 
+	static boolean forLoop(LuaValue[] stack, int a) throws LuaError {
+		// Most loops are over integers, in which case we can avoid converting to and from doubles. The index and limit
+		// both fit in an int, so their sum never overflows a long.
+		if (stack[a] instanceof LuaInteger value && stack[a + 1] instanceof LuaInteger limit && stack[a + 2] instanceof LuaInteger step) {
+			long idx = (long) value.v + step.v;
+			if (0 < step.v ? idx <= limit.v : limit.v <= idx) {
+				stack[a + 3] = stack[a] = LuaInteger.valueOf((int) idx);
+				return true;
+			} else {
+				return false;
+			}
+		}
+
+		double limit = stack[a + 1].checkDouble();
+		double step = stack[a + 2].checkDouble();
+		double value = stack[a].checkDouble();
+		double idx = step + value;
+		if (0 < step ? idx <= limit : limit <= idx) {
+			stack[a + 3] = stack[a] = valueOf(idx);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	static void forPrep(LuaValue[] stack, int a) throws LuaError {
+		LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
+		LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
+		LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
+		stack[a] = init instanceof LuaInteger initI && step instanceof LuaInteger stepI
+			? LuaInteger.valueOf((long) initI.v - stepI.v)
+			: valueOf(init.toDouble() - step.toDouble());
+		stack[a + 1] = limit;
+		stack[a + 2] = step;
+	}
+
+	static boolean tforLoop(LuaState state, DebugFrame di, LuaValue[] stack, int a, int c) throws LuaError, UnwindThrowable {
+		Varargs v = di.extras = OperationHelper.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
+		LuaValue val = v.first();
+		if (val.isNil()) return false;
+
+		stack[a + 2] = stack[a + 3] = val;
+		for (; c > 1; --c) stack[a + 2 + c] = v.arg(c);
+		di.extras = NONE;
+		return true;
+	}
+
+	static void setList(DebugFrame di, LuaValue[] stack, int a, int b, int c) throws LuaError {
+		int offset = (c - 1) * LFIELDS_PER_FLUSH;
+		LuaTable tbl = stack[a].checkTable();
+		if (b == 0) {
+			b = di.top - a - 1;
+			int m = b - di.extras.count();
+			tbl.presize(offset + b);
+			int j = 1;
+			for (; j <= m; j++) tbl.rawset(offset + j, stack[a + j]);
+			for (; j <= b; j++) tbl.rawset(offset + j, di.extras.arg(j - m));
+		} else {
+			tbl.presize(offset + b);
+			for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[a + j]);
+		}
+	}
+
+	static void vararg(DebugFrame di, LuaValue[] stack, Varargs varargs, int a, int b) {
+		if (b == 0) {
+			di.top = a + varargs.count();
+			di.extras = varargs;
+		} else {
+			for (int j = 1; j < b; ++j) stack[a + j - 1] = varargs.arg(j);
+		}
+	}
+
+	/**
+	 * Return from a Lua function into another Lua function, copying the results directly into the calling function's
+	 * registers. This is equivalent to {@link #resume(LuaState, DebugFrame, LuaInterpretedFunction, Varargs)}, but
+	 * avoids allocating a {@link Varargs} when the caller wants a fixed number of results.
+	 *
+	 * @param di     The calling function's frame.
+	 * @param p      The calling function's prototype.
+	 * @param values The returning function's stack.
+	 * @param offset The position of the first result in {@code values}.
+	 * @param count  The number of results in {@code values}.
+	 * @param extra  Any additional results after those in {@code values}.
+	 * @return Whether the results were copied. If {@code false}, the caller should use {@code resume} instead.
+	 */
+	private static boolean returnInto(DebugFrame di, Prototype p, LuaValue[] values, int offset, int count, Varargs extra) {
+		int i = p.code[di.pc];
+		switch (GET_OPCODE(i)) {
+			case OP_CALL: {
+				int c = GETARG_C(i);
+				if (c == 0) return false;
+
+				int a = GETARG_A(i);
+				LuaValue[] stack = di.stack;
+				for (int j = 0; j < c - 1; j++) {
+					stack[a + j] = j < count ? values[offset + j] : extra.arg(j - count + 1);
+				}
+
+				di.extras = NONE;
+				di.pc++;
+				return true;
+			}
+
+			case OP_TFORLOOP: {
+				LuaValue o = count > 0 ? values[offset] : extra.first();
+				di.pc++;
+				if (o.isNil()) {
+					di.pc++;
+				} else {
+					int a = GETARG_A(i);
+					LuaValue[] stack = di.stack;
+					stack[a + 2] = stack[a + 3] = o;
+					for (int c = GETARG_C(i); c > 1; --c) {
+						stack[a + 2 + c] = c - 1 < count ? values[offset + c - 1] : extra.arg(c - count);
+					}
+					di.extras = NONE;
+				}
+				return true;
+			}
+
+			default:
+				return false;
+		}
+	}
+
 	public static void resume(LuaState state, DebugFrame di, LuaInterpretedFunction function, Varargs varargs) throws LuaError, UnwindThrowable {
 		int pc = di.pc++;
 		Prototype p = function.p;
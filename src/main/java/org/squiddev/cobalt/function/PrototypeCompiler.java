@@ -0,0 +1,709 @@
+package org.squiddev.cobalt.function;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.debug.DebugState;
+import org.squiddev.cobalt.debug.Upvalue;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * Compiles {@link Prototype}s to JVM bytecode.
+ * <p>
+ * Each prototype is compiled to a hidden class extending {@link CompiledPrototype}. Every Lua instruction becomes a
+ * straight-line sequence of JVM instructions, with operands decoded at compile time, and jumps become JVM jumps. This
+ * removes the decode and dispatch overhead of the {@link LuaInterpreter}, and allows the JVM to inline the various
+ * {@link OperationHelper} methods at each call site.
+ * <p>
+ * Registers still live in the {@linkplain DebugFrame#stack frame's stack} rather than in JVM locals, as upvalues and
+ * the debug library both refer to them.
+ * <p>
+ * Compiled code hands control back to the interpreter (by storing the current {@link DebugFrame#pc} and returning)
+ * when:
+ * <ul>
+ *   <li>Calling or tail-calling a {@link LuaInterpretedFunction}, or returning from this function.</li>
+ *   <li>At a backwards jump, when the {@link LuaState} is {@linkplain LuaState#isInterrupted() interrupted} or a
+ *   {@linkplain DebugState#hasActiveHooks() hook has been installed}.</li>
+ *   <li>After calling a Java function which installed a debug hook.</li>
+ * </ul>
+ * As the compiled method may be entered at any instruction, the interpreter can switch back to compiled code after
+ * any of these.
+ */
+final class PrototypeCompiler {
+	/**
+	 * The maximum length of a function we will attempt to compile. Anything much larger than this is likely to exceed
+	 * the JVM's method size limit.
+	 */
+	private static final int MAX_INSTRUCTIONS = 2000;
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final String CLASS_NAME = Type.getInternalName(CompiledPrototype.class) + "$Impl";
+
+	private static final String LUA_STATE = Type.getInternalName(LuaState.class);
+	private static final String DEBUG_FRAME = Type.getInternalName(DebugFrame.class);
+	private static final String DEBUG_STATE = Type.getInternalName(DebugState.class);
+	private static final String FUNCTION = Type.getInternalName(LuaInterpretedFunction.class);
+	private static final String INTERPRETER = Type.getInternalName(LuaInterpreter.class);
+	private static final String OPERATION = Type.getInternalName(OperationHelper.class);
+	private static final String PROTOTYPE = Type.getInternalName(Prototype.class);
+	private static final String UPVALUE = Type.getInternalName(Upvalue.class);
+	private static final String LUA_VALUE = Type.getInternalName(LuaValue.class);
+	private static final String LUA_TABLE = Type.getInternalName(LuaTable.class);
+	private static final String CONSTANTS = Type.getInternalName(Constants.class);
+
+	private static final String D_LUA_STATE = Type.getDescriptor(LuaState.class);
+	private static final String D_DEBUG_FRAME = Type.getDescriptor(DebugFrame.class);
+	private static final String D_LUA_VALUE = Type.getDescriptor(LuaValue.class);
+	private static final String D_LUA_VALUES = Type.getDescriptor(LuaValue[].class);
+	private static final String D_LUA_TABLE = Type.getDescriptor(LuaTable.class);
+	private static final String D_LUA_BOOLEAN = Type.getDescriptor(LuaBoolean.class);
+	private static final String D_UPVALUE = Type.getDescriptor(Upvalue.class);
+	private static final String D_UPVALUES = Type.getDescriptor(Upvalue[].class);
+	private static final String D_VARARGS = Type.getDescriptor(Varargs.class);
+	private static final String D_PROTOTYPE = Type.getDescriptor(Prototype.class);
+
+	private static final String BINARY_OP = "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + "II)" + D_LUA_VALUE;
+	private static final String COMPARE_OP = "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + ")Z";
+
+	// Local variable slots
+	private static final int SLOT_STATE = 1;
+	private static final int SLOT_FRAME = 2;
+	private static final int SLOT_FUNCTION = 3;
+	private static final int SLOT_DEBUG = 4;
+	private static final int SLOT_STACK = 5;
+	private static final int SLOT_CONSTANTS = 6;
+	private static final int SLOT_UPVALUES = 7;
+	private static final int SLOT_VARARGS = 8;
+	private static final int SLOT_TEMP = 9;
+
+	private final Prototype prototype;
+	private final int[] code;
+	private final MethodVisitor mw;
+
+	private final Label[] labels;
+	private final boolean[] instructions;
+	private final Map<Integer, Label> exits = new HashMap<>();
+
+	private PrototypeCompiler(Prototype prototype, MethodVisitor mw) {
+		this.prototype = prototype;
+		this.code = prototype.code;
+		this.mw = mw;
+
+		labels = new Label[code.length + 1];
+		for (int i = 0; i < labels.length; i++) labels[i] = new Label();
+		instructions = findInstructions(prototype);
+	}
+
+	/**
+	 * Compile a prototype.
+	 *
+	 * @param state     The current Lua state, used to report internal errors.
+	 * @param prototype The prototype to compile.
+	 * @return The compiled prototype, or {@code null} if it could not be compiled.
+	 */
+	static CompiledPrototype compile(LuaState state, Prototype prototype) {
+		if (prototype.code.length > MAX_INSTRUCTIONS) return null;
+
+		try {
+			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+				@Override
+				protected ClassLoader getClassLoader() {
+					return PrototypeCompiler.class.getClassLoader();
+				}
+			};
+			cw.visit(V17, ACC_FINAL | ACC_SUPER, CLASS_NAME, null, Type.getInternalName(CompiledPrototype.class), null);
+			cw.visitSource(prototype.sourceShort().toString(), null);
+
+			MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+			init.visitCode();
+			init.visitVarInsn(ALOAD, 0);
+			init.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(CompiledPrototype.class), "<init>", "()V", false);
+			init.visitInsn(RETURN);
+			init.visitMaxs(0, 0);
+			init.visitEnd();
+
+			MethodVisitor mw = cw.visitMethod(0, "execute", "(" + D_LUA_STATE + D_DEBUG_FRAME + Type.getDescriptor(LuaInterpretedFunction.class) + ")V", null, null);
+			mw.visitCode();
+			new PrototypeCompiler(prototype, mw).compile();
+			mw.visitMaxs(0, 0);
+			mw.visitEnd();
+
+			cw.visitEnd();
+
+			Class<?> klass = LOOKUP.defineHiddenClass(cw.toByteArray(), true).lookupClass();
+			return (CompiledPrototype) klass.getDeclaredConstructor().newInstance();
+		} catch (MethodTooLargeException e) {
+			return null;
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			state.reportInternalError(e, () -> "Failed to compile " + prototype);
+			return null;
+		}
+	}
+
+	/**
+	 * Find which elements of {@link Prototype#code} are actual instructions, rather than extra arguments to
+	 * {@link Lua#OP_SETLIST} and {@link Lua#OP_CLOSURE}.
+	 *
+	 * @param prototype The prototype to scan.
+	 * @return Whether each element is an instruction.
+	 */
+	private static boolean[] findInstructions(Prototype prototype) {
+		int[] code = prototype.code;
+		boolean[] instructions = new boolean[code.length];
+		for (int pc = 0; pc < code.length; pc++) {
+			instructions[pc] = true;
+
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_SETLIST -> {
+					if (GETARG_C(i) == 0) pc++;
+				}
+				case OP_CLOSURE -> pc += prototype.children[GETARG_Bx(i)].upvalues;
+				default -> {
+				}
+			}
+		}
+		return instructions;
+	}
+
+	private void compile() {
+		MethodVisitor mw = this.mw;
+
+		// DebugState ds = DebugState.get(state);
+		mw.visitVarInsn(ALOAD, SLOT_STATE);
+		mw.visitMethodInsn(INVOKESTATIC, DEBUG_STATE, "get", "(" + D_LUA_STATE + ")" + Type.getDescriptor(DebugState.class), false);
+		mw.visitVarInsn(ASTORE, SLOT_DEBUG);
+
+		// LuaValue[] stack = di.stack;
+		mw.visitVarInsn(ALOAD, SLOT_FRAME);
+		mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "stack", D_LUA_VALUES);
+		mw.visitVarInsn(ASTORE, SLOT_STACK);
+
+		// LuaValue[] k = function.p.constants;
+		mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+		mw.visitFieldInsn(GETFIELD, FUNCTION, "p", D_PROTOTYPE);
+		mw.visitFieldInsn(GETFIELD, PROTOTYPE, "constants", D_LUA_VALUES);
+		mw.visitVarInsn(ASTORE, SLOT_CONSTANTS);
+
+		// Upvalue[] upvalues = function.upvalues;
+		mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+		mw.visitFieldInsn(GETFIELD, FUNCTION, "upvalues", D_UPVALUES);
+		mw.visitVarInsn(ASTORE, SLOT_UPVALUES);
+
+		// Varargs varargs = di.varargs;
+		mw.visitVarInsn(ALOAD, SLOT_FRAME);
+		mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "varargs", D_VARARGS);
+		mw.visitVarInsn(ASTORE, SLOT_VARARGS);
+
+		mw.visitInsn(ACONST_NULL);
+		mw.visitVarInsn(ASTORE, SLOT_TEMP);
+
+		// switch (di.pc) { ... }. Any non-instruction offsets just return to the interpreter.
+		Label invalid = new Label();
+		Label[] targets = new Label[code.length];
+		for (int pc = 0; pc < code.length; pc++) targets[pc] = instructions[pc] ? labels[pc] : invalid;
+		mw.visitVarInsn(ALOAD, SLOT_FRAME);
+		mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "pc", "I");
+		mw.visitTableSwitchInsn(0, code.length - 1, invalid, targets);
+
+		for (int pc = 0; pc < code.length; pc++) {
+			if (!instructions[pc]) continue;
+			mw.visitLabel(labels[pc]);
+
+			int line = prototype.getLine(pc);
+			if (line > 0) mw.visitLineNumber(line, labels[pc]);
+
+			compileInstruction(pc, code[pc]);
+		}
+
+		// Falling off the end of the function (which should never happen) returns to the interpreter.
+		mw.visitLabel(labels[code.length]);
+		mw.visitLabel(invalid);
+		mw.visitInsn(RETURN);
+
+		// Emit the various exit points for backwards jumps.
+		for (Map.Entry<Integer, Label> exit : exits.entrySet()) {
+			mw.visitLabel(exit.getValue());
+			exitTo(exit.getKey());
+		}
+	}
+
+	private void compileInstruction(int pc, int i) {
+		MethodVisitor mw = this.mw;
+		int a = GETARG_A(i);
+		switch (GET_OPCODE(i)) {
+			case OP_MOVE -> { // A B: R(A):= R(B)
+				beginStore(a);
+				loadRegister(GETARG_B(i));
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_LOADK -> { // A Bx: R(A):= Kst(Bx)
+				beginStore(a);
+				loadConstant(GETARG_Bx(i));
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_LOADBOOL -> { // A B C: R(A):= (Bool)B: if (C) pc++
+				beginStore(a);
+				mw.visitFieldInsn(GETSTATIC, CONSTANTS, GETARG_B(i) != 0 ? "TRUE" : "FALSE", D_LUA_BOOLEAN);
+				mw.visitInsn(AASTORE);
+				if (GETARG_C(i) != 0) mw.visitJumpInsn(GOTO, labels[pc + 2]);
+			}
+
+			case OP_LOADNIL -> { // A B: R(A):= ...:= R(B):= nil
+				for (int b = GETARG_B(i); b >= a; b--) {
+					beginStore(b);
+					mw.visitFieldInsn(GETSTATIC, CONSTANTS, "NIL", D_LUA_VALUE);
+					mw.visitInsn(AASTORE);
+				}
+			}
+
+			case OP_GETUPVAL -> { // A B: R(A):= UpValue[B]
+				beginStore(a);
+				loadUpvalue(GETARG_B(i));
+				mw.visitMethodInsn(INVOKEVIRTUAL, UPVALUE, "getValue", "()" + D_LUA_VALUE, false);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_GETGLOBAL -> { // A Bx: R(A):= Gbl[Kst(Bx)]
+				setPc(pc);
+				beginStore(a);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				loadEnv();
+				loadConstant(GETARG_Bx(i));
+				invokeGetTable(pc, -1);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_GETTABLE -> { // A B C: R(A):= R(B)[RK(C)]
+				int b = GETARG_B(i);
+				setPc(pc);
+				beginStore(a);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				loadRegister(b);
+				loadRk(GETARG_C(i));
+				invokeGetTable(pc, b);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_SETGLOBAL -> { // A Bx: Gbl[Kst(Bx)]:= R(A)
+				setPc(pc);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				loadEnv();
+				loadConstant(GETARG_Bx(i));
+				loadRegister(a);
+				mw.visitMethodInsn(INVOKESTATIC, OPERATION, "setTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + D_LUA_VALUE + ")V", false);
+			}
+
+			case OP_SETUPVAL -> { // A B: UpValue[B]:= R(A)
+				loadUpvalue(GETARG_B(i));
+				loadRegister(a);
+				mw.visitMethodInsn(INVOKEVIRTUAL, UPVALUE, "setValue", "(" + D_LUA_VALUE + ")V", false);
+			}
+
+			case OP_SETTABLE -> { // A B C: R(A)[RK(B)]:= RK(C)
+				setPc(pc);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				loadRegister(a);
+				loadRk(GETARG_B(i));
+				loadRk(GETARG_C(i));
+				constant(a);
+				mw.visitMethodInsn(INVOKESTATIC, OPERATION, "setTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + D_LUA_VALUE + "I)V", false);
+			}
+
+			case OP_NEWTABLE -> { // A B C: R(A):= {} (size = B,C)
+				beginStore(a);
+				mw.visitTypeInsn(NEW, LUA_TABLE);
+				mw.visitInsn(DUP);
+				constant(LuaInterpreter.luaO_fb2int(GETARG_B(i)));
+				constant(LuaInterpreter.luaO_fb2int(GETARG_C(i)));
+				mw.visitMethodInsn(INVOKESPECIAL, LUA_TABLE, "<init>", "(II)V", false);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_SELF -> { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
+				int b = GETARG_B(i);
+				setPc(pc);
+				loadRegister(b);
+				mw.visitVarInsn(ASTORE, SLOT_TEMP);
+
+				beginStore(a + 1);
+				mw.visitVarInsn(ALOAD, SLOT_TEMP);
+				mw.visitInsn(AASTORE);
+
+				beginStore(a);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				mw.visitVarInsn(ALOAD, SLOT_TEMP);
+				loadRk(GETARG_C(i));
+				invokeGetTable(pc, b);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_ADD -> binaryOp(pc, i, "add");
+			case OP_SUB -> binaryOp(pc, i, "sub");
+			case OP_MUL -> binaryOp(pc, i, "mul");
+			case OP_DIV -> binaryOp(pc, i, "div");
+			case OP_MOD -> binaryOp(pc, i, "mod");
+			case OP_POW -> binaryOp(pc, i, "pow");
+
+			case OP_UNM -> { // A B: R(A):= -R(B)
+				int b = GETARG_B(i);
+				setPc(pc);
+				beginStore(a);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				loadRk(b);
+				constant(b);
+				mw.visitMethodInsn(INVOKESTATIC, OPERATION, "neg", "(" + D_LUA_STATE + D_LUA_VALUE + "I)" + D_LUA_VALUE, false);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_NOT -> { // A B: R(A):= not R(B)
+				Label isFalse = new Label(), end = new Label();
+				beginStore(a);
+				loadRegister(GETARG_B(i));
+				mw.visitMethodInsn(INVOKEVIRTUAL, LUA_VALUE, "toBoolean", "()Z", false);
+				mw.visitJumpInsn(IFEQ, isFalse);
+				mw.visitFieldInsn(GETSTATIC, CONSTANTS, "FALSE", D_LUA_BOOLEAN);
+				mw.visitJumpInsn(GOTO, end);
+				mw.visitLabel(isFalse);
+				mw.visitFieldInsn(GETSTATIC, CONSTANTS, "TRUE", D_LUA_BOOLEAN);
+				mw.visitLabel(end);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_LEN -> { // A B: R(A):= length of R(B)
+				int b = GETARG_B(i);
+				setPc(pc);
+				beginStore(a);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				loadRegister(b);
+				constant(b);
+				mw.visitMethodInsn(INVOKESTATIC, OPERATION, "length", "(" + D_LUA_STATE + D_LUA_VALUE + "I)" + D_LUA_VALUE, false);
+				mw.visitInsn(AASTORE);
+			}
+
+			case OP_CONCAT -> { // A B C: R(A):= R(B).. ... ..R(C)
+				int b = GETARG_B(i), c = GETARG_C(i);
+				setPc(pc);
+				setTop(c + 1);
+
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				mw.visitVarInsn(ALOAD, SLOT_FRAME);
+				mw.visitVarInsn(ALOAD, SLOT_STACK);
+				constant(c + 1);
+				constant(c - b + 1);
+				mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "concat", "(" + D_LUA_STATE + D_DEBUG_FRAME + D_LUA_VALUES + "II)V", false);
+
+				beginStore(a);
+				loadRegister(b);
+				mw.visitInsn(AASTORE);
+				setTop(b);
+			}
+
+			case OP_JMP -> jump(pc, pc + 1 + GETARG_sBx(i)); // sBx: pc+=sBx
+
+			case OP_EQ -> compare(pc, i, "eq"); // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
+			case OP_LT -> compare(pc, i, "lt"); // A B C: if ((RK(B) <  RK(C)) ~= A) then pc++
+			case OP_LE -> compare(pc, i, "le"); // A B C: if ((RK(B) <= RK(C)) ~= A) then pc++
+
+			case OP_TEST -> { // A C: if not (R(A) <=> C) then pc++
+				loadRegister(a);
+				mw.visitMethodInsn(INVOKEVIRTUAL, LUA_VALUE, "toBoolean", "()Z", false);
+				mw.visitJumpInsn(GETARG_C(i) != 0 ? IFEQ : IFNE, labels[pc + 2]);
+				jump(pc, pc + 2 + GETARG_sBx(code[pc + 1]));
+			}
+
+			case OP_TESTSET -> { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
+				loadRegister(GETARG_B(i));
+				mw.visitVarInsn(ASTORE, SLOT_TEMP);
+				mw.visitVarInsn(ALOAD, SLOT_TEMP);
+				mw.visitMethodInsn(INVOKEVIRTUAL, LUA_VALUE, "toBoolean", "()Z", false);
+				mw.visitJumpInsn(GETARG_C(i) != 0 ? IFEQ : IFNE, labels[pc + 2]);
+
+				beginStore(a);
+				mw.visitVarInsn(ALOAD, SLOT_TEMP);
+				mw.visitInsn(AASTORE);
+				jump(pc, pc + 2 + GETARG_sBx(code[pc + 1]));
+			}
+
+			case OP_CALL -> { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1))
+				setPc(pc);
+				loadRegister(a);
+				mw.visitVarInsn(ASTORE, SLOT_TEMP);
+
+				// Calls to Lua functions are handled by the interpreter, so we don't grow the Java stack.
+				Label isNative = new Label();
+				mw.visitVarInsn(ALOAD, SLOT_TEMP);
+				mw.visitTypeInsn(INSTANCEOF, FUNCTION);
+				mw.visitJumpInsn(IFEQ, isNative);
+				mw.visitInsn(RETURN);
+				mw.visitLabel(isNative);
+
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				mw.visitVarInsn(ALOAD, SLOT_FRAME);
+				mw.visitVarInsn(ALOAD, SLOT_STACK);
+				mw.visitVarInsn(ALOAD, SLOT_TEMP);
+				constant(i);
+				constant(a);
+				constant(GETARG_B(i));
+				constant(GETARG_C(i));
+				mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "nativeCall", "(" + D_LUA_STATE + D_DEBUG_FRAME + D_LUA_VALUES + D_LUA_VALUE + "IIII)V", false);
+
+				// The function may have installed a debug hook, in which case we must switch to the interpreter.
+				mw.visitVarInsn(ALOAD, SLOT_DEBUG);
+				mw.visitMethodInsn(INVOKEVIRTUAL, DEBUG_STATE, "hasActiveHooks", "()Z", false);
+				mw.visitJumpInsn(IFEQ, labels[pc + 1]);
+				exitTo(pc + 1);
+			}
+
+			case OP_TAILCALL, OP_RETURN -> exitTo(pc);
+
+			case OP_FORLOOP -> { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+				setPc(pc);
+				mw.visitVarInsn(ALOAD, SLOT_STACK);
+				constant(a);
+				mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "forLoop", "(" + D_LUA_VALUES + "I)Z", false);
+				mw.visitJumpInsn(IFEQ, labels[pc + 1]);
+				jump(pc, pc + 1 + GETARG_sBx(i));
+			}
+
+			case OP_FORPREP -> { // A sBx: R(A)-=R(A+2): pc+=sBx
+				setPc(pc);
+				mw.visitVarInsn(ALOAD, SLOT_STACK);
+				constant(a);
+				mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "forPrep", "(" + D_LUA_VALUES + "I)V", false);
+				jump(pc, pc + 1 + GETARG_sBx(i));
+			}
+
+			case OP_TFORLOOP -> { // A C: R(A+3), ... ,R(A+2+C):= R(A)(R(A+1), R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3) else pc++
+				setPc(pc);
+				mw.visitVarInsn(ALOAD, SLOT_STATE);
+				mw.visitVarInsn(ALOAD, SLOT_FRAME);
+				mw.visitVarInsn(ALOAD, SLOT_STACK);
+				constant(a);
+				constant(GETARG_C(i));
+				mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "tforLoop", "(" + D_LUA_STATE + D_DEBUG_FRAME + D_LUA_VALUES + "II)Z", false);
+				mw.visitJumpInsn(IFEQ, labels[pc + 2]);
+			}
+
+			case OP_SETLIST -> { // A B C: R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
+				int c = GETARG_C(i);
+				int next = pc + 1;
+				if (c == 0) c = code[next++];
+
+				setPc(pc);
+				mw.visitVarInsn(ALOAD, SLOT_FRAME);
+				mw.visitVarInsn(ALOAD, SLOT_STACK);
+				constant(a);
+				constant(GETARG_B(i));
+				constant(c);
+				mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "setList", "(" + D_DEBUG_FRAME + D_LUA_VALUES + "III)V", false);
+				if (next != pc + 1) mw.visitJumpInsn(GOTO, labels[next]);
+			}
+
+			case OP_CLOSE -> { // A : close all variables in the stack up to (>=) R(A)
+				mw.visitVarInsn(ALOAD, SLOT_FRAME);
+				constant(a);
+				mw.visitMethodInsn(INVOKEVIRTUAL, DEBUG_FRAME, "closeUpvalues", "(I)V", false);
+			}
+
+			case OP_CLOSURE -> { // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
+				int bx = GETARG_Bx(i);
+				int nups = prototype.children[bx].upvalues;
+
+				beginStore(a);
+				mw.visitTypeInsn(NEW, FUNCTION);
+				mw.visitInsn(DUP);
+				mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+				mw.visitFieldInsn(GETFIELD, FUNCTION, "p", D_PROTOTYPE);
+				mw.visitFieldInsn(GETFIELD, PROTOTYPE, "children", Type.getDescriptor(Prototype[].class));
+				constant(bx);
+				mw.visitInsn(AALOAD);
+				loadEnv();
+				mw.visitMethodInsn(INVOKESPECIAL, FUNCTION, "<init>", "(" + D_PROTOTYPE + D_LUA_TABLE + ")V", false);
+
+				for (int j = 0; j < nups; j++) {
+					int upvalue = code[pc + 1 + j];
+					int b = GETARG_B(upvalue);
+
+					mw.visitInsn(DUP);
+					mw.visitFieldInsn(GETFIELD, FUNCTION, "upvalues", D_UPVALUES);
+					constant(j);
+					if ((upvalue & 4) != 0) {
+						loadUpvalue(b); // OP_GETUPVAL
+					} else {
+						mw.visitVarInsn(ALOAD, SLOT_FRAME); // OP_MOVE
+						constant(b);
+						mw.visitMethodInsn(INVOKEVIRTUAL, DEBUG_FRAME, "getUpvalue", "(I)" + D_UPVALUE, false);
+					}
+					mw.visitInsn(AASTORE);
+				}
+
+				mw.visitInsn(AASTORE);
+				if (nups > 0) mw.visitJumpInsn(GOTO, labels[pc + 1 + nups]);
+			}
+
+			case OP_VARARG -> { // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+				mw.visitVarInsn(ALOAD, SLOT_FRAME);
+				mw.visitVarInsn(ALOAD, SLOT_STACK);
+				mw.visitVarInsn(ALOAD, SLOT_VARARGS);
+				constant(a);
+				constant(GETARG_B(i));
+				mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "vararg", "(" + D_DEBUG_FRAME + D_LUA_VALUES + D_VARARGS + "II)V", false);
+			}
+
+			default -> exitTo(pc);
+		}
+	}
+
+	private void binaryOp(int pc, int i, String name) {
+		int b = GETARG_B(i), c = GETARG_C(i);
+		setPc(pc);
+		beginStore(GETARG_A(i));
+		mw.visitVarInsn(ALOAD, SLOT_STATE);
+		loadRk(b);
+		loadRk(c);
+		constant(b);
+		constant(c);
+		mw.visitMethodInsn(INVOKESTATIC, OPERATION, name, BINARY_OP, false);
+		mw.visitInsn(AASTORE);
+	}
+
+	private void compare(int pc, int i, String name) {
+		setPc(pc);
+		mw.visitVarInsn(ALOAD, SLOT_STATE);
+		loadRk(GETARG_B(i));
+		loadRk(GETARG_C(i));
+		mw.visitMethodInsn(INVOKESTATIC, OPERATION, name, COMPARE_OP, false);
+
+		// We assume the next instruction is a jump and read the branch from there.
+		mw.visitJumpInsn(GETARG_A(i) != 0 ? IFEQ : IFNE, labels[pc + 2]);
+		jump(pc, pc + 2 + GETARG_sBx(code[pc + 1]));
+	}
+
+	/**
+	 * Unconditionally jump from one instruction to another. Backwards jumps check for interrupts and hooks, exiting to
+	 * the interpreter if needed.
+	 *
+	 * @param pc     The current instruction.
+	 * @param target The instruction to jump to.
+	 */
+	private void jump(int pc, int target) {
+		if (target <= pc) {
+			Label exit = exits.computeIfAbsent(target, x -> new Label());
+			mw.visitVarInsn(ALOAD, SLOT_STATE);
+			mw.visitMethodInsn(INVOKEVIRTUAL, LUA_STATE, "isInterrupted", "()Z", false);
+			mw.visitJumpInsn(IFNE, exit);
+			mw.visitVarInsn(ALOAD, SLOT_DEBUG);
+			mw.visitMethodInsn(INVOKEVIRTUAL, DEBUG_STATE, "hasActiveHooks", "()Z", false);
+			mw.visitJumpInsn(IFNE, exit);
+		}
+
+		if (target != pc + 1) mw.visitJumpInsn(GOTO, labels[target]);
+	}
+
+	/**
+	 * Return to the interpreter, continuing execution at the given instruction.
+	 *
+	 * @param pc The instruction to continue from.
+	 */
+	private void exitTo(int pc) {
+		setPc(pc);
+		mw.visitInsn(RETURN);
+	}
+
+	private void setPc(int pc) {
+		mw.visitVarInsn(ALOAD, SLOT_FRAME);
+		constant(pc);
+		mw.visitFieldInsn(PUTFIELD, DEBUG_FRAME, "pc", "I");
+	}
+
+	private void setTop(int top) {
+		mw.visitVarInsn(ALOAD, SLOT_FRAME);
+		constant(top);
+		mw.visitFieldInsn(PUTFIELD, DEBUG_FRAME, "top", "I");
+	}
+
+	private void beginStore(int register) {
+		mw.visitVarInsn(ALOAD, SLOT_STACK);
+		constant(register);
+	}
+
+	private void loadRegister(int register) {
+		mw.visitVarInsn(ALOAD, SLOT_STACK);
+		constant(register);
+		mw.visitInsn(AALOAD);
+	}
+
+	private void loadConstant(int index) {
+		mw.visitVarInsn(ALOAD, SLOT_CONSTANTS);
+		constant(index);
+		mw.visitInsn(AALOAD);
+	}
+
+	private void loadRk(int rk) {
+		if (ISK(rk)) {
+			loadConstant(INDEXK(rk));
+		} else {
+			loadRegister(rk);
+		}
+	}
+
+	private void loadUpvalue(int index) {
+		mw.visitVarInsn(ALOAD, SLOT_UPVALUES);
+		constant(index);
+		mw.visitInsn(AALOAD);
+	}
+
+	/**
+	 * Call {@link OperationHelper#getTable(LuaState, LuaValue, LuaValue, int)}, using this instruction's
+	 * {@link IndexCache} if it has one. The state, table and key should already be on the stack.
+	 *
+	 * @param pc    The current instruction.
+	 * @param stack The stack slot of the table, used for error messages.
+	 */
+	private void invokeGetTable(int pc, int stack) {
+		IndexCache[] caches = prototype.indexCaches;
+		if (caches != null && caches[pc] != null) {
+			mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+			mw.visitFieldInsn(GETFIELD, FUNCTION, "p", D_PROTOTYPE);
+			mw.visitFieldInsn(GETFIELD, PROTOTYPE, "indexCaches", Type.getDescriptor(IndexCache[].class));
+			constant(pc);
+			mw.visitInsn(AALOAD);
+			constant(stack);
+			mw.visitMethodInsn(INVOKESTATIC, OPERATION, "getTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + Type.getDescriptor(IndexCache.class) + "I)" + D_LUA_VALUE, false);
+		} else {
+			constant(stack);
+			mw.visitMethodInsn(INVOKESTATIC, OPERATION, "getTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + "I)" + D_LUA_VALUE, false);
+		}
+	}
+
+	private void loadEnv() {
+		mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+		mw.visitMethodInsn(INVOKEVIRTUAL, FUNCTION, "getfenv", "()" + D_LUA_TABLE, false);
+	}
+
+	private void constant(int value) {
+		if (value >= -1 && value <= 5) {
+			mw.visitInsn(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mw.visitIntInsn(BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mw.visitIntInsn(SIPUSH, value);
+		} else {
+			mw.visitLdcInsn(value);
+		}
+	}
+}
@@ -25,6 +25,7 @@
 package org.squiddev.cobalt.lib;
 
 import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.BytecodeOptimiser;
 import org.squiddev.cobalt.compiler.CompileException;
 import org.squiddev.cobalt.compiler.InputReader;
 import org.squiddev.cobalt.compiler.LoadState;
@@ -151,7 +152,7 @@ public class BaseLib {
 	private static Varargs loadstring(LuaState state, Varargs args) throws LuaError {
 		// loadstring( string [,chunkname] ) -> chunk | nil, msg
 		LuaString script = args.arg(1).checkLuaString();
-		return BaseLib.loadStream(state, script.toInputStream(), args.arg(2).optLuaString(script));
+		return BaseLib.loadString(state, script, args.arg(2).optLuaString(script), null, state.getCurrentThread().getfenv());
 	}
 
 	private static Varargs select(LuaState state, Varargs args) throws LuaError {
@@ -325,7 +326,7 @@ public class BaseLib {
 			// If we're a string, load as normal
 			if (scriptGen.isString()) {
 				LuaString contents = scriptGen.checkLuaString();
-				return BaseLib.loadStream(state, contents.toInputStream(), chunkName == null ? contents : chunkName, mode, funcEnv);
+				return BaseLib.loadString(state, contents, chunkName == null ? contents : chunkName, mode, funcEnv);
 			}
 
 			LuaFunction function = scriptGen.checkFunction();
@@ -334,7 +335,8 @@ public class BaseLib {
 			return call.apply(state, SuspendedTask.toFunction(() -> {
 				try {
 					InputReader stream = new FunctionInputReader(state, function);
-					return state.compiler.load(LuaC.compile(stream, chunkName == null ? FUNCTION_STR : chunkName, mode), funcEnv);
+					Prototype prototype = LuaC.compile(stream, chunkName == null ? FUNCTION_STR : chunkName, mode);
+					return state.compiler.load(state.optimiseBytecode ? BytecodeOptimiser.optimise(prototype) : prototype, funcEnv);
 				} catch (CompileException e) {
 					return varargsOf(Constants.NIL, valueOf(e.getMessage()));
 				} catch (UncheckedLuaError e) {
@@ -362,6 +364,14 @@ public class BaseLib {
 		}
 	}
 
+	public static Varargs loadString(LuaState state, LuaString contents, LuaString chunkName, LuaString mode, LuaTable env) {
+		try {
+			return LoadState.load(state, contents, chunkName, mode, env);
+		} catch (CompileException e) {
+			return varargsOf(Constants.NIL, valueOf(e.getMessage()));
+		}
+	}
+
 	public static Varargs loadStream(LuaState state, InputStream is, LuaString chunkName) {
 		return loadStream(state, is, chunkName, null, state.getCurrentThread().getfenv());
 	}
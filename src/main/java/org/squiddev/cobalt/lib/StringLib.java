@@ -30,6 +30,7 @@ import org.squiddev.cobalt.debug.DebugFrame;
 import org.squiddev.cobalt.function.*;
 import org.squiddev.cobalt.lib.StringFormat.FormatState;
 import org.squiddev.cobalt.lib.StringMatch.GSubState;
+import org.squiddev.cobalt.lib.StringMatch.PatternCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -55,6 +56,7 @@ public final class StringLib {
 	}
 
 	public static void add(LuaState state, LuaTable env) {
+		PatternCache patterns = new PatternCache();
 		LuaTable t = RegisteredFunction.bind(new RegisteredFunction[]{
 			RegisteredFunction.of("len", StringLib::len),
 			RegisteredFunction.of("lower", StringLib::lower),
@@ -64,14 +66,14 @@ public final class StringLib {
 			RegisteredFunction.ofV("dump", StringLib::dump),
 			RegisteredFunction.ofV("byte", StringLib::byte$),
 			RegisteredFunction.ofV("char", StringLib::char$),
-			RegisteredFunction.ofV("find", StringMatch::find),
-			RegisteredFunction.ofV("gmatch", StringMatch::gmatch),
-			RegisteredFunction.ofV("match", StringMatch::match),
+			RegisteredFunction.ofV("find", (s, args) -> StringMatch.find(s, patterns, args)),
+			RegisteredFunction.ofV("gmatch", (s, args) -> StringMatch.gmatch(s, patterns, args)),
+			RegisteredFunction.ofV("match", (s, args) -> StringMatch.match(s, patterns, args)),
 			RegisteredFunction.ofV("rep", StringLib::rep),
 			RegisteredFunction.ofV("sub", StringLib::sub),
 			RegisteredFunction.ofV("pack", (s, args) -> StringPacker.pack(args)),
 			RegisteredFunction.ofV("unpack", (s, args) -> StringPacker.unpack(args)),
-			RegisteredFunction.ofFactory("gsub", GSub::new),
+			RegisteredFunction.ofFactory("gsub", () -> new GSub(patterns)),
 			RegisteredFunction.ofFactory("format", Format::new),
 		});
 
@@ -126,6 +128,12 @@ public final class StringLib {
 	}
 
 	private static final class GSub extends ResumableVarArgFunction<GSubState> {
+		private final PatternCache patterns;
+
+		private GSub(PatternCache patterns) {
+			this.patterns = patterns;
+		}
+
 		@Override
 		protected Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 			LuaString src = args.arg(1).checkLuaString();
@@ -133,7 +141,7 @@ public final class StringLib {
 			LuaValue replace = args.arg(3);
 			int maxS = args.arg(4).optInteger(src.length() + 1);
 
-			GSubState gsub = new GSubState(state, src, p, replace, maxS);
+			GSubState gsub = new GSubState(state, src, patterns.get(p), replace, maxS);
 			di.state = gsub;
 			return StringMatch.gsubRun(state, gsub, null);
 		}
@@ -1,5 +1,6 @@
 package org.squiddev.cobalt.lib;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.function.VarArgFunction;
 
@@ -11,6 +12,7 @@ import static org.squiddev.cobalt.lib.StringLib.L_ESC;
 class StringMatch {
 	private static final LuaString SPECIALS = valueOf("^$*+?.([%-");
 	private static final int MAX_CAPTURES = 32;
+	private static final int PATTERN_CACHE_SIZE = 64;
 
 	private static final int CAP_UNFINISHED = -1;
 	private static final int CAP_POSITION = -2;
@@ -72,8 +74,8 @@ class StringMatch {
 	 *
 	 * @throws LuaError On invalid arguments.
 	 */
-	static Varargs find(LuaState state, Varargs args) throws LuaError {
-		return str_find_aux(state, args, true);
+	static Varargs find(LuaState state, PatternCache patterns, Varargs args) throws LuaError {
+		return str_find_aux(state, patterns, args, true);
 	}
 
 	/**
@@ -100,10 +102,10 @@ class StringMatch {
 	 * For this function, a '^' at the start of a pattern does not work as an anchor,
 	 * as this would prevent the iteration.
 	 */
-	static Varargs gmatch(LuaState state, Varargs args) throws LuaError {
+	static Varargs gmatch(LuaState state, PatternCache patterns, Varargs args) throws LuaError {
 		LuaString src = args.arg(1).checkLuaString();
 		LuaString pat = args.arg(2).checkLuaString();
-		return new GMatchAux(state, src, pat);
+		return new GMatchAux(state, src, patterns.get(pat));
 	}
 
 	/**
@@ -154,10 +156,10 @@ class StringMatch {
 	static Varargs gsubRun(LuaState state, GSubState gsub, Varargs result) throws LuaError, UnwindThrowable {
 		LuaString src = gsub.string;
 		final int srclen = src.length();
-		LuaString p = gsub.pattern;
+		Pattern p = gsub.pattern;
 		LuaValue repl = gsub.replace;
 		int max_s = gsub.maxS;
-		final boolean anchor = p.startsWith((byte) '^');
+		final boolean anchor = p.anchored;
 
 		Buffer lbuf = gsub.buffer;
 		MatchState ms = gsub.ms;
@@ -168,6 +170,16 @@ class StringMatch {
 			int res;
 
 			if (gsub.count == GSubState.EMPTY) {
+				if (!anchor) {
+					// Skip over any characters which cannot start a match.
+					int next = p.next(src, soffset);
+					if (next == -1) break;
+					if (next > soffset) {
+						lbuf.append(src.substringOfEnd(soffset, next));
+						soffset = next;
+					}
+				}
+
 				// We haven't matched so we'll match here
 				gsub.count = res = ms.match(soffset, anchor ? 1 : 0);
 
@@ -208,14 +220,14 @@ class StringMatch {
 	 * A third, optional numerical argument init specifies where to start the
 	 * search; its default value is 1 and may be negative.
 	 */
-	static Varargs match(LuaState state, Varargs args) throws LuaError {
-		return str_find_aux(state, args, false);
+	static Varargs match(LuaState state, PatternCache patterns, Varargs args) throws LuaError {
+		return str_find_aux(state, patterns, args, false);
 	}
 
 	/**
 	 * This utility method implements both string.find and string.match.
 	 */
-	private static Varargs str_find_aux(LuaState state, Varargs args, boolean find) throws LuaError {
+	private static Varargs str_find_aux(LuaState state, PatternCache patterns, Varargs args, boolean find) throws LuaError {
 		LuaString s = args.arg(1).checkLuaString();
 		LuaString pat = args.arg(2).checkLuaString();
 		int init = args.arg(3).optInteger(1);
@@ -226,7 +238,8 @@ class StringMatch {
 			init = Math.max(0, s.length() + init);
 		}
 
-		boolean fastMatch = find && (args.arg(4).toBoolean() || pat.indexOfAny(SPECIALS) == -1);
+		Pattern pattern = find && args.arg(4).toBoolean() ? null : patterns.get(pat);
+		boolean fastMatch = find && (pattern == null || pattern.plain);
 
 		if (fastMatch) {
 			int result = s.indexOf(pat, init);
@@ -234,17 +247,13 @@ class StringMatch {
 				return varargsOf(valueOf(result + 1), valueOf(result + pat.length()));
 			}
 		} else {
-			MatchState ms = new MatchState(state, s, pat);
+			MatchState ms = new MatchState(state, s, pattern);
 
-			boolean anchor = false;
-			int poff = 0;
-			if (pat.startsWith((byte) '^')) {
-				anchor = true;
-				poff = 1;
-			}
+			boolean anchor = pattern.anchored;
+			int poff = anchor ? 1 : 0;
 
-			int soff = init;
-			do {
+			int soff = anchor ? init : pattern.next(s, init);
+			while (soff != -1) {
 				int res;
 				ms.reset();
 				if ((res = ms.match(soff, poff)) != -1) {
@@ -254,7 +263,10 @@ class StringMatch {
 						return ms.push_captures(true, soff, res);
 					}
 				}
-			} while (soff++ < s.length() && !anchor);
+
+				if (anchor || soff >= s.length()) break;
+				soff = pattern.next(s, soff + 1);
+			}
 		}
 		return NIL;
 	}
@@ -264,7 +276,7 @@ class StringMatch {
 		private final MatchState ms;
 		private int soffset;
 
-		public GMatchAux(LuaState state, LuaString src, LuaString pat) {
+		public GMatchAux(LuaState state, LuaString src, Pattern pat) {
 			this.srclen = src.length();
 			this.ms = new MatchState(state, src, pat);
 			this.soffset = 0;
@@ -273,6 +285,12 @@ class StringMatch {
 		@Override
 		public Varargs invoke(LuaState state, Varargs args) throws LuaError {
 			for (; soffset < srclen; soffset++) {
+				soffset = ms.pattern.next(ms.s, soffset);
+				if (soffset == -1) {
+					soffset = srclen;
+					break;
+				}
+
 				ms.reset();
 				int res = ms.match(soffset, 0);
 				if (res >= 0) {
@@ -291,7 +309,7 @@ class StringMatch {
 
 		final Buffer buffer;
 		final LuaString string;
-		final LuaString pattern;
+		final Pattern pattern;
 		final LuaValue replace;
 		final int maxS;
 		int n;
@@ -299,7 +317,7 @@ class StringMatch {
 		MatchState ms;
 		int count;
 
-		GSubState(LuaState state, LuaString src, LuaString pattern, LuaValue replace, int maxS) {
+		GSubState(LuaState state, LuaString src, Pattern pattern, LuaValue replace, int maxS) {
 			this.buffer = new Buffer(src.length());
 			this.string = src;
 			this.pattern = pattern;
@@ -311,18 +329,269 @@ class StringMatch {
 		}
 	}
 
+	/**
+	 * A cache of recently used {@linkplain Pattern patterns}. Each {@link LuaState} has its own cache, shared by all the
+	 * pattern matching functions in the string library.
+	 */
+	static final class PatternCache {
+		private final Pattern[] patterns = new Pattern[PATTERN_CACHE_SIZE];
+
+		Pattern get(LuaString source) {
+			int index = source.hashCode() & (PATTERN_CACHE_SIZE - 1);
+			Pattern pattern = patterns[index];
+			if (pattern != null && (pattern.source == source || pattern.source.equals(source))) return pattern;
+
+			return patterns[index] = new Pattern(source);
+		}
+	}
+
+	/**
+	 * A Lua pattern, along with information which is used to speed up matching it.
+	 * <p>
+	 * The pattern is still interpreted by {@link MatchState}, but the end of each character class and the set of
+	 * characters it matches are computed once (when first needed) and then reused. We also find a literal prefix or set
+	 * of possible first characters, which allows skipping over positions in the subject which cannot start a match.
+	 */
+	static final class Pattern {
+		final LuaString source;
+
+		/**
+		 * Whether this pattern contains no special characters, and so can be found with a plain substring search.
+		 */
+		final boolean plain;
+
+		/**
+		 * Whether this pattern starts with {@code ^}. Note that {@code string.gmatch} does not treat this as an anchor.
+		 */
+		final boolean anchored;
+
+		private final int[] classEnds;
+		private final long[][] classSets;
+
+		/**
+		 * A literal string which every match must start with, or {@code null}.
+		 */
+		private final @Nullable LuaString prefix;
+
+		/**
+		 * The set of characters which a match may start with, or {@code null}. This is only used if there is no
+		 * {@link #prefix}.
+		 */
+		private final long @Nullable [] first;
+
+		Pattern(LuaString source) {
+			this.source = source;
+			plain = source.indexOfAny(SPECIALS) == -1;
+			anchored = source.startsWith((byte) '^');
+			classEnds = new int[source.length()];
+			classSets = new long[source.length()][];
+
+			LuaString prefix = null;
+			long[] first = null;
+			try {
+				int start = skipCaptures(0);
+				if (start != -1) {
+					prefix = literalPrefix(start);
+					if (prefix == null) first = firstSet(start);
+				}
+			} catch (LuaError ignored) {
+				// This pattern is malformed. We'll report the error when matching instead.
+			}
+			this.prefix = prefix;
+			this.first = first;
+		}
+
+		/**
+		 * Find the next position in a string at which this pattern could match. Note that this does not treat a
+		 * leading {@code ^} as an anchor.
+		 *
+		 * @param s      The string to search.
+		 * @param offset The offset to start searching from.
+		 * @return The next possible match position, or {@code -1} if there is none.
+		 */
+		int next(LuaString s, int offset) {
+			if (prefix != null) return s.indexOf(prefix, offset);
+
+			long[] first = this.first;
+			if (first != null) {
+				for (int length = s.length(); offset < length; offset++) {
+					int c = s.charAt(offset);
+					if ((first[c >>> 6] & (1L << c)) != 0) return offset;
+				}
+				return -1;
+			}
+
+			return offset;
+		}
+
+		/**
+		 * Skip over any captures at the start of the pattern, as these do not consume any characters.
+		 *
+		 * @param poffset The offset to start at.
+		 * @return The offset of the first non-capture, or {@code -1} if there were too many captures.
+		 */
+		private int skipCaptures(int poffset) {
+			int captures = 0;
+			while (poffset < source.length() && source.charAt(poffset) == '(') {
+				if (++captures >= MAX_CAPTURES) return -1;
+				poffset++;
+				if (poffset < source.length() && source.charAt(poffset) == ')') poffset++;
+			}
+			return poffset;
+		}
+
+		private @Nullable LuaString literalPrefix(int poffset) throws LuaError {
+			LuaString p = source;
+			byte[] prefix = new byte[p.length()];
+			int length = 0;
+			while (poffset < p.length()) {
+				int c = p.charAt(poffset);
+				int ep;
+				if (c == L_ESC) {
+					if (poffset + 1 == p.length()) break;
+					c = p.charAt(poffset + 1);
+					if (Character.isLetterOrDigit((char) c)) break;
+					ep = poffset + 2;
+				} else if (c == ')' || (c == '$' && poffset + 1 == p.length())) {
+					break;
+				} else if (c == '^' || c == '$' || SPECIALS.indexOf((byte) c) == -1) {
+					ep = poffset + 1;
+				} else {
+					break;
+				}
+
+				int pc = ep < p.length() ? p.charAt(ep) : '\0';
+				if (pc == '?' || pc == '*' || pc == '-') break;
+
+				prefix[length++] = (byte) c;
+				if (pc == '+') break;
+				poffset = ep;
+			}
+
+			return length == 0 ? null : LuaString.valueOf(prefix, 0, length);
+		}
+
+		private long @Nullable [] firstSet(int poffset) throws LuaError {
+			LuaString p = source;
+			if (poffset == p.length()) return null;
+
+			switch (p.charAt(poffset)) {
+				case '.', '[' -> {
+				}
+				case L_ESC -> {
+					if (poffset + 1 == p.length() || !Character.isLetter((char) p.charAt(poffset + 1))) return null;
+					int c = p.charAt(poffset + 1);
+					if (c == 'b' || c == 'f') return null;
+				}
+				default -> {
+					return null;
+				}
+			}
+
+			int ep = classEnd(poffset);
+			int pc = ep < p.length() ? p.charAt(ep) : '\0';
+			if (pc == '?' || pc == '*' || pc == '-') return null;
+
+			long[] set = classSet(poffset, ep);
+			return (set[0] & set[1] & set[2] & set[3]) == -1L ? null : set;
+		}
+
+		int classEnd(int poffset) throws LuaError {
+			int end = classEnds[poffset];
+			if (end == 0) end = classEnds[poffset] = computeClassEnd(poffset);
+			return end;
+		}
+
+		boolean singleMatch(int c, int poffset, int ep) {
+			return (classSet(poffset, ep)[c >>> 6] & (1L << c)) != 0;
+		}
+
+		private long[] classSet(int poffset, int ep) {
+			long[] set = classSets[poffset];
+			if (set != null) return set;
+
+			set = new long[4];
+			for (int c = 0; c < 256; c++) {
+				if (computeSingleMatch(c, poffset, ep)) set[c >>> 6] |= 1L << c;
+			}
+			return classSets[poffset] = set;
+		}
+
+		private int computeClassEnd(int poffset) throws LuaError {
+			LuaString p = source;
+			switch (p.charAt(poffset++)) {
+				case L_ESC -> {
+					if (poffset == p.length()) {
+						throw new LuaError("malformed pattern (ends with %)");
+					}
+					return poffset + 1;
+				}
+				case '[' -> {
+					if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
+					if (p.charAt(poffset) == '^') {
+						poffset++;
+						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
+					}
+					do {
+						if (p.charAt(poffset++) == L_ESC && poffset < p.length()) poffset++;
+						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
+					} while (p.charAt(poffset) != ']');
+					return poffset + 1;
+				}
+				default -> {
+					return poffset;
+				}
+			}
+		}
+
+		private boolean matchBracketClass(int c, int poff, int ec) {
+			LuaString p = source;
+			boolean sig = true;
+			if (p.charAt(poff + 1) == '^') {
+				sig = false;
+				poff++;
+			}
+			while (++poff < ec) {
+				if (p.charAt(poff) == L_ESC) {
+					poff++;
+					if (MatchState.match_class(c, p.charAt(poff))) {
+						return sig;
+					}
+				} else if ((p.charAt(poff + 1) == '-') && (poff + 2 < ec)) {
+					poff += 2;
+					if (p.charAt(poff - 2) <= c && c <= p.charAt(poff)) {
+						return sig;
+					}
+				} else if (p.charAt(poff) == c) return sig;
+			}
+			return !sig;
+		}
+
+		private boolean computeSingleMatch(int c, int poff, int ep) {
+			LuaString p = source;
+			return switch (p.charAt(poff)) {
+				case '.' -> true;
+				case L_ESC -> MatchState.match_class(c, p.charAt(poff + 1));
+				case '[' -> matchBracketClass(c, poff, ep - 1);
+				default -> p.charAt(poff) == c;
+			};
+		}
+	}
+
 	static class MatchState {
 		private final LuaState state;
 		final LuaString s;
+		final Pattern pattern;
 		final LuaString p;
 		int level;
 		int[] cinit;
 		int[] clen;
 
-		MatchState(LuaState state, LuaString s, LuaString pattern) {
+		MatchState(LuaState state, LuaString s, Pattern pattern) {
 			this.state = state;
 			this.s = s;
-			this.p = pattern;
+			this.pattern = pattern;
+			this.p = pattern.source;
 			this.level = 0;
 			this.cinit = new int[MAX_CAPTURES];
 			this.clen = new int[MAX_CAPTURES];
@@ -438,32 +707,6 @@ class StringMatch {
 			throw new LuaError("invalid pattern capture");
 		}
 
-		int classend(int poffset) throws LuaError {
-			switch (p.charAt(poffset++)) {
-				case L_ESC -> {
-					if (poffset == p.length()) {
-						throw new LuaError("malformed pattern (ends with %)");
-					}
-					return poffset + 1;
-				}
-				case '[' -> {
-					if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
-					if (p.charAt(poffset) == '^') {
-						poffset++;
-						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
-					}
-					do {
-						if (p.charAt(poffset++) == L_ESC && poffset < p.length()) poffset++;
-						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
-					} while (p.charAt(poffset) != ']');
-					return poffset + 1;
-				}
-				default -> {
-					return poffset;
-				}
-			}
-		}
-
 		static boolean match_class(int c, int cl) {
 			final char lcl = Character.toLowerCase((char) cl);
 			int cdata = CHAR_TABLE[c];
@@ -487,37 +730,6 @@ class StringMatch {
 			return (lcl == cl) ? res : !res;
 		}
 
-		boolean matchbracketclass(int c, int poff, int ec) {
-			boolean sig = true;
-			if (p.charAt(poff + 1) == '^') {
-				sig = false;
-				poff++;
-			}
-			while (++poff < ec) {
-				if (p.charAt(poff) == L_ESC) {
-					poff++;
-					if (match_class(c, p.charAt(poff))) {
-						return sig;
-					}
-				} else if ((p.charAt(poff + 1) == '-') && (poff + 2 < ec)) {
-					poff += 2;
-					if (p.charAt(poff - 2) <= c && c <= p.charAt(poff)) {
-						return sig;
-					}
-				} else if (p.charAt(poff) == c) return sig;
-			}
-			return !sig;
-		}
-
-		boolean singlematch(int c, int poff, int ep) {
-			return switch (p.charAt(poff)) {
-				case '.' -> true;
-				case L_ESC -> match_class(c, p.charAt(poff + 1));
-				case '[' -> matchbracketclass(c, poff, ep - 1);
-				default -> p.charAt(poff) == c;
-			};
-		}
-
 		/**
 		 * Perform pattern matching. If there is a match, returns offset into s
 		 * where match ends, otherwise returns -1.
@@ -559,9 +771,9 @@ class StringMatch {
 								if (poffset == p.length() || p.charAt(poffset) != '[') {
 									throw new LuaError("missing '[' after '%f' in pattern");
 								}
-								int ep = classend(poffset);
+								int ep = pattern.classEnd(poffset);
 								int previous = (soffset == 0) ? 0 : s.charAt(soffset - 1);
-								if (matchbracketclass(previous, poffset, ep - 1) || (soffset < s.length() && !matchbracketclass(s.charAt(soffset), poffset, ep - 1))) {
+								if (pattern.singleMatch(previous, poffset, ep) || (soffset < s.length() && !pattern.singleMatch(s.charAt(soffset), poffset, ep))) {
 									return -1;
 								}
 								poffset = ep;
@@ -585,8 +797,8 @@ class StringMatch {
 						}
 					}
 				}
-				int ep = classend(poffset);
-				boolean m = soffset < s.length() && singlematch(s.charAt(soffset), poffset, ep);
+				int ep = pattern.classEnd(poffset);
+				boolean m = soffset < s.length() && pattern.singleMatch(s.charAt(soffset), poffset, ep);
 				int pc = (ep < p.length()) ? p.charAt(ep) : '\0';
 
 				switch (pc) {
@@ -620,7 +832,7 @@ class StringMatch {
 		int max_expand(int soff, int poff, int ep) throws LuaError {
 			int i = 0;
 			while (soff + i < s.length() &&
-				singlematch(s.charAt(soff + i), poff, ep)) {
+				pattern.singleMatch(s.charAt(soff + i), poff, ep)) {
 				i++;
 			}
 			while (i >= 0) {
@@ -638,7 +850,7 @@ class StringMatch {
 				int res = match(soff, ep + 1);
 				if (res != -1) {
 					return res;
-				} else if (soff < s.length() && singlematch(s.charAt(soff), poff, ep)) {
+				} else if (soff < s.length() && pattern.singleMatch(s.charAt(soff), poff, ep)) {
 					soff++;
 				} else {
 					return -1;
@@ -0,0 +1,37 @@
+package org.squiddev.cobalt.lib.system;
+
+import org.squiddev.cobalt.Constants;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaThread;
+import org.squiddev.cobalt.Varargs;
+
+/**
+ * Runs the blocking parts of the {@code io} library in the background, allowing a single thread to drive many
+ * {@link LuaState}s which perform IO.
+ * <p>
+ * When an {@code io} function needs to read, write, or open a file or process, it passes this work to
+ * {@link #execute(LuaState, Runnable)} and then {@linkplain LuaThread#suspend(LuaState) suspends} the Lua state.
+ * {@link LuaThread#run(LuaThread, Varargs)} (or {@link LuaThread#runMain(LuaState, org.squiddev.cobalt.function.LuaFunction)})
+ * then returns {@code null}. Once the task has finished, the state should be resumed by calling
+ * {@code LuaThread.run(state.getCurrentThread(), Constants.NONE)}, and the {@code io} function returns the result of the
+ * task.
+ * <p>
+ * From the point of view of Lua code, the {@code io} library behaves exactly the same as when it blocks.
+ *
+ * @see SystemLibraries#standardGlobals(LuaState, ResourceLoader, java.io.InputStream, java.io.PrintStream, IoExecutor)
+ */
+@FunctionalInterface
+public interface IoExecutor {
+	/**
+	 * Run an IO task in the background.
+	 * <p>
+	 * The task may block, so should be run on a separate thread. After the task has finished, the state should be
+	 * resumed (see the {@linkplain IoExecutor class documentation}). If the state is resumed before the task has
+	 * finished, it will immediately suspend again.
+	 *
+	 * @param state The state which is waiting for this task. This must not be resumed on the thread running the task.
+	 * @param task  The task to run. This does not throw.
+	 * @see Constants#NONE
+	 */
+	void execute(LuaState state, Runnable task);
+}
@@ -25,14 +25,22 @@
 package org.squiddev.cobalt.lib.system;
 
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.debug.DebugFrame;
 import org.squiddev.cobalt.function.LibFunction;
 import org.squiddev.cobalt.function.RegisteredFunction;
-import org.squiddev.cobalt.function.VarArgFunction;
+import org.squiddev.cobalt.function.SuspendedVarArgFunction;
 import org.squiddev.cobalt.lib.CoreLibraries;
+import org.squiddev.cobalt.unwind.SuspendedTask;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.file.Files;
+import java.util.Arrays;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.ValueFactory.valueOf;
@@ -55,49 +63,163 @@ public class IoLib {
 	private static final LuaValue FILE = valueOf("file");
 	private static final LuaValue CLOSED_FILE = valueOf("closed file");
 
+	/**
+	 * The default size of a file's buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Formats for {@code file:read}, other than reading a fixed number of bytes.
+	 *
+	 * @see #checkReadArgs(Varargs)
+	 */
+	private static final int READ_NUMBER = -1;
+	private static final int READ_LINE = -2;
+	private static final int READ_ALL = -3;
+	private static final int READ_INVALID = -4;
+
+	private enum BufferMode {
+		NO,
+		LINE,
+		FULL,
+	}
+
+	/**
+	 * A Lua file handle.
+	 * <p>
+	 * Files on disk are backed by a {@link FileChannel}, and all reads and writes go through an internal buffer. This
+	 * buffer either holds data which has been read ahead of the file's logical position, or pending writes which have
+	 * not yet been written to the channel - never both. Switching between reading, writing and seeking discards or
+	 * flushes the buffer as required.
+	 * <p>
+	 * Writes are only buffered once {@code file:setvbuf("full")} or {@code file:setvbuf("line")} is called. Until then,
+	 * each write is passed straight through to the channel, so that data is not lost if the file is never closed.
+	 * <p>
+	 * Other files (standard input and output, and processes) wrap a Java stream instead.
+	 */
 	private class LuaFile extends LuaValue {
-		protected final RandomAccessFile file;
+		protected final FileChannel file;
 		protected final InputStream is;
 		protected final OutputStream os;
 		protected final boolean isStandard;
+		private final boolean writable;
 		private LuaTable metatable = fileMethods;
 		private boolean closed = false;
-		private boolean flush = false;
+		private BufferMode bufferMode;
 
-		private LuaFile(RandomAccessFile file, InputStream is, OutputStream os, boolean isStandard) {
+		private ByteBuffer buffer;
+		private boolean writing = false;
+
+		private LuaFile(FileChannel file, boolean writable, InputStream is, OutputStream os, boolean isStandard) {
 			super(TUSERDATA);
 			this.file = file;
+			this.writable = writable;
 			this.is = is != null ? is.markSupported() ? is : new BufferedInputStream(is) : null;
 			this.os = os;
 			this.isStandard = isStandard;
+			this.bufferMode = file != null ? BufferMode.NO : BufferMode.FULL;
+			if (file != null) buffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
 		}
 
-		LuaFile(RandomAccessFile f) {
-			this(f, null, null, false);
+		LuaFile(FileChannel f, boolean writable) {
+			this(f, writable, null, null, false);
 		}
 
 		LuaFile(InputStream i, boolean isStandard) {
-			this(null, i, null, isStandard);
+			this(null, false, i, null, isStandard);
 		}
 
 		LuaFile(OutputStream o, boolean isStandard) {
-			this(null, null, o, isStandard);
+			this(null, true, null, o, isStandard);
 		}
 
 		public void write(LuaString s) throws IOException {
 			if (os != null) {
 				s.write(os);
 			} else if (file != null) {
-				s.write(file);
+				if (!writable) throw new IOException("Bad file descriptor");
+				if (!writing) {
+					sync();
+					writing = true;
+					buffer.clear();
+				}
+
+				int length = s.length();
+				for (int offset = 0; offset < length; ) {
+					if (!buffer.hasRemaining()) writeBuffer();
+
+					int n = Math.min(buffer.remaining(), length - offset);
+					s.copyTo(offset, buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+					buffer.position(buffer.position() + n);
+					offset += n;
+				}
 			} else {
 				throw new IOException("not implemented");
 			}
 
-			if (flush) flush();
+			if (bufferMode == BufferMode.NO || (bufferMode == BufferMode.LINE && s.indexOf((byte) '\n') >= 0)) {
+				flush();
+			}
 		}
 
 		public void flush() throws IOException {
 			if (os != null) os.flush();
+			if (file != null && writing) writeBuffer();
+		}
+
+		/**
+		 * Write any pending data to the channel. The buffer remains in write mode.
+		 *
+		 * @throws IOException If the data could not be written.
+		 */
+		private void writeBuffer() throws IOException {
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining()) file.write(buffer);
+			} catch (NonWritableChannelException e) {
+				throw new IOException("Bad file descriptor", e);
+			}
+			buffer.clear();
+		}
+
+		/**
+		 * Write any pending data to the channel, or discard any data which has been read ahead. After this, the
+		 * channel's position is the same as the file's logical position, and the buffer is empty.
+		 *
+		 * @throws IOException If the pending data could not be written.
+		 */
+		private void sync() throws IOException {
+			if (writing) {
+				writeBuffer();
+				writing = false;
+			} else if (buffer.hasRemaining()) {
+				file.position(file.position() - buffer.remaining());
+			}
+			buffer.clear().limit(0);
+		}
+
+		/**
+		 * Ensure there is data in the read buffer.
+		 *
+		 * @return Whether any data is available, or {@code false} if we are at the end of the file.
+		 * @throws IOException If the file could not be read.
+		 */
+		private boolean fill() throws IOException {
+			if (writing) sync();
+			if (buffer.hasRemaining()) return true;
+
+			buffer.clear();
+			int read = readChannel(buffer);
+			buffer.flip();
+			return read > 0;
+		}
+
+		private int readChannel(ByteBuffer target) throws IOException {
+			try {
+				return file.read(target);
+			} catch (NonReadableChannelException e) {
+				throw new IOException("Bad file descriptor", e);
+			}
 		}
 
 		public boolean isStandardFile() {
@@ -106,7 +228,13 @@ public class IoLib {
 
 		public void close() throws IOException {
 			closed = true;
-			if (file != null) file.close();
+			if (file != null) {
+				try {
+					if (writing) writeBuffer();
+				} finally {
+					file.close();
+				}
+			}
 		}
 
 		public boolean isClosed() {
@@ -115,25 +243,50 @@ public class IoLib {
 
 		public int seek(String option, int pos) throws IOException {
 			if (file != null) {
+				if (writing) sync();
+
+				// The buffer holds the data between bufferStart and the channel's position.
+				long end = file.position(), bufferStart = end - buffer.limit();
+				long target;
 				if ("set".equals(option)) {
-					file.seek(pos);
+					target = pos;
 				} else if ("end".equals(option)) {
-					file.seek(file.length() + pos);
+					target = file.size() + pos;
+				} else {
+					target = bufferStart + buffer.position() + pos;
+				}
+				if (target < 0) throw new IOException("Negative seek offset");
+
+				// Keep the read buffer if we are seeking within it.
+				if (target >= bufferStart && target <= end) {
+					buffer.position((int) (target - bufferStart));
 				} else {
-					file.seek(file.getFilePointer() + pos);
+					buffer.clear().limit(0);
+					file.position(target);
 				}
-				return (int) file.getFilePointer();
+				return (int) target;
 			}
 			throw new IOException("not implemented");
 		}
 
-		public void setvbuf(String mode, int size) {
-			flush = "no".equals(mode);
+		public void setvbuf(String mode, int size) throws IOException {
+			bufferMode = switch (mode) {
+				case "no" -> BufferMode.NO;
+				case "line" -> BufferMode.LINE;
+				default -> BufferMode.FULL;
+			};
+
+			if (file != null && size > 0 && size != buffer.capacity()) {
+				sync();
+				buffer = ByteBuffer.allocate(size).limit(0);
+			}
 		}
 
 		// get length remaining to read
 		public int remaining() throws IOException {
-			return file != null ? (int) (file.length() - file.getFilePointer()) : -1;
+			if (file == null) return -1;
+			if (writing) sync();
+			return (int) (file.size() - file.position() + buffer.remaining());
 		}
 
 		// peek ahead one character
@@ -144,10 +297,7 @@ public class IoLib {
 				is.reset();
 				return c;
 			} else if (file != null) {
-				long fp = file.getFilePointer();
-				int c = file.read();
-				file.seek(fp);
-				return c;
+				return fill() ? buffer.get(buffer.position()) & 0xFF : -1;
 			}
 			throw new IOException("not implemented");
 		}
@@ -157,7 +307,7 @@ public class IoLib {
 			if (is != null) {
 				return is.read();
 			} else if (file != null) {
-				return file.read();
+				return fill() ? buffer.get() & 0xFF : -1;
 			}
 			throw new IOException("not implemented");
 		}
@@ -165,7 +315,24 @@ public class IoLib {
 		// return number of bytes read if positive, -1 if eof, throws IOException
 		public int read(byte[] bytes, int offset, int length) throws IOException {
 			if (file != null) {
-				return file.read(bytes, offset, length);
+				int read = 0;
+				while (read < length) {
+					if (!buffer.hasRemaining() && length - read >= buffer.capacity()) {
+						// Large reads skip the buffer entirely. Make sure it's empty, so seek doesn't think it holds any
+						// data from before this read.
+						if (writing) sync();
+						buffer.clear().limit(0);
+						int n = readChannel(ByteBuffer.wrap(bytes, offset + read, length - read));
+						if (n <= 0) break;
+						read += n;
+					} else {
+						if (!fill()) break;
+						int n = Math.min(buffer.remaining(), length - read);
+						buffer.get(bytes, offset + read, n);
+						read += n;
+					}
+				}
+				return read == 0 && length > 0 ? -1 : read;
 			} else if (is != null) {
 				return is.read(bytes, offset, length);
 			} else {
@@ -173,6 +340,45 @@ public class IoLib {
 			}
 		}
 
+		/**
+		 * Read a line from a file on disk, scanning the buffer for the next {@code '\n'}.
+		 *
+		 * @return The line without its terminator, or {@link Constants#NIL} if at the end of the file.
+		 * @throws IOException If the file could not be read.
+		 */
+		LuaValue readLine() throws IOException {
+			if (!fill()) return NIL;
+
+			// Fast path: the whole line is already in the buffer.
+			byte[] array = buffer.array();
+			int start = buffer.position(), limit = buffer.limit();
+			int end = LuaString.indexOf(array, start, limit, (byte) '\n');
+			if (end >= 0) {
+				buffer.position(end + 1);
+				return lineOf(array, start, end - start);
+			}
+
+			// Otherwise copy each chunk of the buffer until we find the end of the line.
+			ByteArrayOutputStream out = new ByteArrayOutputStream(limit - start + 80);
+			while (true) {
+				out.write(array, start, limit - start);
+				buffer.position(limit);
+				if (!fill()) break;
+
+				start = buffer.position();
+				limit = buffer.limit();
+				end = LuaString.indexOf(array, start, limit, (byte) '\n');
+				if (end >= 0) {
+					out.write(array, start, end - start);
+					buffer.position(end + 1);
+					break;
+				}
+			}
+
+			byte[] line = out.toByteArray();
+			return lineOf(line, 0, line.length);
+		}
+
 		@Override
 		public LuaTable getMetatable(LuaState state) {
 			return metatable;
@@ -199,6 +405,7 @@ public class IoLib {
 
 	private final InputStream stdin;
 	private final PrintStream stdout;
+	private final IoExecutor executor;
 	private LuaFile inFile = null;
 	private LuaFile outFile = null;
 	private LuaFile errFile = null;
@@ -206,24 +413,37 @@ public class IoLib {
 	private LuaTable fileMethods;
 
 	public IoLib(InputStream stdin, PrintStream stdout) {
+		this(stdin, stdout, null);
+	}
+
+	/**
+	 * Create a new IO library.
+	 *
+	 * @param stdin    The standard input stream.
+	 * @param stdout   The standard output stream.
+	 * @param executor The executor to run blocking IO on, or {@code null} to block the current thread instead.
+	 */
+	public IoLib(InputStream stdin, PrintStream stdout, IoExecutor executor) {
 		this.stdin = stdin;
 		this.stdout = stdout;
+		this.executor = executor;
 	}
 
 	public void add(LuaState state, LuaTable env) {
 		// io lib functions
 		LuaTable t = RegisteredFunction.bind(new RegisteredFunction[]{
-			RegisteredFunction.ofV("close", this::close),
-			RegisteredFunction.ofV("tmpfile", this::tmpfile),
-			RegisteredFunction.ofV("flush", this::flush),
-			RegisteredFunction.ofV("input", this::input),
-			RegisteredFunction.ofV("output", this::output),
+			RegisteredFunction.ofS("close", this::close),
+			RegisteredFunction.ofS("tmpfile", this::tmpfile),
+			RegisteredFunction.ofS("flush", this::flush),
+			RegisteredFunction.ofS("input", this::input),
+			RegisteredFunction.ofS("output", this::output),
 			RegisteredFunction.of("type", IoLib::type),
-			RegisteredFunction.ofV("popen", this::popen),
-			RegisteredFunction.ofV("open", this::open),
-			RegisteredFunction.ofV("lines", this::lines),
-			RegisteredFunction.ofV("read", this::read),
-			RegisteredFunction.ofV("write", this::write),
+			RegisteredFunction.ofS("popen", this::popen),
+			RegisteredFunction.ofS("open", this::open),
+			RegisteredFunction.ofS("lines", this::lines),
+			RegisteredFunction.ofS("map", this::map),
+			RegisteredFunction.ofS("read", this::read),
+			RegisteredFunction.ofS("write", this::write),
 		});
 
 		// Setup streams
@@ -237,19 +457,95 @@ public class IoLib {
 
 		// Create file methods table
 		fileMethods = RegisteredFunction.bind(new RegisteredFunction[]{
-			RegisteredFunction.ofV("close", IoLib::fileClose),
-			RegisteredFunction.ofV("flush", IoLib::fileFlush),
-			RegisteredFunction.ofV("lines", IoLib::fileLines),
-			RegisteredFunction.ofV("read", IoLib::fileRead),
-			RegisteredFunction.ofV("seek", IoLib::fileSeek),
-			RegisteredFunction.ofV("setvbuf", IoLib::fileSetvbuf),
-			RegisteredFunction.ofV("write", IoLib::fileWrite),
+			RegisteredFunction.ofS("close", this::fileClose),
+			RegisteredFunction.ofS("flush", this::fileFlush),
+			RegisteredFunction.ofV("lines", this::fileLines),
+			RegisteredFunction.ofS("read", this::fileRead),
+			RegisteredFunction.ofS("seek", this::fileSeek),
+			RegisteredFunction.ofS("setvbuf", this::fileSetvbuf),
+			RegisteredFunction.ofS("write", this::fileWrite),
 		});
 		fileMethods.rawset("__index", fileMethods);
 
 		LibFunction.setGlobalLibrary(state, env, "io", t);
 	}
 
+	/**
+	 * The blocking part of an IO function.
+	 */
+	@FunctionalInterface
+	private interface IoAction {
+		Varargs run() throws IOException, LuaError;
+	}
+
+	/**
+	 * Run the blocking part of an IO function.
+	 * <p>
+	 * If this library has an {@link IoExecutor}, the action is submitted to that and the Lua state is suspended until
+	 * it finishes. Otherwise, the action is run immediately.
+	 *
+	 * @param state  The current Lua state.
+	 * @param di     The current call frame, into which to store the pending action.
+	 * @param action The action to run.
+	 * @return The result of the action. IO errors are converted to a {@code nil, message} pair.
+	 * @throws LuaError        If the action threw a runtime error.
+	 * @throws UnwindThrowable To suspend the state while the action runs.
+	 */
+	private Varargs runIo(LuaState state, DebugFrame di, IoAction action) throws LuaError, UnwindThrowable {
+		if (executor == null) return perform(action);
+
+		PendingIo task = new PendingIo(state, action);
+		di.state = task;
+		executor.execute(state, task);
+		return LuaThread.suspend(state);
+	}
+
+	private static Varargs perform(IoAction action) throws LuaError {
+		try {
+			return action.run();
+		} catch (IOException e) {
+			return errorResult(e);
+		}
+	}
+
+	/**
+	 * An {@link IoAction} running on an {@link IoExecutor}. This is stored in the suspended function's
+	 * {@link DebugFrame}, and returns the action's result once resumed.
+	 */
+	private static final class PendingIo implements SuspendedTask<Varargs>, Runnable {
+		private final LuaState state;
+		private final IoAction action;
+		private Varargs result;
+		private Throwable error;
+		private volatile boolean done;
+
+		PendingIo(LuaState state, IoAction action) {
+			this.state = state;
+			this.action = action;
+		}
+
+		@Override
+		public void run() {
+			try {
+				result = perform(action);
+			} catch (Throwable e) {
+				error = e;
+			} finally {
+				done = true;
+			}
+		}
+
+		@Override
+		public Varargs resume(Varargs args) throws LuaError, UnwindThrowable {
+			if (!done) return LuaThread.suspend(state);
+
+			if (error instanceof LuaError e) throw e;
+			if (error instanceof RuntimeException e) throw e;
+			if (error instanceof Error e) throw e;
+			return result;
+		}
+	}
+
 	private LuaFile getCurrentInput() throws LuaError {
 		return inFile != null ? inFile : (inFile = doOpenFile("-", "r"));
 	}
@@ -263,56 +559,55 @@ public class IoLib {
 	}
 
 	//	io.flush() -> bool
-	private Varargs flush(LuaState state, Varargs varargs) throws LuaError {
-		try {
-			checkOpen(getCurrentIn());
-			outFile.flush();
+	private Varargs flush(LuaState state, DebugFrame di, Varargs varargs) throws LuaError, UnwindThrowable {
+		checkOpen(getCurrentIn());
+		LuaFile file = outFile;
+		return runIo(state, di, () -> {
+			file.flush();
 			return successResult();
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+		});
 	}
 
 	//	io.tmpfile() -> file
-	private Varargs tmpfile(LuaState state, Varargs varargs) {
-		try {
+	private Varargs tmpfile(LuaState state, DebugFrame di, Varargs varargs) throws LuaError, UnwindThrowable {
+		return runIo(state, di, () -> {
 			File file = Files.createTempFile(null, "cobalt").toFile();
 			file.deleteOnExit();
-			return new LuaFile(new RandomAccessFile(file, "rw"));
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+			return new LuaFile(new RandomAccessFile(file, "rw").getChannel(), true);
+		});
 	}
 
 	//	io.close([file]) -> void
-	private Varargs close(LuaState state, Varargs args) throws LuaError {
-		try {
-			LuaValue file = args.first();
-			LuaFile f = file.isNil() ? getCurrentIn() : checkFile(file);
-			checkOpen(f);
-			return doClose(f);
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+	private Varargs close(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		LuaValue file = args.first();
+		LuaFile f = file.isNil() ? getCurrentIn() : checkFile(file);
+		checkOpen(f);
+		return runIo(state, di, () -> doClose(f));
 	}
 
 	//	io.input([file]) -> file
-	private Varargs input(LuaState state, Varargs args) throws LuaError {
+	private Varargs input(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		LuaValue file = args.first();
 		if (file.isNil()) {
 			return getCurrentInput();
+		} else if (file.isString()) {
+			String filename = file.checkString();
+			return runIo(state, di, () -> inFile = doOpenFile(filename, "r"));
 		} else {
-			return inFile = file.isString() ? doOpenFile(file.checkString(), "r") : checkFile(file);
+			return inFile = checkFile(file);
 		}
 	}
 
 	// io.output(filename) -> file
-	private Varargs output(LuaState state, Varargs args) throws LuaError {
+	private Varargs output(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		LuaValue filename = args.first();
 		if (filename.isNil()) {
 			return getCurrentIn();
+		} else if (filename.isString()) {
+			String name = filename.checkString();
+			return runIo(state, di, () -> outFile = doOpenFile(name, "w"));
 		} else {
-			return outFile = filename.isString() ? doOpenFile(filename.checkString(), "w") : checkFile(filename);
+			return outFile = checkFile(filename);
 		}
 	}
 
@@ -325,122 +620,124 @@ public class IoLib {
 	}
 
 	// io.popen(prog, [mode]) -> file
-	private Varargs popen(LuaState state, Varargs args) throws LuaError {
+	private Varargs popen(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		String prog = args.arg(1).checkString();
 		String mode = args.arg(2).optString("r");
-		try {
-			return openProgram(prog, mode);
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+		return runIo(state, di, () -> openProgram(prog, mode));
 	}
 
 	//	io.open(filename, [mode]) -> file | nil,err
-	private Varargs open(LuaState state, Varargs args) throws LuaError {
+	private Varargs open(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		String filename = args.arg(1).checkString();
 		String mode = args.arg(2).optString("r");
-		try {
-			return rawOpenFile(filename, mode);
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+		return runIo(state, di, () -> rawOpenFile(filename, mode));
+	}
+
+	//	io.map(filename, [offset, [length]]) -> string | nil,err
+	//	Maps a region of a file into memory as a read-only string, without copying it onto the heap. This is not part
+	//	of the standard library. The file should not be modified while the string is in use.
+	private Varargs map(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		String filename = args.arg(1).checkString();
+		long offset = args.arg(2).optLong(0);
+		long length = args.arg(3).optLong(-1);
+		if (offset < 0) throw ErrorFactory.argError(2, "offset must be non-negative");
+
+		return runIo(state, di, () -> {
+			try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+				FileChannel channel = file.getChannel();
+				long size = channel.size();
+				long start = Math.min(offset, size);
+				long count = length < 0 || length > size - start ? size - start : length;
+				if (count > Integer.MAX_VALUE) return errorResult("file too large to map");
+
+				return LuaString.valueOf(channel.map(FileChannel.MapMode.READ_ONLY, start, count));
+			}
+		});
 	}
 
 	//	io.lines(filename) -> iterator
-	private Varargs lines(LuaState state, Varargs args) throws LuaError {
+	private Varargs lines(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		String filename = args.arg(1).optString(null);
 		if (filename == null) {
 			LuaFile file = getCurrentInput();
 			checkOpen(file);
 			return doLines(file, false);
 		} else {
-			LuaFile file = doOpenFile(filename, "r");
-			checkOpen(file);
-			return doLines(file, true);
+			return runIo(state, di, () -> {
+				LuaFile file = doOpenFile(filename, "r");
+				checkOpen(file);
+				return doLines(file, true);
+			});
 		}
 	}
 
 	//	io.read(...) -> (...)
-	private Varargs read(LuaState state, Varargs args) throws LuaError {
+	private Varargs read(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		checkOpen(getCurrentInput());
-		try {
-			return doRead(inFile, args);
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+		LuaFile file = inFile;
+		ReadArgs formats = checkReadArgs(args);
+		return runIo(state, di, () -> doRead(file, formats));
 	}
 
 	//	io.write(...) -> void
-	private Varargs write(LuaState state, Varargs args) throws LuaError {
+	private Varargs write(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		checkOpen(getCurrentIn());
-		try {
-			return doWrite(outFile, args);
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+		LuaFile file = outFile;
+		WriteArgs values = checkWriteArgs(args);
+		return runIo(state, di, () -> doWrite(file, values));
 	}
 
 	// file:close() -> void
-	private static Varargs fileClose(LuaState state, Varargs args) throws LuaError {
-		try {
-			return doClose(checkFile(args.first()));
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+	private Varargs fileClose(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		LuaFile file = checkFile(args.first());
+		return runIo(state, di, () -> doClose(file));
 	}
 
 	// file:flush() -> void
-	private static Varargs fileFlush(LuaState state, Varargs args) throws LuaError {
-		try {
-			checkFile(args.first()).flush();
+	private Varargs fileFlush(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		LuaFile file = checkFile(args.first());
+		return runIo(state, di, () -> {
+			file.flush();
 			return successResult();
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+		});
 	}
 
 	// file:setvbuf(mode,[size]) -> void
-	private static Varargs fileSetvbuf(LuaState state, Varargs args) throws LuaError {
+	private Varargs fileSetvbuf(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		LuaFile file = checkFile(args.first());
 		String mode = args.arg(2).checkString();
-		int size = args.arg(3).optInteger(1024);
-		file.setvbuf(mode, size);
-		return TRUE;
+		int size = args.arg(3).optInteger(BUFFER_SIZE);
+		return runIo(state, di, () -> {
+			file.setvbuf(mode, size);
+			return TRUE;
+		});
 	}
 
 	// file:lines() -> iterator
-	private static Varargs fileLines(LuaState state, Varargs args) throws LuaError {
+	private Varargs fileLines(LuaState state, Varargs args) throws LuaError {
 		return doLines(checkFile(args.first()), false);
 	}
 
 	//	file:read(...) -> (...)
-	private static Varargs fileRead(LuaState state, Varargs args) throws LuaError {
-		try {
-			return doRead(checkFile(args.first()), args.subargs(2));
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+	private Varargs fileRead(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		LuaFile file = checkFile(args.first());
+		ReadArgs formats = checkReadArgs(args.subargs(2));
+		return runIo(state, di, () -> doRead(file, formats));
 	}
 
 	//  file:seek([whence][,offset]) -> pos | nil,error
-	private static Varargs fileSeek(LuaState state, Varargs args) throws LuaError {
+	private Varargs fileSeek(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		LuaFile file = checkFile(args.first());
 		String whence = args.arg(2).optString("cur");
 		int offset = args.arg(3).optInteger(0);
-		try {
-			return valueOf(checkFile(file).seek(whence, offset));
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+		return runIo(state, di, () -> valueOf(file.seek(whence, offset)));
 	}
 
 	//	file:write(...) -> void
-	private static Varargs fileWrite(LuaState state, Varargs args) throws LuaError {
-		try {
-			return doWrite(checkFile(args.first()), args.subargs(2));
-		} catch (IOException e) {
-			return errorResult(e);
-		}
+	private Varargs fileWrite(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		LuaFile file = checkFile(args.first());
+		WriteArgs values = checkWriteArgs(args.subargs(2));
+		return runIo(state, di, () -> doWrite(file, values));
 	}
 
 	private LuaFile doOpenFile(String filename, String mode) throws LuaError {
@@ -473,69 +770,121 @@ public class IoLib {
 		return varargsOf(NIL, valueOf(message), ZERO);
 	}
 
-	private static Varargs doLines(final LuaFile f, final boolean autoClose) {
-		return new VarArgFunction() {
+	private Varargs doLines(final LuaFile f, final boolean autoClose) {
+		return new SuspendedVarArgFunction() {
 			@Override
-			public Varargs invoke(LuaState state, Varargs args) throws LuaError {
+			protected Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 				//	lines iterator(s,var) -> var'
 				checkOpen(f);
 
-				try {
+				return runIo(state, di, () -> {
 					LuaValue result = readLine(f);
 					if (autoClose && result == NIL) doClose(f);
 					return result;
-				} catch (IOException e) {
-					return errorResult(e);
-				}
+				});
 			}
 		};
 	}
 
-	private static Varargs doWrite(LuaFile f, Varargs args) throws IOException, LuaError {
-		for (int i = 1, n = args.count(); i <= n; i++) {
-			f.write(args.arg(i).checkLuaString());
+	/**
+	 * The arguments to {@code file:write}, converted to strings on the Lua thread before any IO is performed.
+	 * <p>
+	 * Like PUC Lua, the values before an invalid argument are still written, and the error is only thrown afterwards.
+	 *
+	 * @param values The values to write.
+	 * @param error  The error for the first invalid argument, if any.
+	 */
+	private record WriteArgs(LuaString[] values, @Nullable LuaError error) {
+	}
+
+	private static WriteArgs checkWriteArgs(Varargs args) {
+		int n = args.count();
+		LuaString[] values = new LuaString[n];
+		for (int i = 0; i < n; i++) {
+			try {
+				values[i] = args.arg(i + 1).checkLuaString();
+			} catch (LuaError e) {
+				return new WriteArgs(Arrays.copyOf(values, i), e);
+			}
 		}
+		return new WriteArgs(values, null);
+	}
+
+	private static Varargs doWrite(LuaFile f, WriteArgs args) throws IOException, LuaError {
+		for (LuaString value : args.values()) f.write(value);
+		if (args.error() != null) throw args.error();
 		return TRUE;
 	}
 
-	private static Varargs doRead(LuaFile f, Varargs args) throws IOException, LuaError {
-		int i, n = args.count();
-		if (n == 0) {
+	/**
+	 * The formats passed to {@code file:read}, parsed on the Lua thread before any IO is performed.
+	 * <p>
+	 * Like PUC Lua, the formats before an invalid one are still read, and the error is only thrown afterwards.
+	 *
+	 * @param formats The formats, as either a (non-negative) number of bytes to read, or one of the {@code READ_*}
+	 *                constants.
+	 * @param error   The error for the first invalid format, if any.
+	 */
+	private record ReadArgs(int[] formats, @Nullable LuaError error) {
+	}
+
+	private static ReadArgs checkReadArgs(Varargs args) {
+		int n = args.count();
+		int[] formats = new int[n];
+		for (int i = 0; i < n; i++) {
+			int format = checkReadFormat(args.arg(i + 1));
+			if (format == READ_INVALID) {
+				return new ReadArgs(Arrays.copyOf(formats, i), ErrorFactory.argError(i + 1, "(invalid format)"));
+			}
+			formats[i] = format;
+		}
+		return new ReadArgs(formats, null);
+	}
+
+	private static int checkReadFormat(LuaValue format) {
+		switch (format.type()) {
+			case TNUMBER:
+				return Math.max(0, format.toInteger());
+			case TSTRING:
+				LuaString fmt = (LuaString) format;
+				if (fmt.length() >= 2 && fmt.charAt(0) == '*') {
+					switch (fmt.charAt(1)) {
+						case 'n':
+							return READ_NUMBER;
+						case 'l':
+							return READ_LINE;
+						case 'a':
+							return READ_ALL;
+					}
+				}
+				return READ_INVALID;
+			default:
+				return READ_INVALID;
+		}
+	}
+
+	private static Varargs doRead(LuaFile f, ReadArgs args) throws IOException, LuaError {
+		int[] formats = args.formats();
+		int n = formats.length;
+		if (n == 0 && args.error() == null) {
 			return readLine(f);
 		}
 
 		LuaValue[] v = new LuaValue[n];
-		LuaValue ai, vi;
-		LuaString fmt;
+		int i;
 		for (i = 0; i < n; ) {
-			item:
-			switch ((ai = args.arg(i + 1)).type()) {
-				case TNUMBER:
-					vi = readBytes(f, ai.toInteger());
-					break;
-				case TSTRING:
-					fmt = ai.checkLuaString();
-					if (fmt.length() >= 2 && fmt.charAt(0) == '*') {
-						switch (fmt.charAt(1)) {
-							case 'n':
-								vi = readNumber(f);
-								break item;
-							case 'l':
-								vi = readLine(f);
-								break item;
-							case 'a':
-								vi = readAll(f);
-								break item;
-						}
-					}
-					// fallthrough
-				default:
-					throw ErrorFactory.argError(i + 1, "(invalid format)");
-			}
+			LuaValue vi = switch (formats[i]) {
+				case READ_NUMBER -> readNumber(f);
+				case READ_LINE -> readLine(f);
+				case READ_ALL -> readAll(f);
+				default -> readBytes(f, formats[i]);
+			};
 			if ((v[i++] = vi).isNil()) {
-				break;
+				return ValueFactory.varargsOfCopy(v, 0, i);
 			}
 		}
+
+		if (args.error() != null) throw args.error();
 		return i == 0 ? NIL : ValueFactory.varargsOfCopy(v, 0, i);
 	}
 
@@ -562,14 +911,15 @@ public class IoLib {
 		boolean isAppend = mode.startsWith("a");
 		boolean isUpdate = mode.indexOf("+") > 0;
 
-		RandomAccessFile f = new RandomAccessFile(filename, isRead ? "r" : "rw");
+		// We open via RandomAccessFile rather than FileChannel.open, as it gives more useful error messages.
+		FileChannel f = new RandomAccessFile(filename, isRead && !isUpdate ? "r" : "rw").getChannel();
 		if (isAppend) {
-			f.seek(f.length());
-		} else {
-			if (!isRead && !isUpdate) f.setLength(0);
+			f.position(f.size());
+		} else if (!isRead) {
+			f.truncate(0);
 		}
 
-		return new LuaFile(f);
+		return new LuaFile(f, !isRead || isUpdate);
 	}
 
 	// ------------- file reading utilitied ------------------
@@ -612,7 +962,27 @@ public class IoLib {
 	}
 
 	public static LuaValue readLine(LuaFile f) throws IOException {
-		return readUntil(f, true);
+		return f.file != null ? f.readLine() : readUntil(f, true);
+	}
+
+	/**
+	 * Create a line from a region of a byte array, stripping any {@code '\r'} characters.
+	 *
+	 * @param bytes  The bytes to copy from. These are always copied.
+	 * @param offset The offset into the array.
+	 * @param length The length of the line.
+	 * @return The line.
+	 */
+	private static LuaString lineOf(byte[] bytes, int offset, int length) {
+		int cr = LuaString.indexOf(bytes, offset, offset + length, (byte) '\r');
+		if (cr < 0) return LuaString.valueOfCopy(bytes, offset, length);
+
+		byte[] line = new byte[length];
+		int size = 0;
+		for (int i = offset; i < offset + length; i++) {
+			if (bytes[i] != '\r') line[size++] = bytes[i];
+		}
+		return LuaString.valueOf(line, 0, size);
 	}
 
 	public static LuaValue readAll(LuaFile f) throws IOException {
@@ -29,10 +29,25 @@ public final class SystemLibraries {
 	 * @return Table of globals initialized with the standard JSE libraries
 	 */
 	public static LuaTable standardGlobals(LuaState state, ResourceLoader resources, InputStream stdin, PrintStream stdout) {
+		return standardGlobals(state, resources, stdin, stdout, null);
+	}
+
+	/**
+	 * Create a standard set of globals, whose {@code io} library runs blocking operations in the background.
+	 *
+	 * @param state      The current lua state
+	 * @param resources  The loader for Lua files.
+	 * @param stdin      The standard input stream.
+	 * @param stdout     The standard output stream.
+	 * @param ioExecutor The executor to run IO on, or {@code null} to block instead.
+	 * @return Table of globals initialized with the standard JSE libraries
+	 * @see IoExecutor
+	 */
+	public static LuaTable standardGlobals(LuaState state, ResourceLoader resources, InputStream stdin, PrintStream stdout, IoExecutor ioExecutor) {
 		LuaTable globals = CoreLibraries.standardGlobals(state);
 		new SystemBaseLib(resources, stdin, stdout).add(globals);
 		new PackageLib(resources).add(state, globals);
-		new IoLib(stdin, stdout).add(state, globals);
+		new IoLib(stdin, stdout, ioExecutor).add(state, globals);
 		new OsLib().add(state, globals);
 		return globals;
 	}
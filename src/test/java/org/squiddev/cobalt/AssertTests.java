@@ -26,6 +26,7 @@ package org.squiddev.cobalt;
 
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.squiddev.cobalt.compiler.BytecodeOptimiser;
 import org.squiddev.cobalt.compiler.CompileException;
 import org.squiddev.cobalt.function.OneArgFunction;
 import org.squiddev.cobalt.function.ZeroArgFunction;
@@ -34,6 +35,7 @@ import org.squiddev.cobalt.lib.Utf8Lib;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
 
@@ -42,7 +44,7 @@ import static org.squiddev.cobalt.ValueFactory.valueOf;
  */
 public class AssertTests {
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
-	@ValueSource(strings = {"table-hash-01", "table-hash-02"})
+	@ValueSource(strings = {"table-hash-01", "table-hash-02", "table-index-cache", "table-length", "table-number-array", "table-sort", "table-array-ops", "table-grow-array"})
 	public void tables(String name) throws IOException, CompileException, LuaError, InterruptedException {
 		ScriptHelper helpers = new ScriptHelper("/assert/table/");
 		helpers.setup();
@@ -55,17 +57,24 @@ public class AssertTests {
 		"debug-coroutine-hook",
 		"debug-getinfo",
 		"debug-upvalue",
+		"for-loop",
 		"gc",
 		"immutable",
 		"invalid-tailcall",
+		"io-random",
 		"lex-context",
+		"lex-direct",
 		"lex-number",
 		"load-error",
 		"no-unwind",
+		"return-values",
 		"setlist",
 		"string-compare",
 		"string-issues",
 		"string-format",
+		"string-mapped",
+		"string-match",
+		"string-rope",
 		"time",
 		"traceback",
 	})
@@ -75,6 +84,51 @@ public class AssertTests {
 		helpers.runWithDump(name);
 	}
 
+	/**
+	 * Ensure compiled functions correctly fall back to the interpreter when hooks are installed.
+	 */
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"debug",
+		"debug-coroutine-hook",
+		"debug-getinfo",
+		"no-unwind",
+		"traceback",
+	})
+	public void compiled(String name) throws IOException, CompileException, LuaError, InterruptedException {
+		ScriptHelper helpers = new ScriptHelper("/assert/");
+		helpers.setup(x -> x.compileThreshold(0));
+		helpers.runWithDump(name);
+	}
+
+	/**
+	 * Ensure optimised bytecode behaves the same as the original.
+	 * <p>
+	 * This skips {@code db}, as it checks the exact sequence of lines reported to line hooks, which changes when
+	 * jumps are removed. See {@link BytecodeOptimiser}.
+	 */
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"calls",
+		"closure",
+		"code",
+		"constructs",
+		"errors",
+		"events",
+		"literals",
+		"locals",
+		"nextvar",
+		"pm",
+		"sort",
+		"strings",
+		"vararg",
+	})
+	public void optimised(String name) throws IOException, CompileException, LuaError, InterruptedException {
+		ScriptHelper helpers = new ScriptHelper("/assert/lua5.1/");
+		helpers.setup(x -> x.optimiseBytecode(true));
+		helpers.runWithDump(name);
+	}
+
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
 	@ValueSource(strings = {
 		// Skip all, api, big and main
@@ -100,11 +154,46 @@ public class AssertTests {
 		"verybig",
 	})
 	public void lua51(String name) throws Exception {
+		runLua51(name, x -> {
+		});
+	}
+
+	/**
+	 * Run the Lua 5.1 test suite with every function compiled to JVM bytecode as soon as it is called.
+	 */
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"attrib",
+		"calls",
+		"checktable",
+		"closure",
+		"code",
+		"constructs",
+		"db",
+		"errors",
+		"events",
+		"files",
+		"gc",
+		"literals",
+		"locals",
+		"math",
+		"nextvar",
+		"pm",
+		"sort",
+		"strings",
+		"vararg",
+		"verybig",
+	})
+	public void lua51Compiled(String name) throws Exception {
+		runLua51(name, x -> x.compileThreshold(0));
+	}
+
+	private static void runLua51(String name, Consumer<LuaState.Builder> extend) throws Exception {
 		new File("libs").mkdirs();
 		new File("libs/P1").mkdirs();
 
 		ScriptHelper helpers = new ScriptHelper("/assert/lua5.1/");
-		helpers.setup();
+		helpers.setup(extend);
 		helpers.globals.rawset("mkdir", new OneArgFunction() {
 			@Override
 			public LuaValue call(LuaState state, LuaValue arg) throws LuaError {
@@ -62,4 +62,19 @@ public class CompareTest {
 		helpers.setup();
 		helpers.runComparisonTest(name);
 	}
+
+	/**
+	 * Runs the {@linkplain #libs(String) compatibility tests}, compiling every function to JVM bytecode.
+	 */
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"baselib", "coroutinelib", "debuglib", "errors", "iolib", "format", "functions", "manyupvals", "mathlib",
+		"metatags", "oslib", "stringlib", "tablelib", "tailcalls", "traceback", "upvalues", "vm",
+		"string_pack",
+	})
+	public void libsCompiled(String name) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/compare/");
+		helpers.setup(x -> x.compileThreshold(0));
+		helpers.runComparisonTest(name);
+	}
 }
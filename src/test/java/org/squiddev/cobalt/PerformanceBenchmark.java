@@ -69,6 +69,11 @@ public class PerformanceBenchmark {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("nsieve"), valueOf(8));
 	}
 
+	@Benchmark
+	public void stringkeys(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("stringkeys"), valueOf(4096));
+	}
+
 	public static void main(String... args) throws RunnerException {
 		Options opts = new OptionsBuilder()
 			.include("org.squiddev.cobalt.PerformanceBenchmark.*")
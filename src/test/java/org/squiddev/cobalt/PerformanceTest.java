@@ -46,7 +46,7 @@ public class PerformanceTest {
 	}
 
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
-	@ValueSource(strings = {"binarytrees", "fannkuch", "nbody", "nsieve", "primes"})
+	@ValueSource(strings = {"binarytrees", "fannkuch", "nbody", "nsieve", "primes", "stringkeys"})
 	public void run(String name) throws IOException, CompileException, LuaError, InterruptedException {
 		System.out.println("[" + name + "]");
 
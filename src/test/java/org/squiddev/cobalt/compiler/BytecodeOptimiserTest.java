@@ -0,0 +1,69 @@
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.Lua;
+import org.squiddev.cobalt.Prototype;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class BytecodeOptimiserTest {
+	private static Prototype compile(String code) throws CompileException {
+		return LuaC.compile(valueOf(code), valueOf("=test"), null);
+	}
+
+	private static int count(Prototype prototype, int opcode) {
+		int count = 0;
+		for (int i : prototype.code) if (Lua.GET_OPCODE(i) == opcode) count++;
+		return count;
+	}
+
+	@Test
+	public void testFoldsConcat() throws CompileException {
+		Prototype original = compile("return 'a' .. 'b' .. 'c'");
+		Prototype optimised = BytecodeOptimiser.optimise(original);
+
+		assertEquals(0, count(optimised, Lua.OP_CONCAT));
+		assertEquals(1, count(optimised, Lua.OP_LOADK));
+		assertTrue(optimised.maxStackSize < original.maxStackSize);
+		assertEquals(optimised.code.length, optimised.lineInfo.length);
+	}
+
+	@Test
+	public void testRemovesDeadCode() throws CompileException {
+		Prototype optimised = BytecodeOptimiser.optimise(compile("if false then print(1) end return 2"));
+		assertEquals(0, count(optimised, Lua.OP_GETGLOBAL));
+		assertEquals(0, count(optimised, Lua.OP_CALL));
+		assertEquals(Lua.OP_RETURN, Lua.GET_OPCODE(optimised.code[optimised.code.length - 1]));
+	}
+
+	@Test
+	public void testThreadsJumps() throws CompileException {
+		Prototype optimised = BytecodeOptimiser.optimise(compile("""
+			local t = 0
+			for i = 1, 10 do
+			  while true do
+			    if i > 5 then break end
+			    t = t + i
+			    break
+			  end
+			end
+			return t
+			"""));
+
+		for (int pc = 0; pc < optimised.code.length; pc++) {
+			int i = optimised.code[pc];
+			if (Lua.GET_OPCODE(i) != Lua.OP_JMP) continue;
+
+			int dest = pc + 1 + Lua.GETARG_sBx(i);
+			assertNotEquals(Lua.OP_JMP, Lua.GET_OPCODE(optimised.code[dest]), "Jump at " + pc + " goes to another jump");
+			assertNotEquals(pc + 1, dest, "Jump at " + pc + " goes to the next instruction");
+		}
+	}
+
+	@Test
+	public void testUnchanged() throws CompileException {
+		Prototype original = compile("local x = ... return x + 1");
+		assertSame(original, BytecodeOptimiser.optimise(original));
+	}
+}
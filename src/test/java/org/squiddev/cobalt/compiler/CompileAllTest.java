@@ -0,0 +1,54 @@
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LuaClosure;
+import org.squiddev.cobalt.lib.CoreLibraries;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class CompileAllTest {
+	private static Map<LuaString, LuaString> chunks(int count) {
+		Map<LuaString, LuaString> chunks = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			chunks.put(valueOf("=module" + i), valueOf("local x = " + i + "\nlocal function f(y) return x * y end\nreturn f(2)"));
+		}
+		return chunks;
+	}
+
+	@Test
+	public void testLoadAll() throws LuaError, CompileException {
+		LuaState state = new LuaState();
+		LuaTable env = CoreLibraries.standardGlobals(state);
+
+		Map<LuaString, LuaString> chunks = chunks(64);
+		Map<LuaString, LuaClosure> functions = LoadState.loadAll(state, chunks, null, env);
+		assertEquals(List.copyOf(chunks.keySet()), List.copyOf(functions.keySet()));
+
+		int i = 0;
+		for (Map.Entry<LuaString, LuaClosure> function : functions.entrySet()) {
+			assertEquals(function.getKey(), function.getValue().getPrototype().source);
+			assertEquals(valueOf(i * 2), LuaThread.runMain(state, function.getValue()).first());
+			i++;
+		}
+	}
+
+	@Test
+	public void testError() {
+		Map<LuaString, LuaString> chunks = chunks(8);
+		chunks.put(valueOf("=broken"), valueOf("return +"));
+
+		CompileException error = assertThrows(CompileException.class, () -> LuaC.compileAll(chunks, null));
+		assertTrue(error.getMessage().startsWith("broken:1:"), error.getMessage());
+	}
+
+	@Test
+	public void testMode() {
+		assertThrows(CompileException.class, () -> LuaC.compileAll(chunks(1), valueOf("b")));
+	}
+}
@@ -0,0 +1,121 @@
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.lib.CoreLibraries;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class CompileCacheTest {
+	private static final String SCRIPT = "local x = 1\nlocal function f(y) return x + y end\nreturn f(2)";
+
+	@TempDir
+	Path dir;
+
+	private static byte[] bytes(String contents) {
+		return contents.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private List<Path> entries() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.toList();
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws CompileException, IOException {
+		CompileCache cache = new CompileCache(dir, "test");
+		Prototype compiled = cache.compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+		assertEquals(1, entries().size());
+
+		Prototype cached = cache.compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+		assertNotSame(compiled, cached);
+		assertPrototypeEquals(compiled, cached);
+	}
+
+	@Test
+	public void testVersionMismatch() throws CompileException, IOException {
+		new CompileCache(dir, "1").compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+		new CompileCache(dir, "2").compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+		assertEquals(2, entries().size());
+	}
+
+	@Test
+	public void testDefaultVersion() throws CompileException, IOException {
+		Prototype compiled = new CompileCache(dir).compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+		Prototype cached = new CompileCache(dir).compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+		assertEquals(1, entries().size());
+		assertPrototypeEquals(compiled, cached);
+
+		// When not running from a jar, the version should be derived from the compiler, rather than a constant.
+		new CompileCache(dir, "dev").compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+		assertEquals(2, entries().size());
+	}
+
+	@Test
+	public void testCorruptEntry() throws CompileException, IOException {
+		CompileCache cache = new CompileCache(dir, "test");
+		Prototype compiled = cache.compile(bytes(SCRIPT), valueOf("=script"), valueOf("t"));
+
+		Path entry = entries().get(0);
+		byte[] contents = Files.readAllBytes(entry);
+		Files.write(entry, Arrays.copyOf(contents, contents.length / 2));
+
+		assertPrototypeEquals(compiled, cache.compile(bytes(SCRIPT), valueOf("=script"), valueOf("t")));
+	}
+
+	@Test
+	public void testErrorsNotCached() throws IOException {
+		CompileCache cache = new CompileCache(dir, "test");
+		assertThrows(CompileException.class, () -> cache.compile(bytes("return +"), valueOf("=script"), valueOf("t")));
+		assertThrows(CompileException.class, () -> cache.compile(bytes(SCRIPT), valueOf("=script"), valueOf("b")));
+		assertEquals(0, entries().size());
+	}
+
+	@Test
+	public void testOptimisedCachedSeparately() throws CompileException, IOException {
+		String script = "local x = 1 if false then x = 2 end return 'a' .. 'b', x";
+		CompileCache cache = new CompileCache(dir, "test");
+		Prototype plain = cache.compile(bytes(script), valueOf("=script"), valueOf("t"), false);
+		Prototype optimised = cache.compile(bytes(script), valueOf("=script"), valueOf("t"), true);
+		assertEquals(2, entries().size());
+		assertTrue(optimised.code.length < plain.code.length);
+
+		// Cached entries are already optimised, and so are not changed by the optimiser.
+		Prototype cached = cache.compile(bytes(script), valueOf("=script"), valueOf("t"), true);
+		assertPrototypeEquals(optimised, cached);
+		assertSame(cached, BytecodeOptimiser.optimise(cached));
+	}
+
+	@Test
+	public void testLoadViaState() throws LuaError, CompileException, UnwindThrowable {
+		LuaState state = LuaState.builder().compileCache(new CompileCache(dir, "test")).build();
+		for (int i = 0; i < 2; i++) {
+			LuaValue result = LuaThread.runMain(state, LoadState.load(state, valueOf(SCRIPT), valueOf("=script"), valueOf("t"), CoreLibraries.standardGlobals(state))).first();
+			assertEquals(valueOf(3), result);
+		}
+	}
+
+	private static void assertPrototypeEquals(Prototype expected, Prototype actual) {
+		assertEquals(expected.source, actual.source);
+		assertArrayEquals(expected.code, actual.code);
+		assertArrayEquals(expected.constants, actual.constants);
+		assertArrayEquals(expected.lineInfo, actual.lineInfo);
+		assertArrayEquals(expected.columnInfo, actual.columnInfo);
+		assertArrayEquals(expected.upvalueNames, actual.upvalueNames);
+		assertEquals(expected.children.length, actual.children.length);
+		for (int i = 0; i < expected.children.length; i++) {
+			assertPrototypeEquals(expected.children[i], actual.children[i]);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LocalVariable;
+import org.squiddev.cobalt.function.LuaClosure;
+import org.squiddev.cobalt.lib.CoreLibraries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class PrototypeRegistryTest {
+	private static final LuaString SCRIPT = valueOf("""
+		counter = (counter or 0) + 1
+		local t = {}
+		for i = 1, 200 do t[i] = ("x"):rep(i % 5) .. i end
+		return counter, #table.concat(t)
+		""");
+
+	@Test
+	public void testSharedBetweenStates() throws LuaError, CompileException {
+		PrototypeRegistry registry = new PrototypeRegistry();
+
+		LuaState first = new LuaState(), second = new LuaState();
+		LuaTable firstEnv = CoreLibraries.standardGlobals(first), secondEnv = CoreLibraries.standardGlobals(second);
+
+		LuaClosure firstFn = registry.load(first, SCRIPT, valueOf("=script"), firstEnv);
+		LuaClosure secondFn = registry.load(second, SCRIPT, valueOf("=script"), secondEnv);
+		assertNotSame(firstFn, secondFn);
+		assertSame(firstFn.getPrototype(), secondFn.getPrototype());
+
+		assertEquals(valueOf(1), LuaThread.runMain(first, firstFn).first());
+		assertEquals(valueOf(2), LuaThread.runMain(first, firstFn).first());
+		assertEquals(valueOf(1), LuaThread.runMain(second, secondFn).first());
+	}
+
+	@Test
+	public void testDifferentContents() throws CompileException {
+		PrototypeRegistry registry = new PrototypeRegistry();
+		Prototype a = registry.compile(valueOf("return 1"), valueOf("=script"));
+		Prototype b = registry.compile(valueOf("return 2"), valueOf("=script"));
+		assertNotSame(a, b);
+		assertSame(a, registry.compile(valueOf("return 1"), valueOf("=script")));
+		assertNotSame(a, registry.compile(valueOf("return 1"), valueOf("=other")));
+	}
+
+	@Test
+	public void testOptimisedSeparately() throws CompileException {
+		PrototypeRegistry registry = new PrototypeRegistry();
+		LuaState state = LuaState.builder().optimiseBytecode(true).build();
+		LuaTable env = CoreLibraries.standardGlobals(state);
+
+		Prototype plain = registry.compile(SCRIPT, valueOf("=script"));
+		Prototype optimised = registry.load(state, SCRIPT, valueOf("=script"), env).getPrototype();
+		assertNotSame(plain, optimised);
+		assertSame(optimised, registry.compile(SCRIPT, valueOf("=script"), true));
+	}
+
+	@Test
+	public void testConcurrentLoad() throws Exception {
+		PrototypeRegistry registry = new PrototypeRegistry();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Varargs>> results = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				results.add(executor.submit(() -> {
+					LuaState state = LuaState.builder().compileThreshold(2).build();
+					LuaTable env = CoreLibraries.standardGlobals(state);
+					LuaClosure fn = registry.load(state, SCRIPT, valueOf("=script"), env);
+					Varargs result = null;
+					for (int j = 0; j < 5; j++) result = LuaThread.runMain(state, fn);
+					return result;
+				}));
+			}
+
+			for (Future<Varargs> result : results) {
+				Varargs value = result.get();
+				assertEquals(valueOf(5), value.first());
+				assertEquals(valueOf(892), value.arg(2));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRejectsStateBoundConstants() {
+		Prototype prototype = new Prototype(
+			valueOf("=script"), new LuaValue[]{new LuaTable()}, new int[0], new Prototype[0], 0, 0, 2, 0,
+			0, 0, new int[0], null, new LocalVariable[0], new LuaString[0]
+		);
+		assertThrows(IllegalArgumentException.class, prototype::share);
+	}
+}
@@ -0,0 +1,130 @@
+package org.squiddev.cobalt.lib.system;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.CompileException;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class IoExecutorTest {
+	private static final String SCRIPT = """
+		local name = ...
+		local h = assert(io.open(name, "w"))
+		for i = 1, 50 do h:write("line ", i, "\\n") end
+		assert(h:seek("set", 2) == 2)
+		h:close()
+
+		local lines = {}
+		local co = coroutine.wrap(function()
+			for line in io.lines(name) do coroutine.yield(line) end
+		end)
+		for line in co do lines[#lines + 1] = line end
+
+		local ok, err = pcall(io.read, "*x")
+
+		local f = assert(io.open(name))
+		local all = f:read("*a")
+		f:close()
+
+		return #lines, lines[50], #all, ok, err, select(2, io.open(name .. ".missing"))
+		""";
+
+	@TempDir
+	Path dir;
+
+	private final BlockingQueue<LuaState> ready = new LinkedBlockingQueue<>();
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+	private final AtomicInteger tasks = new AtomicInteger();
+
+	@AfterEach
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static LuaFunction load(LuaState state, IoExecutor executor) throws CompileException {
+		LuaTable globals = SystemLibraries.standardGlobals(
+			state, ResourceLoader.FILES, new ByteArrayInputStream(new byte[0]), new PrintStream(new ByteArrayOutputStream()), executor
+		);
+		return LoadState.load(state, valueOf(SCRIPT), valueOf("=script"), valueOf("t"), globals);
+	}
+
+	private IoExecutor executor() {
+		return (state, task) -> {
+			tasks.incrementAndGet();
+			pool.execute(() -> {
+				task.run();
+				ready.add(state);
+			});
+		};
+	}
+
+	@Test
+	public void testSameAsBlocking() throws Exception {
+		Varargs args = valueOf(dir.resolve("file.txt").toString());
+
+		LuaState blocking = new LuaState();
+		Varargs expected = LuaThread.runMain(blocking, load(blocking, null), args);
+
+		LuaState async = new LuaState();
+		Varargs result = LuaThread.runMain(async, load(async, executor()), args);
+		assertNull(result);
+
+		while (result == null) {
+			assertSame(async, ready.take());
+			result = LuaThread.run(async.getCurrentThread(), Constants.NONE);
+		}
+
+		assertEquals(valueOf(50), expected.arg(1));
+		assertEquals(valueOf("line 50"), expected.arg(2));
+		assertEquals(Constants.FALSE, expected.arg(4));
+		assertEquals(expected.count(), result.count());
+		for (int i = 1; i <= expected.count(); i++) assertEquals(expected.arg(i), result.arg(i), "Argument " + i);
+
+		assertTrue(tasks.get() > 50, "Expected IO to run in the background");
+	}
+
+	@Test
+	public void testManyStates() throws Exception {
+		int count = 32;
+		List<LuaState> states = new ArrayList<>();
+
+		// Start every state, and then resume each one on this thread whenever its IO finishes.
+		int running = 0;
+		for (int i = 0; i < count; i++) {
+			LuaState state = new LuaState();
+			states.add(state);
+
+			Varargs result = LuaThread.runMain(state, load(state, executor()), valueOf(dir.resolve("file" + i + ".txt").toString()));
+			assertNull(result);
+			running++;
+		}
+
+		while (running > 0) {
+			LuaState state = ready.take();
+			Varargs result = LuaThread.run(state.getCurrentThread(), Constants.NONE);
+			if (result != null) {
+				assertEquals(valueOf(50), result.first());
+				running--;
+			}
+		}
+
+		for (LuaState state : states) assertFalse(state.getMainThread().isAlive());
+	}
+}
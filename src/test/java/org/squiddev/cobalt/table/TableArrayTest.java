@@ -60,6 +60,28 @@ public class TableArrayTest {
 		assertThat(getArrayLength(t), between(32, 64));
 	}
 
+	@Test
+	public void testAppendMovesHashKeys() throws LuaError {
+		LuaTable t = new LuaTable();
+		t.rawset("x", LuaInteger.valueOf(0));
+
+		// These should live in the hash part, until the array part grows to include them.
+		t.rawset(ValueFactory.valueOf(6), LuaInteger.valueOf(6));
+		t.rawset(ValueFactory.valueOf(8), LuaInteger.valueOf(8));
+
+		for (int i = 1; i <= 5; ++i) t.rawset(ValueFactory.valueOf(i), LuaInteger.valueOf(i));
+		t.rawset(ValueFactory.valueOf(7), LuaInteger.valueOf(7));
+
+		for (int i = 1; i <= 8; ++i) {
+			assertEquals(LuaInteger.valueOf(i), t.rawget(ValueFactory.valueOf(i)));
+		}
+
+		assertEquals(8, getArrayLength(t));
+		assertEquals(8, t.length());
+		assertEquals(9, t.size());
+		assertEquals(9, keys(t).size());
+	}
+
 	@Test
 	public void testResize() {
 		LuaTable t = new LuaTable();
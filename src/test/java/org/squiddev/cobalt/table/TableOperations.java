@@ -19,17 +19,21 @@ import static org.squiddev.cobalt.Constants.NIL;
 public final class TableOperations {
 	private static final Field nodes;
 	private static final Field array;
+	private static final Field numbers;
 	private static final Field lastFree;
 
 	static {
-		Field nodesField, arrayField, lastFreeField;
+		Field nodesField, arrayField, numbersField, lastFreeField;
 		try {
-			nodesField = LuaTable.class.getDeclaredField("nodes");
+			nodesField = LuaTable.class.getDeclaredField("hashKeys");
 			nodesField.setAccessible(true);
 
 			arrayField = LuaTable.class.getDeclaredField("array");
 			arrayField.setAccessible(true);
 
+			numbersField = LuaTable.class.getDeclaredField("numbers");
+			numbersField.setAccessible(true);
+
 			lastFreeField = LuaTable.class.getDeclaredField("lastFree");
 			lastFreeField.setAccessible(true);
 		} catch (ReflectiveOperationException e) {
@@ -37,6 +41,7 @@ public final class TableOperations {
 		}
 		nodes = nodesField;
 		array = arrayField;
+		numbers = numbersField;
 		lastFree = lastFreeField;
 	}
 
@@ -86,7 +91,8 @@ public final class TableOperations {
 	 */
 	public static int getArrayLength(LuaTable table) {
 		try {
-			return Array.getLength(array.get(table));
+			Object numberArray = numbers.get(table);
+			return Array.getLength(numberArray != null ? numberArray : array.get(table));
 		} catch (IllegalAccessException e) {
 			throw new RuntimeException(e);
 		}
@@ -31,8 +31,13 @@ import org.squiddev.cobalt.lib.CoreLibraries;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class StringTest {
@@ -97,6 +102,95 @@ public class StringTest {
 		return sb.toString();
 	}
 
+	@Test
+	public void testShortStringsInterned() {
+		byte[] bytes = "xxhello worldxx".getBytes(StandardCharsets.US_ASCII);
+		LuaString first = LuaString.valueOf(bytes, 2, 11);
+		assertSame(first, LuaString.valueOf("hello world"));
+		assertSame(first, LuaString.valueOf("hello world").substringOfEnd(0, 11));
+
+		byte[] buffer = "hello there".getBytes(StandardCharsets.US_ASCII);
+		LuaString copied = LuaString.valueOfCopy(buffer, 0, 5);
+		buffer[0] = 'j';
+		assertEquals("hello", copied.toString());
+		assertEquals("jello", LuaString.valueOfCopy(buffer, 0, 5).toString());
+	}
+
+	@Test
+	public void testHashUsesWholeString() {
+		byte[] bytes = new byte[256];
+		Arrays.fill(bytes, (byte) 'x');
+		LuaString first = LuaString.valueOf(bytes.clone());
+		bytes[1] = 'y';
+		LuaString second = LuaString.valueOf(bytes.clone());
+
+		assertNotEquals(first.hashCode(), second.hashCode());
+		assertEquals(first.hashCode(), LuaString.valueOf(first.toString()).hashCode());
+		assertEquals(second.hashCode(), OperationHelper.concat(second.substringOfEnd(0, 100), second.substringOfEnd(100, 256)).hashCode());
+	}
+
+	@Test
+	public void testRopeHashMatchesFlat() {
+		// Use leaves of varying lengths, so words of the hash span several leaves.
+		LuaValue[] parts = new LuaValue[20];
+		StringBuilder expected = new StringBuilder();
+		int length = 0;
+		for (int i = 0; i < parts.length; i++) {
+			String part = String.valueOf((char) ('a' + i)).repeat(i + 1);
+			parts[i] = LuaString.valueOf(part);
+			expected.append(part);
+			length += part.length();
+		}
+
+		LuaString rope = LuaString.valueOfStrings(parts, 0, parts.length, length);
+		assertEquals(LuaString.valueOf(expected.toString()).hashCode(), rope.hashCode());
+		assertEquals(expected.toString(), rope.toString());
+	}
+
+	private static LuaString direct(String contents) {
+		byte[] bytes = contents.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return LuaString.valueOf(buffer);
+	}
+
+	@Test
+	public void testIndexOf() {
+		String contents = "--" + "abcdefgh".repeat(100) + "xyz.abcdefgh.xyz" + "--";
+		checkIndexOf(LuaString.valueOf(contents).substringOfEnd(2, 818));
+		checkIndexOf(direct(contents).substringOfEnd(2, 818));
+	}
+
+	private static void checkIndexOf(LuaString str) {
+		assertEquals(0, str.indexOf((byte) 'a'));
+		assertEquals(803, str.indexOf((byte) '.'));
+		assertEquals(-1, str.indexOf((byte) '-'));
+		assertEquals(812, str.lastIndexOf((byte) '.'));
+		assertEquals(815, str.lastIndexOf((byte) 'z'));
+		assertEquals(803, str.indexOfAny(LuaString.valueOf(".-")));
+
+		assertEquals(800, str.indexOf(LuaString.valueOf("xyz"), 0));
+		assertEquals(813, str.indexOf(LuaString.valueOf("xyz"), 801));
+		assertEquals(804, str.indexOf(LuaString.valueOf("abcdefgh.xyz"), 0));
+		assertEquals(-1, str.indexOf(LuaString.valueOf("abcdefgh.xyz--"), 0));
+		assertEquals(816, str.indexOf(LuaString.valueOf(""), 816));
+
+		assertEquals(802, str.indexOfAny(LuaString.valueOf("-.z")));
+		assertEquals(-1, str.indexOfAny(LuaString.valueOf("-ij")));
+		assertEquals(804, str.lastIndexOf((byte) 'a'));
+		assertEquals(-1, str.lastIndexOf((byte) '-'));
+		assertEquals(792, str.indexOf(LuaString.valueOf("abcdefghxyz"), 0));
+	}
+
+	@Test
+	public void testMappedNumbers() {
+		assertEquals(12.5, direct("  12.5" + " ".repeat(100)).toDouble());
+		assertEquals(255, direct("0xff" + " ".repeat(100)).toDouble());
+		assertEquals(-1e300, direct(" -1e300\n" + " ".repeat(100)).toDouble());
+		assertTrue(Double.isNaN(direct("12 " + "x".repeat(100)).toDouble()));
+		assertEquals(direct("x".repeat(100)).toString(), "x".repeat(100));
+	}
+
 	@Test
 	public void testEncoding() {
 		int i = 240;
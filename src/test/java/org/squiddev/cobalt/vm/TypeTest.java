@@ -77,6 +77,15 @@ public class TypeTest {
 	}
 
 	// ===================== type checks =======================
+	@Test
+	public void testIntegerCache() {
+		// Loop indices are boxed with valueOf, so common values should not allocate.
+		assertSame(LuaInteger.valueOf(-256), LuaInteger.valueOf(-256));
+		assertSame(LuaInteger.valueOf(1000), LuaInteger.valueOf(1000));
+		assertSame(LuaInteger.valueOf(65535), LuaInteger.valueOf(65535L));
+		assertEquals(LuaInteger.valueOf(1 << 20), LuaInteger.valueOf(1 << 20));
+	}
+
 	@Test
 	public void testIsFunction() {
 		assertFalse(somenil.isFunction());
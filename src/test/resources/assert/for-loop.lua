@@ -0,0 +1,45 @@
+--- Tests numeric for loops, especially around the edges of the integer fast path.
+
+local function collect(a, b, c)
+	local out = {}
+	for i = a, b, c do
+		out[#out + 1] = i
+		if #out > 10 then break end
+	end
+	return table.concat(out, ",")
+end
+
+assert(collect(1, 5, 1) == "1,2,3,4,5")
+assert(collect(5, 1, -2) == "5,3,1")
+assert(collect(1, 0, 1) == "")
+assert(collect(1, 2.5, 1) == "1,2")
+assert(collect(0.5, 2, 1) == "0.5,1.5")
+assert(collect(1, 2, 0.5) == "1,1.5,2")
+assert(collect(1, 1, -1) == "1")
+
+-- Loops near the bounds of an int should neither overflow nor run forever.
+assert(collect(2147483646, 2147483647, 1) == "2147483646,2147483647")
+assert(collect(-2147483647, -2147483648, -1) == "-2147483647,-2147483648")
+assert(collect(2147483647, 2147483648, 1) == "2147483647,2147483648")
+assert(collect(-2147483648, -2147483648, 2147483647) == "-2147483648")
+
+-- Modifying the loop variable does not affect the iteration.
+local n = 0
+for i = 1, 3 do
+	i = i * 10
+	n = n + i
+end
+assert(n == 60)
+
+-- Changing the hidden loop state with the debug library.
+local seen = {}
+for i = 1, 10 do
+	seen[#seen + 1] = i
+	if i == 2 then
+		for j = 1, math.huge do
+			local name = debug.getlocal(1, j)
+			if name == "(for index)" then debug.setlocal(1, j, 7.5) break end
+		end
+	end
+end
+assert(table.concat(seen, ",") == "1,2,8.5,9.5", table.concat(seen, ","))
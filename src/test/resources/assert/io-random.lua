@@ -0,0 +1,164 @@
+--- Tests buffered file IO by performing random reads, writes and seeks, and comparing against an in-memory model.
+
+local name = assert(os.tmpname())
+
+-- Regression test: large reads bypass the buffer, which must not confuse later seeks.
+do
+	local h = assert(io.open(name, "wb"))
+	h:write(("a"):rep(8000) .. ("b"):rep(12000))
+	h:close()
+
+	h = assert(io.open(name, "rb"))
+	assert(h:seek("set", 2000) == 2000)
+	assert(h:read(500) == ("a"):rep(500))
+	assert(#h:read("*a") == 17500)
+	assert(h:seek("end", -5000) == 15000)
+	assert(h:read(5) == "bbbbb")
+	h:close()
+end
+
+-- "r+" files can be written to.
+do
+	local h = assert(io.open(name, "r+b"))
+	assert(h:write("cc"))
+	assert(h:seek("set", 7999) == 7999)
+	assert(h:read(3) == "abb")
+	h:close()
+
+	h = assert(io.open(name, "rb"))
+	assert(h:read(3) == "cca")
+	h:close()
+
+	h = assert(io.open(name, "rb"))
+	local ok, err = h:write("x")
+	assert(ok == nil and err == "io error: Bad file descriptor", err)
+	h:close()
+end
+
+-- Writes are not buffered by default, so are visible before the file is flushed or closed.
+do
+	local h = assert(io.open(name, "wb"))
+	assert(h:write("hello"))
+
+	local r = assert(io.open(name, "rb"))
+	assert(r:read("*a") == "hello")
+	r:close()
+	h:close()
+end
+
+-- Like PUC Lua, arguments before an invalid one are still processed.
+do
+	local h = assert(io.open(name, "w+b"))
+	local ok, err = pcall(h.write, h, "a", {})
+	assert(not ok and err:find("string expected, got table"), err)
+	assert(h:seek("end") == 1)
+
+	assert(h:write("\nhello\nworld"))
+	assert(h:seek("set", 0) == 0)
+	ok, err = pcall(h.read, h, "*l", "*x")
+	assert(not ok and err:find("invalid format"), err)
+	assert(h:read("*l") == "hello")
+	h:close()
+end
+
+-- Random strings are taken from a larger pool, as building each one byte by byte is rather slow.
+local pool
+do
+	math.randomseed(0)
+	local out = {}
+	for i = 1, 32768 do
+		local c = math.random(0, 30)
+		out[i] = c == 0 and "\n" or string.char(96 + c)
+	end
+	pool = table.concat(out)
+end
+
+local function random_string(length)
+	local start = math.random(1, #pool - length + 1)
+	return pool:sub(start, start + length - 1)
+end
+
+--- Pick a random length to read or write. These are mostly smaller than the buffer, but some are large enough to
+-- bypass it.
+local function random_length(buffer_size)
+	local kind = math.random(1, 10)
+	if kind <= 5 then return math.random(1, 100) end
+	if kind <= 8 then return math.random(1, buffer_size) end
+	return math.random(buffer_size, buffer_size * 3)
+end
+
+for seed = 1, 10 do
+	math.randomseed(seed)
+
+	local h = assert(io.open(name, "w+b"))
+	local model, pos, buffer_size = random_string(20000), 0, 8192
+	assert(h:setvbuf("full", buffer_size))
+	assert(h:write(model))
+	assert(h:seek("set", 0) == 0)
+
+	local function check(ok, message, ...)
+		if not ok then error(("seed %d: " .. message):format(seed, ...), 2) end
+	end
+
+	for _ = 1, 300 do
+		local op = math.random(1, 10)
+		if op == 1 then
+			local s = random_string(random_length(buffer_size))
+			assert(h:write(s))
+			model = model:sub(1, pos) .. s .. model:sub(pos + #s + 1)
+			pos = pos + #s
+		elseif op <= 4 then
+			local n = random_length(buffer_size)
+			local expected = model:sub(pos + 1, pos + n)
+			if expected == "" then expected = nil end
+			local actual = h:read(n)
+			check(actual == expected, "read(%d) at %d returned %d bytes, expected %d",
+				n, pos, actual and #actual or -1, expected and #expected or -1)
+			if expected then pos = pos + #expected end
+		elseif op == 5 then
+			local expected = model:sub(pos + 1)
+			local actual = h:read("*a")
+			check(actual == expected, "read('*a') at %d returned %d bytes, expected %d", pos, #actual, #expected)
+			pos = #model
+		elseif op == 6 then
+			local actual = h:read("*l")
+			local expected, next_pos
+			if pos < #model then
+				local newline = model:find("\n", pos + 1, true)
+				expected = model:sub(pos + 1, (newline or #model + 1) - 1)
+				next_pos = newline or #model
+			end
+			check(actual == expected, "read('*l') at %d returned %d bytes, expected %d",
+				pos, actual and #actual or -1, expected and #expected or -1)
+			pos = next_pos or pos
+		elseif op <= 9 then
+			local whence = ({ "set", "cur", "end" })[math.random(1, 3)]
+			-- Seeking a little way backwards is the most likely to land in (or just outside) the read buffer.
+			local target = math.random(1, 2) == 1 and math.random(0, #model)
+				or math.max(0, math.min(#model, pos + math.random(-2 * buffer_size, 16)))
+			local offset = whence == "set" and target or whence == "cur" and target - pos or target - #model
+			local actual = h:seek(whence, offset)
+			check(actual == target, "seek(%q, %d) returned %s, expected %d", whence, offset, tostring(actual), target)
+			pos = target
+		else
+			local kind = math.random(1, 3)
+			if kind == 1 then
+				assert(h:flush())
+			else
+				buffer_size = kind == 2 and math.random(16, 256) or 8192
+				assert(h:setvbuf("full", buffer_size))
+			end
+		end
+
+		local actual = h:seek()
+		check(actual == pos, "position is %d, expected %d", actual, pos)
+	end
+	h:close()
+
+	h = assert(io.open(name, "rb"))
+	local contents = h:read("*a")
+	h:close()
+	check(contents == model, "file has %d bytes, expected %d", #contents, #model)
+end
+
+os.remove(name)
@@ -0,0 +1,36 @@
+--- Strings are lexed directly, while functions are read a byte at a time. Check both behave the same.
+
+local function reader(str)
+	return function()
+		local s = str
+		str = nil
+		return s
+	end
+end
+
+local function check(str)
+	local direct, direct_err = load(str, "=x")
+	local fn, fn_err = load(reader(str), "=x")
+	if direct_err ~= fn_err then
+		error(("Different errors for %q:\n%s\n%s"):format(str, tostring(direct_err), tostring(fn_err)), 2)
+	end
+
+	if direct and string.dump(direct) ~= string.dump(fn) then
+		error(("Different bytecode for %q"):format(str), 2)
+	end
+end
+
+check("local abc, _def1 = 'single', \"double\" return abc .. _def1")
+check("return 'with \\n escapes\\65', \"mixed 'quotes'\", 'trailing'")
+check("return [[long\nstring]], 'x' -- comment\nreturn")
+check("return 'unfinished")
+check("return \"line\nbreak\"")
+check("foo bar")
+check("return 'abc' 'def'")
+check("return " .. ("x"):rep(300))
+check("return '" .. ("y"):rep(3000) .. "'")
+check("local x = 1\n\n  x = x + nil")
+
+local f = load("local a = 'hello'\nlocal b = \"world\"\nreturn a .. b, debug.getinfo(1, 'l').currentline")
+local value, line = f()
+assert(value == "helloworld" and line == 3)
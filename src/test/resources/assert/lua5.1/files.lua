@@ -221,7 +221,7 @@ assert(os.remove(file))
 collectgarbage()
 
 -- testing buffers
---[[ do
+do
 	local f = assert(io.open(file, "w"))
 	local fr = assert(io.open(file, "r"))
 	assert(f:setvbuf("full", 2000))
@@ -245,7 +245,7 @@ collectgarbage()
 	fr:seek("set", 1)
 	assert(fr:read("*all") == "xa\n") -- now we have a whole line
 	f:close(); fr:close()
-end]]
+end
 
 
 -- testing large files (> BUFSIZ)
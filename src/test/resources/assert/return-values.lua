@@ -0,0 +1,72 @@
+--- Tests returning values from one Lua function to another.
+
+local function none() end
+local function one() return 1 end
+local function three() return 1, 2, 3 end
+local function pass(...) return ... end
+local function mixed(...) return 0, ... end
+
+-- Fixed number of results, padded or truncated as needed.
+do
+	local a, b = none()
+	assert(a == nil and b == nil)
+	local a, b = one()
+	assert(a == 1 and b == nil)
+	local a, b = three()
+	assert(a == 1 and b == 2)
+	local a, b, c, d = pass(1, 2)
+	assert(a == 1 and b == 2 and c == nil and d == nil)
+	local a, b, c, d = mixed(1, 2, 3, 4)
+	assert(a == 0 and b == 1 and c == 2 and d == 3)
+	local a, b, c = mixed()
+	assert(a == 0 and b == nil and c == nil)
+end
+
+-- Variable number of results.
+assert(select("#", none()) == 0)
+assert(select("#", three()) == 3)
+assert(select("#", pass(nil, nil)) == 2)
+assert(select("#", mixed(1, nil)) == 3)
+
+-- Lua iterators in a generic for loop.
+local function range(n)
+	return function(_, i)
+		if i < n then return i + 1, i * 2, "x" end
+	end, nil, 0
+end
+
+local out = {}
+for i, double, x, missing in range(3) do
+	assert(x == "x" and missing == nil)
+	out[#out + 1] = i .. ":" .. double
+end
+assert(table.concat(out, ",") == "1:0,2:2,3:4")
+
+local count = 0
+for k, v in next, { a = 1, b = 2 } do count = count + v end
+assert(count == 3)
+
+-- Iterators which yield.
+local co = coroutine.wrap(function()
+	local total = 0
+	for i in function(_, i)
+		coroutine.yield(i)
+		if i < 3 then return i + 1 end
+	end, nil, 0 do
+		total = total + i
+	end
+	return "done", total
+end)
+
+assert(co() == 0)
+assert(co() == 1)
+assert(co() == 2)
+assert(co() == 3)
+local status, total = co()
+assert(status == "done" and total == 6)
+
+-- Errors inside iterators are still reported with a traceback.
+local ok, err = pcall(function()
+	for _ in function() error("oh no", 0) end do end
+end)
+assert(not ok and err == "oh no")
@@ -0,0 +1,56 @@
+--- Tests that memory-mapped strings (from io.map) behave like any other string.
+
+local parts = {}
+for i = 1, 5000 do parts[i] = "line " .. i .. "\n" end
+local expected = table.concat(parts)
+
+local name = os.tmpname()
+local h = assert(io.open(name, "wb"))
+h:write(expected)
+h:close()
+
+local str = assert(io.map(name))
+assert(#str == #expected, ("expected length %d, got %d"):format(#expected, #str))
+assert(str == expected and expected == str)
+assert(str:sub(1, 10) == expected:sub(1, 10))
+assert(str:sub(-10) == expected:sub(-10))
+assert(str:sub(100, 5000) == expected:sub(100, 5000))
+assert(str:byte(#str) == expected:byte(#expected))
+assert(str:upper() == expected:upper())
+
+-- Comparison and hashing.
+local t = { [expected] = true }
+assert(t[str])
+assert(str:sub(2, 100) < str:sub(1, 100))
+assert(not (str < expected) and not (str > expected))
+assert(str:sub(1, 1000) < expected)
+
+-- Searching and pattern matching.
+assert(str:find("line 4321\n", 1, true) == expected:find("line 4321\n", 1, true))
+assert(str:find("line 4321\n") == expected:find("line 4321\n"))
+assert(str:find("line 99999", 1, true) == nil)
+assert(select(2, str:gsub("\n", "")) == 5000)
+local n = 0
+for line in str:gmatch("[^\n]+") do
+	n = n + 1
+	assert(line == "line " .. n)
+end
+assert(n == 5000)
+
+-- Concatenation.
+local joined = str .. "end"
+assert(#joined == #expected + 3 and joined:sub(-10) == expected:sub(-7) .. "end")
+
+-- Offsets and lengths.
+assert(io.map(name, 5, 4) == expected:sub(6, 9))
+assert(io.map(name, 100, 1000) == expected:sub(101, 1100))
+assert(io.map(name, #expected) == "")
+assert(io.map(name, 0, #expected * 2) == expected)
+
+h = assert(io.open(name, "wb"))
+h:write("  12.5  ")
+h:close()
+assert(tonumber(io.map(name)) == 12.5)
+
+assert(os.remove(name))
+assert(io.map(name) == nil)
@@ -0,0 +1,37 @@
+--- Tests for patterns which can skip over parts of the subject string, and for reusing the same pattern.
+
+-- Literal prefixes, including escaped characters and leading captures.
+assert(("xxa.bxx"):find("a%.b") == 3)
+assert(("xxa.bxx"):find("(a)%.b") == 3)
+assert(("xxa.bxx"):find("()a%.") == 3)
+assert(("xxab"):find("a?b") == 3)
+assert(("xxaab"):find("a+b") == 3)
+assert(("xxb"):find("a*b") == 3)
+assert(("xx$y"):find("$y") == 3)
+assert(("xx"):find("x$") == 2)
+assert(select(2, ("a^b^c"):gsub("^", "")) == 1)
+assert(select(2, ("a^b^c"):gsub("%^", "")) == 2)
+
+-- gmatch does not treat ^ as an anchor.
+local count = 0
+for _ in ("^a^a"):gmatch("^a") do count = count + 1 end
+assert(count == 2)
+
+-- Character classes at the start of the pattern.
+assert(("   12 34"):match("%d+") == "12")
+assert(("   12 34"):match("[1-3]+", 6) == "3")
+assert(("abc"):match("[^%a]") == nil)
+assert(("  x"):find("%f[%w]") == 3)
+
+-- Errors are still raised for malformed patterns, even if the subject does not match.
+assert(not pcall(string.find, "bbb", "[a"))
+assert(not pcall(string.match, "bab", "a)"))
+assert(pcall(string.match, "bbb", "a)"))
+
+-- Using the same pattern many times, with different subjects.
+for i = 1, 200 do
+	local s = ("x"):rep(i) .. "key=" .. i
+	local k, v = s:match("(%w+)=(%d+)")
+	assert(k == ("x"):rep(i) .. "key" and tonumber(v) == i)
+	assert(s:gsub("%d", "#") == ("x"):rep(i) .. "key=" .. ("#"):rep(#tostring(i)))
+end
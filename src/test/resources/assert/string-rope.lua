@@ -0,0 +1,49 @@
+--- Tests that strings built from many concatenations behave like any other string.
+
+local function check(str, parts)
+	local expected = table.concat(parts)
+	assert(#str == #expected, ("expected length %d, got %d"):format(#expected, #str))
+	assert(str:sub(1, 10) == expected:sub(1, 10))
+	assert(str:sub(-10) == expected:sub(-10))
+	local mid = math.floor(#str / 2)
+	assert(str:sub(mid - 50, mid + 50) == expected:sub(mid - 50, mid + 50))
+	assert(str:byte(#str) == expected:byte(#expected))
+	assert(str == expected)
+end
+
+-- Appending to a string in a loop.
+local parts, str = {}, ""
+for i = 1, 5000 do
+	local part = "line " .. i .. "\n"
+	parts[i] = part
+	str = str .. part
+	if i % 997 == 0 then check(str, parts) end
+end
+check(str, parts)
+
+local t = { [str] = true }
+assert(t[table.concat(parts)])
+assert(select(2, str:gsub("\n", "")) == 5000)
+assert(str:find("line 4321\n", 1, true))
+
+-- Prepending and appending long strings.
+local long = ("x"):rep(2000)
+local parts, str = {}, ""
+for i = 1, 200 do
+	local part = (i % 3 == 0) and long or tostring(i)
+	table.insert(parts, 1, part)
+	str = part .. str
+end
+check(str, parts)
+
+-- Concatenating ropes with each other.
+local a, b = "", ""
+for i = 1, 100 do
+	a = a .. ("a%03d"):format(i)
+	b = ("b%03d"):format(i) .. b
+end
+local ab = a .. "|" .. b
+for _ = 1, 6 do ab = ab .. ab end
+assert(#ab == 64 * (#a + 1 + #b))
+assert(ab:sub(#a + 1, #a + 5) == "|b100")
+assert(ab:sub(-4) == "b001")
@@ -0,0 +1,69 @@
+--- Tests table functions which operate on a table's array part directly.
+
+local function check_list(t, expected, n)
+	n = n or #expected
+	assert(#t == n, ("expected length %d, got %d"):format(n, #t))
+	for i = 1, n do
+		assert(t[i] == expected[i], ("t[%d]: expected %s, got %s"):format(i, tostring(expected[i]), tostring(t[i])))
+	end
+end
+
+for _, kind in ipairs { "number", "string" } do
+	local function v(i) return kind == "number" and i or tostring(i) end
+
+	-- Insert and remove from the start, middle and end of a list.
+	local t, expected = {}, {}
+	for i = 1, 100 do t[i] = v(i) expected[i] = v(i) end
+
+	table.insert(t, 1, v(0)) table.insert(expected, 1, v(0))
+	table.insert(t, 50, v(-1)) table.insert(expected, 50, v(-1))
+	table.insert(t, #t + 1, v(-2)) table.insert(expected, #expected + 1, v(-2))
+	check_list(t, expected, 103)
+	assert(t[1] == v(0) and t[50] == v(-1) and t[103] == v(-2) and t[104] == nil)
+
+	assert(table.remove(t, 1) == v(0))
+	assert(table.remove(t, 49) == v(-1))
+	assert(table.remove(t) == v(-2))
+	for i = 1, 100 do assert(t[i] == v(i)) end
+	assert(#t == 100 and t[101] == nil)
+
+	-- Removing every element leaves an empty table.
+	while #t > 0 do table.remove(t, 1) end
+	assert(next(t) == nil)
+
+	-- Moving holes keeps the length correct.
+	t = {}
+	for i = 1, 10 do t[i] = v(i) end
+	t[3] = nil
+	table.move(t, 1, 10, 2)
+	assert(t[1] == v(1) and t[2] == v(1) and t[3] == v(2) and t[4] == nil and t[11] == v(10))
+	t[4] = v(0)
+	assert(#t == 11)
+
+	table.move(t, 5, 11, 1)
+	assert(t[1] == v(4) and t[7] == v(10) and t[8] == v(7))
+	assert(#t == 11)
+
+	-- Moving outside the array part.
+	t = { v(1), v(2), v(3) }
+	table.move(t, 1, 3, 3)
+	check_list(t, { v(1), v(2), v(1), v(2), v(3) })
+	table.move(t, 0, 5, 1)
+	check_list(t, { nil, v(1), v(2), v(1), v(2), v(3) }, 6)
+end
+
+-- Concatenation of numbers and strings.
+assert(table.concat({ 1, "a", 2.5, "b" }) == "1a2.5b")
+assert(table.concat({ 1, "a", 2.5, "b" }, ", ") == "1, a, 2.5, b")
+assert(table.concat({ 1, 2, 3 }, ", ", 2) == "2, 3")
+assert(table.concat({ 1, 2, 3 }, ", ", 3, 2) == "")
+assert(table.concat({}, "x") == "")
+
+local ok, err = pcall(table.concat, { 1, {}, 3 })
+assert(not ok and err:find("bad argument"), err)
+ok, err = pcall(table.concat, { 1, 2, 3 }, "", 1, 5)
+assert(not ok, err)
+
+-- Concatenation uses __index when the table has a metatable.
+local t = setmetatable({}, { __index = function(_, k) return "v" .. k end })
+assert(table.concat(t, ",", 1, 3) == "v1,v2,v3")
@@ -0,0 +1,28 @@
+--- Tests that growing the array part on append, which leaves dead keys in the hash part, doesn't break later rehashes.
+
+-- The exact layout depends on string hashes, so try many different keys.
+for i = 1, 200 do
+	local x, y, z, w = "x" .. i, "y" .. i, "z" .. i, "w" .. i
+
+	local t = {}
+	t[1] = 1 t[4] = 1 t[7] = 1 t[x] = 1
+	for j = 2, 11 do t[j] = j end
+	t[y] = 1 t[z] = 1 t[w] = 1
+
+	assert(#t == 11, ("expected length 11, got %d"):format(#t))
+	for j = 1, 11 do assert(t[j] ~= nil) end
+	assert(t[x] == 1 and t[y] == 1 and t[z] == 1 and t[w] == 1)
+
+	local count = 0
+	for _ in pairs(t) do count = count + 1 end
+	assert(count == 15, ("expected 15 keys, got %d"):format(count))
+end
+
+-- Removing hash keys and adding new ones reuses the space.
+local t = {}
+for i = 1, 1000 do
+	t["k" .. i] = i
+	t["k" .. (i - 1)] = nil
+	t[i] = i
+end
+assert(#t == 1000 and t.k1000 == 1000 and t.k999 == nil)
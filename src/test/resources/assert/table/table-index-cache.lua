@@ -0,0 +1,59 @@
+--- Tests that constant-key lookups remain correct as tables change shape.
+
+local function get_x(t) return t.x end
+local function call_m(t) return t:m() end
+
+-- Tables of varying sizes and layouts share the same lookups.
+for n = 0, 40 do
+	local t = {}
+	for i = 1, n do t["k" .. i] = i end
+	assert(get_x(t) == nil)
+	t.x = n
+	assert(get_x(t) == n)
+	t.x = nil
+	assert(get_x(t) == nil)
+end
+
+-- Keys which move slot when another colliding key is inserted.
+local t = { x = 1 }
+for i = 1, 100 do
+	t["y" .. i] = i
+	assert(get_x(t) == 1)
+end
+for i = 1, 100 do t["y" .. i] = nil end
+assert(get_x(t) == 1)
+
+-- Changing a table's __index, or its metatable.
+local A = { m = function() return "a" end }
+local B = { m = function() return "b" end }
+local obj = setmetatable({}, { __index = A })
+assert(call_m(obj) == "a")
+getmetatable(obj).__index = B
+assert(call_m(obj) == "b")
+setmetatable(obj, { __index = A })
+assert(call_m(obj) == "a")
+A.m = function() return "a2" end
+assert(call_m(obj) == "a2")
+obj.m = function() return "own" end
+assert(call_m(obj) == "own")
+obj.m = nil
+assert(call_m(obj) == "a2")
+setmetatable(obj, { __index = function(_, k) return function() return "fn " .. k end end })
+assert(call_m(obj) == "fn m")
+
+-- Globals.
+local function get_global() return cache_test_global end
+assert(get_global() == nil)
+cache_test_global = 1
+assert(get_global() == 1)
+for i = 1, 200 do _G["cache_test_global" .. i] = i end
+assert(get_global() == 1)
+cache_test_global = nil
+assert(get_global() == nil)
+for i = 1, 200 do _G["cache_test_global" .. i] = nil end
+
+-- Keys with the same contents but different identities.
+local key = ("x"):rep(1)
+local u = { [key] = "dyn" }
+assert(get_x(u) == "dyn")
+assert(get_x({ x = "lit" }) == "lit")
@@ -0,0 +1,70 @@
+--- Tests that the length of a table stays correct as it is modified.
+
+-- Stacks
+local t = {}
+for i = 1, 100 do
+	t[#t + 1] = i
+	assert(#t == i)
+end
+for i = 100, 1, -1 do
+	assert(#t == i)
+	t[#t] = nil
+end
+assert(#t == 0)
+
+-- Queues
+local q = {}
+for i = 1, 10 do q[i] = i end
+table.remove(q, 1)
+assert(#q == 9 and q[1] == 2)
+table.insert(q, 1, 1)
+assert(#q == 10 and q[1] == 1)
+
+-- Tables with holes behave like they did before lengths were tracked.
+assert(#{ nil, 2, 3 } == 3)
+assert(#{ n = 2, nil, true } == 2)
+assert(select("#", unpack({ 1, nil, 3 })) == 3)
+
+local h = { 1, 2, 3, 4 }
+h[2] = nil
+assert(#h == 4)
+h[2] = 2
+assert(#h == 4)
+
+-- Filling in keys out of order.
+local r = {}
+for i = 20, 1, -1 do r[i] = i end
+assert(#r == 20)
+
+local s = {}
+s[3] = 3
+assert(#s == 0)
+s[1], s[2] = 1, 2
+assert(#s == 3)
+s[3] = nil
+assert(#s == 2)
+
+-- Repeatedly clearing and refilling a value near the start of a list.
+local l = {}
+for i = 1, 1000 do l[i] = i end
+for _ = 1, 100 do
+	l[2] = nil
+	l[2] = 2
+	assert(#l == 1000)
+end
+
+-- Rehashing keeps the length.
+local m = {}
+for i = 1, 20 do m[i] = i end
+for i = 1, 50 do m["k" .. i] = i end
+assert(#m == 20)
+
+-- Weak tables may lose values at any time.
+local w = setmetatable({}, { __mode = "v" })
+for i = 1, 10 do w[i] = {} end
+collectgarbage()
+collectgarbage()
+setmetatable(w, nil)
+for i = 1, #w do assert(w[i] ~= nil) end
+w[#w + 1] = true
+assert(w[#w] == true)
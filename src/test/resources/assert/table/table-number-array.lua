@@ -0,0 +1,83 @@
+--- Tests that tables whose array part only holds numbers behave like any other table.
+
+local function check_list(t, expected)
+	assert(#t == #expected, ("expected length %d, got %d"):format(#expected, #t))
+	for i = 1, #expected do
+		assert(t[i] == expected[i], ("t[%d]: expected %s, got %s"):format(i, tostring(expected[i]), tostring(t[i])))
+		assert(math.type == nil or math.type(t[i]) == math.type(expected[i]))
+	end
+end
+
+-- Integers and floats keep their values (and how they are printed).
+local t = {}
+for i = 1, 10 do t[#t + 1] = i * 0.5 end
+check_list(t, { 0.5, 1, 1.5, 2, 2.5, 3, 3.5, 4, 4.5, 5 })
+assert(tostring(t[2]) == "1" and tostring(t[3]) == "1.5")
+assert(t[1e6] == nil and t[0] == nil and t[-1] == nil)
+
+t[2] = 1 / 0
+t[3] = -1 / 0
+assert(t[2] == math.huge and t[3] == -math.huge)
+
+-- Holes are nil, and are skipped by next.
+t[5] = nil
+local count = 0
+for k, v in pairs(t) do
+	assert(k ~= 5)
+	assert(rawequal(t[k], v))
+	count = count + 1
+end
+assert(count == 9)
+
+-- Storing NaN or a non-number keeps every other value.
+local nan = 0 / 0
+t[4] = nan
+assert(t[4] ~= t[4])
+assert(t[1] == 0.5 and t[6] == 3 and t[10] == 5)
+
+local s = {}
+for i = 1, 20 do s[i] = i end
+s[7] = "seven"
+s[8] = {}
+assert(s[7] == "seven" and type(s[8]) == "table" and s[9] == 9 and s[20] == 20)
+s[21] = 21
+assert(#s == 21)
+
+-- Library functions.
+local u = {}
+for i = 1, 50 do u[i] = (i * 37) % 50 + 0.25 end
+table.sort(u)
+for i = 2, 50 do assert(u[i - 1] <= u[i]) end
+
+table.insert(u, 1, -1)
+assert(u[1] == -1 and u[2] == 0.25 and #u == 51)
+assert(table.remove(u, 1) == -1 and u[1] == 0.25 and #u == 50)
+assert(table.remove(u) == 49.25 and #u == 49)
+assert(select("#", unpack(u)) == 49)
+assert(table.concat({ 1, 2.5, 3 }, ",") == "1,2.5,3")
+
+local n = 0
+for i, v in ipairs(u) do
+	n = n + 1
+	assert(u[i] == v)
+end
+assert(n == 49)
+
+-- Weak tables never drop numbers.
+local w = setmetatable({}, { __mode = "v" })
+for i = 1, 10 do w[i] = i + 0.5 end
+collectgarbage()
+assert(#w == 10 and w[10] == 10.5)
+w[11] = {}
+collectgarbage()
+assert(w[10] == 10.5)
+
+-- Shrinking the array part moves values into the hash part.
+local r = {}
+for i = 1, 64 do r[i] = i end
+for i = 2, 64 do r[i] = nil end
+r.x = 1
+for i = 1, 10 do r["y" .. i] = i end
+assert(r[1] == 1 and r[2] == nil and r[64] == nil)
+r[100] = 100.5
+assert(r[100] == 100.5)
@@ -0,0 +1,52 @@
+--- Tests that table.sort behaves the same whether or not the table only contains numbers or strings.
+
+local function check_sorted(t, n)
+	assert(#t == n, ("expected length %d, got %d"):format(n, #t))
+	for i = 2, n do
+		assert(not (t[i] < t[i - 1]), ("t[%d] = %s < t[%d] = %s"):format(i, tostring(t[i]), i - 1, tostring(t[i - 1])))
+	end
+end
+
+-- Integers and floats are sorted together, and keep how they are printed.
+local t = { 3, 1.5, -2, 1 / 0, 0, 2, -1 / 0, 1 }
+table.sort(t)
+check_sorted(t, 8)
+assert(t[1] == -math.huge and t[8] == math.huge)
+assert(tostring(t[3]) == "0" and tostring(t[4]) == "1" and tostring(t[5]) == "1.5")
+
+-- Strings are compared as unsigned bytes, including ropes.
+local a, b = ("x"):rep(40), ("y"):rep(40)
+t = { "b", "\200", "a", "", a .. b, b .. a, "ab" }
+table.sort(t)
+assert(t[1] == "" and t[2] == "a" and t[3] == "ab" and t[4] == "b" and t[5] == a .. b and t[6] == b .. a and t[7] == "\200")
+
+-- Large arrays of numbers.
+for _, n in ipairs { 1000, 100000 } do
+	t = {}
+	for i = 1, n do t[i] = (i * 7919) % n + (i % 3) * 0.25 end
+	table.sort(t)
+	check_sorted(t, n)
+end
+
+-- Tables with an __index metamethod are still sorted.
+t = setmetatable({ "c", "a", "b" }, { __index = function() error("should not be called") end })
+table.sort(t)
+assert(t[1] == "a" and t[2] == "b" and t[3] == "c")
+
+-- Mixed types and holes still error.
+local ok, err = pcall(table.sort, { 1, "a", 2 })
+assert(not ok and err:find("attempt to compare"), err)
+ok, err = pcall(table.sort, { "a", 2, "b" })
+assert(not ok and err:find("attempt to compare"), err)
+
+-- Mixed strings and numbers with a comparator work.
+t = { 3, "2", 1 }
+table.sort(t, function(x, y) return tonumber(x) > tonumber(y) end)
+assert(t[1] == 3 and t[2] == "2" and t[3] == 1)
+
+-- __lt is used for other values.
+local mt = { __lt = function(x, y) return x.v < y.v end }
+t = {}
+for i = 1, 10 do t[i] = setmetatable({ v = (i * 3) % 10 }, mt) end
+table.sort(t)
+for i = 1, 10 do assert(t[i].v == i - 1) end
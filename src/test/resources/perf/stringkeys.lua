@@ -0,0 +1,18 @@
+-- Insert and look up long string keys which only differ in their first few bytes. Hashes which only sample some of a
+-- string's bytes will give all of these keys the same hash.
+
+local n = tonumber((...)) or 4096
+
+local padding = ("x"):rep(253)
+local keys = {}
+for i = 0, n - 1 do
+	keys[i + 1] = string.char(i % 256, math.floor(i / 256) % 256, math.floor(i / 65536) % 256) .. padding
+end
+
+local t = {}
+for i = 1, n do t[keys[i]] = i end
+
+local total = 0
+for i = 1, n do total = total + t[keys[i]] end
+
+print(string.format("Inserted %d keys, total %d", n, total))
@@ -0,0 +1,23 @@
+-- Test infinite loops whose backwards jump is part of a comparison
+
+local function check(...)
+	local success, message = pcall(...)
+
+	assert(not success, "Expected abort")
+	assert(message:find("Timed out"), "Got " .. message)
+end
+
+check(function()
+	local x = 1
+	repeat until x == 2
+end)
+
+check(function()
+	local x
+	repeat until x
+end)
+
+check(function()
+	local x = 0
+	repeat x = x + 1 until x < 0
+end)